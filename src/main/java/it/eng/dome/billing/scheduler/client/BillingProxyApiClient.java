@@ -1,19 +1,29 @@
 package it.eng.dome.billing.scheduler.client;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestClient;
+import org.springframework.web.client.RestClientResponseException;
 import org.springframework.web.client.RestTemplate;
 
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
 import it.eng.dome.billing.scheduler.exception.BillingSchedulerException;
+import it.eng.dome.billing.scheduler.model.DownstreamService;
+import it.eng.dome.billing.scheduler.service.DownstreamLimiter;
 import it.eng.dome.billing.scheduler.utils.URLUtils;
 import it.eng.dome.brokerage.billing.dto.BillingRequestDTO;
 import it.eng.dome.brokerage.model.Invoice;
@@ -30,19 +40,61 @@ public class BillingProxyApiClient {
 	private static final Logger logger = LoggerFactory.getLogger(BillingProxyApiClient.class);
 	
 	private final String BILL_PATH = "/billing/bill";
+	private final String BILL_BATCH_PATH = "/billing/bill/batch";
+	
+	public static final String BATCH_AUTO = "auto";
+	public static final String BATCH_ENABLED = "enabled";
+	public static final String BATCH_DISABLED = "disabled";
 	
-	@Autowired
-	private RestClient restClient;
+	private final RestClient restClient;
+	
+	private final DownstreamLimiter downstreamLimiter;
 	
 	private  final String billinProxyUrl; 
 	
+	// false when the BillingProxy does not support the batch API (by configuration or because it answered with an error to the probe)
+	private final AtomicBoolean batchSupported;
+	
+	// true when the BillingProxy has answered successfully to the batch API at least once
+	private final AtomicBoolean batchConfirmed = new AtomicBoolean();
+	
+	private final boolean batchProbing;
+	
+	private final ObjectReader invoiceReader;
+	
+	/**
+	 * A handler of the {@link Invoice} decoded one at time from the response of the BillingProxy
+	 */
+	@FunctionalInterface
+	public interface InvoiceHandler {
+		void handle(Invoice invoice) throws Exception;
+	}
+	
 	/**
 	 * Constructor initializing the baseUrl of the DOME BillingProxy component
 	 * 
 	 * @param baseUrl the base URL of the DOME BillingProxy component
+	 * @param batchMode 'enabled' to always use the batch API /billing/bill/batch, 'disabled' to always invoke /billing/bill once per billingPeriod, 
+	 * 'auto' to probe the batch API and use it unless the BillingProxy (or a gateway in front of it) answers with an error to the probe
+	 * @param restClient the {@link RestClient} used to invoke the BillingProxy
+	 * @param downstreamLimiter the {@link DownstreamLimiter} capping the concurrent calls to the BillingProxy
+	 * @param objectMapper the {@link ObjectMapper} used to decode the {@link Invoice} in streaming mode
 	 */
-    public BillingProxyApiClient(@Value("${billing.billing_proxy}") String baseUrl) {
+    public BillingProxyApiClient(@Value("${billing.billing_proxy}") String baseUrl, @Value("${billing.batch_mode}") String batchMode,
+    		RestClient restClient, DownstreamLimiter downstreamLimiter, ObjectMapper objectMapper) {
+    	
+    	if (!BATCH_AUTO.equalsIgnoreCase(batchMode) && !BATCH_ENABLED.equalsIgnoreCase(batchMode) && !BATCH_DISABLED.equalsIgnoreCase(batchMode)) {
+    		throw new IllegalArgumentException("Unexpected value '" + batchMode + "' for billing.batch_mode: allowed values are '"
+    				+ BATCH_AUTO + "', '" + BATCH_ENABLED + "' and '" + BATCH_DISABLED + "'");
+    	}
+    	
     	this.billinProxyUrl = baseUrl;
+    	this.restClient = restClient;
+    	this.downstreamLimiter = downstreamLimiter;
+    	this.batchSupported = new AtomicBoolean(!BATCH_DISABLED.equalsIgnoreCase(batchMode));
+    	this.batchProbing = BATCH_AUTO.equalsIgnoreCase(batchMode);
+    	this.invoiceReader = objectMapper.readerFor(Invoice.class);
+    	logger.info("BillingProxy batch mode: {}", batchMode.toLowerCase());
     }
     
     /**
@@ -60,12 +112,12 @@ public class BillingProxyApiClient {
     	String url =URLUtils.buildUrl(billinProxyUrl, BILL_PATH);
 		logger.debug("Invocation of BillingProxy API: {}", url);
 		
-		ResponseEntity<List<Invoice>> response = restClient.post()
+		ResponseEntity<List<Invoice>> response = downstreamLimiter.call(DownstreamService.BILLING_PROXY, () -> restClient.post()
 		        .uri(url)
 		        .contentType(MediaType.APPLICATION_JSON)
 		        .body(billingRequestDTO)
 		        .retrieve()
-		        .toEntity(new ParameterizedTypeReference<List<Invoice>>() {});
+		        .toEntity(new ParameterizedTypeReference<List<Invoice>>() {}));
 			
 		if (response != null && response.getBody() != null) {
 			return response.getBody();
@@ -74,4 +126,136 @@ public class BillingProxyApiClient {
 		}
     }
 
+    
+    /**
+     * Invokes the BillingProxy for the calculation of the bill for a {@link Product} in a billingPeriod (i.e., {@link TimePeriod}), decoding the JSON array
+     * of the response incrementally: each {@link Invoice} is given to the handler as soon as it is decoded, so that only one Invoice at time is kept in memory.
+     * 
+     * @param productId the identifier of the {@link Product}
+     * @param billPeriod the billingPeriod
+     * @param handler the {@link InvoiceHandler} of each decoded {@link Invoice} (e.g., its persistence)
+     * @return the number of {@link Invoice} handled
+     * @throws RestClientResponseException if the BillingProxy answers with an error status
+     * @throws Exception if an error occurs while reading the response or in the handler
+     */
+    public int billingBill(@NotNull String productId, @NotNull TimePeriod billPeriod, @NotNull InvoiceHandler handler) throws Exception{
+    	
+    	BillingRequestDTO billingRequestDTO=new BillingRequestDTO(productId, billPeriod, null);
+    	
+    	String url =URLUtils.buildUrl(billinProxyUrl, BILL_PATH);
+		logger.debug("Invocation of BillingProxy API (streaming): {}", url);
+		
+		// Only the HTTP exchange, up to the status of the response, holds the permit of the BillingProxy and is sampled by its limit. The invoices are 
+		// decoded and handled (e.g., persisted in TMF678 under its own permits) after the release, so the latency of TMF neither holds the permits 
+		// of the BillingProxy nor enters its round-trip time.
+		ClientHttpResponse response = downstreamLimiter.call(DownstreamService.BILLING_PROXY, () -> {
+			// The response is not closed by the RestClient: its body is read below
+			ClientHttpResponse clientResponse = restClient.post()
+			        .uri(url)
+			        .contentType(MediaType.APPLICATION_JSON)
+			        .body(billingRequestDTO)
+			        .exchange((request, exchangeResponse) -> exchangeResponse, false);
+			
+			if (clientResponse.getStatusCode().isError()) {
+				// the status is kept in the exception, so that a 5xx or 429 backs off the limit of the BillingProxy
+				try (clientResponse) {
+					throw new RestClientResponseException("Error in the invocation of the BillingProxy API: " + url + " - HTTP " + clientResponse.getStatusCode().value(),
+							clientResponse.getStatusCode(), clientResponse.getStatusText(), clientResponse.getHeaders(), null, null);
+				}
+			}
+			return clientResponse;
+		});
+		
+		try (response; MappingIterator<Invoice> invoices = invoiceReader.readValues(response.getBody())) {
+			int count = 0;
+			while (invoices.hasNextValue()) {
+				handler.handle(invoices.nextValue());
+				count++;
+			}
+			return count;
+		}
+    }
+    
+    /**
+     * Invokes the BillingProxy for the calculation of the bills of a {@link Product} in all its billingPeriods with a single request to /billing/bill/batch
+     * 
+     * @param productId the identifier of the {@link Product}
+     * @param billPeriods the billingPeriods (i.e., {@link TimePeriod}) of the Product
+     * @return for each billingPeriod (in the same order), the list of {@link Invoice} with the calculated bills; null if the BillingProxy does not support the batch API, 
+     * in which case the caller must invoke {@link #billingBill(String, TimePeriod)} for each billingPeriod
+     * @throws BillingSchedulerException if an {@link Error} occurs during the invocation of the REST API /billing/bill/batch
+     */
+    public List<List<Invoice>> billingBills(@NotNull String productId, @NotNull List<TimePeriod> billPeriods) throws BillingSchedulerException{
+    	
+    	List<BillingRequestDTO> billingRequestDTOs=new ArrayList<BillingRequestDTO>(billPeriods.size());
+    	for(TimePeriod billPeriod: billPeriods) {
+    		billingRequestDTOs.add(new BillingRequestDTO(productId, billPeriod, null));
+    	}
+    	
+    	return billingBills(billingRequestDTOs);
+    }
+    
+    /**
+     * Invokes the BillingProxy for the calculation of the bills of many (Product, billingPeriod) pairs with a single request to /billing/bill/batch.
+     * The requests can refer to different {@link Product}.
+     * 
+     * @param billingRequestDTOs the {@link BillingRequestDTO} to give in input to the REST API /billing/bill/batch
+     * @return for each {@link BillingRequestDTO} (in the same order), the list of {@link Invoice} with the calculated bills; null if the BillingProxy does not support the batch API, 
+     * in which case the caller must invoke {@link #billingBill(String, TimePeriod)} for each request
+     * @throws BillingSchedulerException if an {@link Error} occurs during the invocation of the REST API /billing/bill/batch
+     */
+    public List<List<Invoice>> billingBills(@NotNull List<BillingRequestDTO> billingRequestDTOs) throws BillingSchedulerException{
+    	
+    	if (!batchSupported.get()) {
+    		return null;
+    	}
+    	
+    	if (billingRequestDTOs.isEmpty()) {
+    		return new ArrayList<List<Invoice>>();
+    	}
+    	
+    	String url =URLUtils.buildUrl(billinProxyUrl, BILL_BATCH_PATH);
+		logger.debug("Invocation of BillingProxy API: {} with {} request(s)", url, billingRequestDTOs.size());
+		
+		ResponseEntity<List<List<Invoice>>> response;
+		try {
+			response = downstreamLimiter.call(DownstreamService.BILLING_PROXY, () -> restClient.post()
+			        .uri(url)
+			        .contentType(MediaType.APPLICATION_JSON)
+			        .body(billingRequestDTOs)
+			        .retrieve()
+			        .toEntity(new ParameterizedTypeReference<List<List<Invoice>>>() {}));
+		} catch (HttpStatusCodeException e) {
+			int status = e.getStatusCode().value();
+			// until the batch API has answered successfully, any 4xx/5xx (e.g., a gateway rejecting the unknown path) means it is not available
+			if (batchProbing && (!batchConfirmed.get() || status == 404 || status == 405 || status == 501)) {
+				if (batchSupported.compareAndSet(true, false)) {
+					logger.warn("The BillingProxy does not support the batch API {} (HTTP {}): the bills will be calculated with one request per billingPeriod", url, status);
+				}
+				return null;
+			}
+			throw e;
+		}
+			
+		if (response == null || response.getBody() == null) {
+			throw new BillingSchedulerException("Error in the invocation of the BillingProxy API: " + url + " - Response body is null");
+		}
+		
+		List<List<Invoice>> invoices = response.getBody();
+		if (invoices.size() != billingRequestDTOs.size()) {
+			throw new BillingSchedulerException("Error in the invocation of the BillingProxy API: " + url + " - Expected " + billingRequestDTOs.size() 
+					+ " list(s) of invoices, found " + invoices.size());
+		}
+		
+		batchConfirmed.set(true);
+		return invoices;
+    }
+    
+    /**
+     * @return true if the batch API of the BillingProxy is used (i.e., it is enabled and not found unsupported yet)
+     */
+    public boolean isBatchSupported() {
+    	return batchSupported.get();
+    }
+
 }
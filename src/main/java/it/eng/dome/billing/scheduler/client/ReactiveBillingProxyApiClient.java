@@ -0,0 +1,124 @@
+package it.eng.dome.billing.scheduler.client;
+
+import java.time.Duration;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import it.eng.dome.billing.scheduler.model.DownstreamService;
+import it.eng.dome.billing.scheduler.service.DownstreamLimiter;
+import it.eng.dome.billing.scheduler.utils.URLUtils;
+import it.eng.dome.brokerage.billing.dto.BillingRequestDTO;
+import it.eng.dome.brokerage.model.Invoice;
+import it.eng.dome.tmforum.tmf637.v4.model.Product;
+import it.eng.dome.tmforum.tmf678.v4.model.TimePeriod;
+import jakarta.validation.constraints.NotNull;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * This class represents a non-blocking Client service to invoke, using {@link WebClient}, the REST APIs provided by the BillingProxy (BP) component.
+ * The requests share a pool of Reactor Netty connections (see 'billing.reactive' properties): at most 'max_connections' requests are in flight,
+ * further requests wait in a queue of 'pending_acquire_max_count' entries, so that hundreds of bill calculations can be in flight on a few event-loop threads.
+ * As the blocking client, the requests are limited by the {@link DownstreamLimiter} and each of them fails after 'timeout_seconds'.
+ */
+@Service
+public class ReactiveBillingProxyApiClient {
+	
+	private static final Logger logger = LoggerFactory.getLogger(ReactiveBillingProxyApiClient.class);
+	
+	private final String BILL_PATH = "/billing/bill";
+	
+	private final WebClient webClient;
+	
+	private final String billinProxyUrl;
+	
+	private final boolean enabled;
+	
+	private final int maxConnections;
+	
+	private final Duration timeout;
+	
+	private final DownstreamLimiter downstreamLimiter;
+	
+	/**
+	 * Constructor initializing the baseUrl of the DOME BillingProxy component
+	 * 
+	 * @param baseUrl the base URL of the DOME BillingProxy component
+	 * @param enabled true if the BillingScheduler must use this client instead of {@link BillingProxyApiClient#billingBill(String, TimePeriod)}
+	 * @param maxConnections the max number of connections towards the BillingProxy
+	 * @param timeoutSeconds the max duration of a request, including the decoding of its response
+	 * @param billingProxyWebClient the {@link WebClient} used to invoke the BillingProxy
+	 * @param downstreamLimiter the {@link DownstreamLimiter} limiting the concurrent calls to the BillingProxy
+	 */
+	public ReactiveBillingProxyApiClient(@Value("${billing.billing_proxy}") String baseUrl, @Value("${billing.reactive.enabled}") boolean enabled,
+			@Value("${billing.reactive.max_connections}") int maxConnections, @Value("${billing.reactive.timeout_seconds}") long timeoutSeconds,
+			WebClient billingProxyWebClient, DownstreamLimiter downstreamLimiter) {
+		
+		this.billinProxyUrl = baseUrl;
+		this.enabled = enabled;
+		this.maxConnections = Math.max(1, maxConnections);
+		this.timeout = Duration.ofSeconds(Math.max(1, timeoutSeconds));
+		this.webClient = billingProxyWebClient;
+		this.downstreamLimiter = downstreamLimiter;
+	}
+	
+	/**
+	 * @return the max duration of a request to the BillingProxy
+	 */
+	public Duration getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * @return true if the BillingScheduler must use the non-blocking client
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Invokes the BillingProxy for the calculation of the bill for a {@link Product} in a billingPeriod (i.e., {@link TimePeriod})
+	 * 
+	 * @param productId the identifier of the {@link Product}
+	 * @param billPeriod the billingPeriod
+	 * @return a {@link Flux} of the {@link Invoice} with the calculated bills, decoded while the response is received. 
+	 * It fails with a {@link org.springframework.web.reactive.function.client.WebClientResponseException} if the BillingProxy answers with an error.
+	 */
+	public Flux<Invoice> billingBill(@NotNull String productId, @NotNull TimePeriod billPeriod) {
+		
+		BillingRequestDTO billingRequestDTO=new BillingRequestDTO(productId, billPeriod, null);
+		
+		String url =URLUtils.buildUrl(billinProxyUrl, BILL_PATH);
+		
+		return webClient.post()
+				.uri(url)
+				.contentType(MediaType.APPLICATION_JSON)
+				.bodyValue(billingRequestDTO)
+				.retrieve()
+				.bodyToFlux(Invoice.class)
+				.doOnSubscribe(s -> logger.debug("Invocation of BillingProxy API: {}", url));
+	}
+	
+	/**
+	 * Invokes concurrently the BillingProxy for the calculation of the bills for a {@link Product} in each of its billingPeriods
+	 * 
+	 * @param productId the identifier of the {@link Product}
+	 * @param billPeriods the billingPeriods
+	 * @return a {@link Mono} of the lists of {@link Invoice}, one for each billingPeriod in the same order of the billingPeriods
+	 */
+	public Mono<List<List<Invoice>>> billingBills(@NotNull String productId, @NotNull List<TimePeriod> billPeriods) {
+		
+		// the permit of the DownstreamLimiter is held until the whole response is decoded (or the request times out)
+		return Flux.fromIterable(billPeriods)
+				.flatMapSequential(billPeriod -> downstreamLimiter.callReactive(DownstreamService.BILLING_PROXY, 
+						billingBill(productId, billPeriod).collectList().timeout(timeout)), maxConnections)
+				.collectList();
+	}
+
+}
@@ -1,11 +1,22 @@
 package it.eng.dome.billing.scheduler.config;
 
+import java.time.Duration;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.web.client.RestClient;
+import org.springframework.web.reactive.function.client.WebClient;
+
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
 
 @Configuration
 public class AppConfig {
@@ -21,4 +32,31 @@ public class AppConfig {
 			converters.add(jacksonConverter);
 		}).build();
 	}
+	
+	// pool of the connections towards the BillingProxy used by the WebClient
+	@Bean(destroyMethod = "dispose")
+	public ConnectionProvider billingProxyConnectionProvider(@Value("${billing.reactive.max_connections}") int maxConnections,
+			@Value("${billing.reactive.pending_acquire_max_count}") int pendingAcquireMaxCount,
+			@Value("${billing.reactive.pending_acquire_timeout_seconds}") long pendingAcquireTimeoutSeconds) {
+		
+		return ConnectionProvider.builder("billing-proxy")
+				.maxConnections(maxConnections)
+				.pendingAcquireMaxCount(pendingAcquireMaxCount)
+				.pendingAcquireTimeout(Duration.ofSeconds(pendingAcquireTimeoutSeconds))
+				.metrics(true)
+				.build();
+	}
+	
+	// register WebClient (on the pooled Reactor Netty connections) for the non-blocking invocation of the BillingProxy
+	@Bean
+	public WebClient billingProxyWebClient(ObjectMapper objectMapper, ConnectionProvider billingProxyConnectionProvider) {
+		
+		return WebClient.builder()
+				.clientConnector(new ReactorClientHttpConnector(HttpClient.create(billingProxyConnectionProvider)))
+				.codecs(configurer -> {
+					configurer.defaultCodecs().jackson2JsonEncoder(new Jackson2JsonEncoder(objectMapper));
+					configurer.defaultCodecs().jackson2JsonDecoder(new Jackson2JsonDecoder(objectMapper));
+				})
+				.build();
+	}
 }
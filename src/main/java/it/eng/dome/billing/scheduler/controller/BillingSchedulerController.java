@@ -1,6 +1,8 @@
 package it.eng.dome.billing.scheduler.controller;
 
+import java.net.URI;
 import java.time.OffsetDateTime;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,13 +10,22 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import it.eng.dome.billing.scheduler.dto.StartRequestDTO;
+import it.eng.dome.billing.scheduler.model.RunProgress;
+import it.eng.dome.billing.scheduler.model.RunState;
 import it.eng.dome.billing.scheduler.service.BillingSchedulerService;
+import it.eng.dome.billing.scheduler.service.LeaderElection;
+import it.eng.dome.billing.scheduler.service.RunCoordinator;
+import it.eng.dome.billing.scheduler.service.RunRegistry;
 import it.eng.dome.billing.scheduler.validator.TMFEntityValidator;
 import it.eng.dome.tmforum.tmf620.v4.model.ProductOfferingPrice;
 
@@ -32,8 +43,22 @@ public class BillingSchedulerController {
 	@Autowired
 	private TMFEntityValidator tmfEntityValidator;
 	
+	@Autowired
+	private RunCoordinator runCoordinator;
+	
+	@Autowired
+	private RunRegistry runRegistry;
+	
+	@Autowired
+	private LeaderElection leaderElection;
+	
+	/**
+	 * Starts a run of the BillCycle asynchronously
+	 * 
+	 * @return the {@link RunProgress} of the run, whose id can be used to follow ('GET /runs/{id}') or cancel ('DELETE /runs/{id}') the run
+	 */
 	@PostMapping("/start")
-	public ResponseEntity<String> startScheduler(@RequestBody StartRequestDTO datetime) throws Throwable {
+	public ResponseEntity<?> startScheduler(@RequestBody StartRequestDTO datetime) throws Throwable {
 
 		OffsetDateTime now; 
 		
@@ -55,19 +80,49 @@ public class BillingSchedulerController {
 		
 		logger.info("Start BillingScheduler task via REST APIs to manage the BillCycle");
 
-		try {
-			billingService.manageBillCycle(now, billCycleSpecEnabled);
-			return ResponseEntity.ok("Managed BillCycle at datetime: "+now);
-			
-		}catch(UnsupportedOperationException e) {
-			String errMsg="Invocation of not supported method!";
-			logger.error(e.getMessage(), e);
-			return new ResponseEntity<String>(errMsg, HttpStatus.NOT_IMPLEMENTED);
-		}catch(Exception e) {
-			logger.error(e.getMessage(), e);
-			return new ResponseEntity<String>(e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR);
+		if(billCycleSpecEnabled) {
+			logger.error("BillCycleSpecification not supported yet");
+			return new ResponseEntity<String>("Invocation of not supported method!", HttpStatus.NOT_IMPLEMENTED);
 		}
 		
+		OffsetDateTime limitDate = now;
+		RunProgress run = runRegistry.submit(RunCoordinator.API_TRIGGER, limitDate, 
+				leaderElection.lead(() -> billingService.manageBillCycle(limitDate, false, datetime.isResume())));
+		logger.info("BillCycle run {} at datetime {} submitted", run.getId(), now);
+		
+		return ResponseEntity.accepted().location(URI.create("/billingScheduler/runs/" + run.getId())).body(run);
+	}
+	
+	@GetMapping("/runs/current")
+	public ResponseEntity<RunState> getCurrentRun() {
+		return ResponseEntity.ok(runCoordinator.getState());
+	}
+	
+	@GetMapping("/runs")
+	public ResponseEntity<List<RunProgress>> getRuns() {
+		return ResponseEntity.ok(runRegistry.list());
+	}
+	
+	@GetMapping("/runs/{id}")
+	public ResponseEntity<RunProgress> getRun(@PathVariable("id") String id) {
+		RunProgress run = runRegistry.get(id);
+		if(run == null) {
+			return ResponseEntity.notFound().build();
+		}
+		return ResponseEntity.ok(run);
+	}
+	
+	@DeleteMapping("/runs/{id}")
+	public ResponseEntity<RunProgress> cancelRun(@PathVariable("id") String id, 
+			@RequestParam(name = "resumable", defaultValue = "false") boolean resumable) {
+		RunProgress run = runRegistry.cancel(id, resumable);
+		if(run == null) {
+			return ResponseEntity.notFound().build();
+		}
+		if(run.isEnded() && !run.isCancelRequested()) {
+			return new ResponseEntity<RunProgress>(run, HttpStatus.CONFLICT);
+		}
+		return ResponseEntity.accepted().body(run);
 	}
 	
 	@PostMapping("/validateProductOfferingPrice")
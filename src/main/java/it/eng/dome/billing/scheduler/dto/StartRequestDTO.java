@@ -7,6 +7,9 @@ public class StartRequestDTO {
 	
 	@JsonFormat(pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", timezone = "UTC")
     private Instant datetime;
+	
+	// true to resume the last run of the BillCycle, if it has been interrupted
+	private boolean resume;
 
     public Instant getDatetime() {
         return datetime;
@@ -16,4 +19,12 @@ public class StartRequestDTO {
         this.datetime = datetime;
     }
 
+    public boolean isResume() {
+        return resume;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
 }
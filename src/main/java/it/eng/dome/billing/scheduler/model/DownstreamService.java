@@ -0,0 +1,28 @@
+package it.eng.dome.billing.scheduler.model;
+
+/**
+ * The downstream services invoked by the Billing Scheduler
+ */
+public enum DownstreamService {
+
+  TMF620_CATALOG("TMF620 Product Catalog"),
+  TMF637_INVENTORY("TMF637 Product Inventory"),
+  TMF678_BILLING("TMF678 Customer Bill"),
+  BILLING_PROXY("Billing Proxy");
+
+  private String value;
+
+  private DownstreamService(String value) {
+    this.value = value;
+  }
+
+  public String getValue() {
+    return this.value;
+  }
+
+  @Override
+  public String toString() {
+    return this.getValue();
+  }
+
+}
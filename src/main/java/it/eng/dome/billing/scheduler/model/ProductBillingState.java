@@ -0,0 +1,10 @@
+package it.eng.dome.billing.scheduler.model;
+
+/**
+ * State of a Product at the end of the last run that processed it, used by the incremental runs
+ * 
+ * @param lastPeriodEnd the end (epoch seconds) of the last closed billingPeriod billed for the Product, or 0 if none
+ * @param contentHash the SHA-256 (hex) of the Product content, to detect the changes in TMF637
+ */
+public record ProductBillingState(long lastPeriodEnd, String contentHash) {
+}
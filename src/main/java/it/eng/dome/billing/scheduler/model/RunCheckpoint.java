@@ -0,0 +1,16 @@
+package it.eng.dome.billing.scheduler.model;
+
+import java.time.OffsetDateTime;
+
+/**
+ * Checkpoint of a BillCycle run, stored in the run journal
+ * 
+ * @param runId the identifier of the run
+ * @param limitDate the limit date of the run
+ * @param processedProducts the number of active Products (in the order returned by TMF637) fully processed
+ * @param lastProductId the identifier of the last Product fully processed
+ * @param shard the {@link Shard} processed by the run: the processed Products are counted by position in TMF637, so they are valid for this shard only
+ * @param completed true if the run has been completed
+ */
+public record RunCheckpoint(String runId, OffsetDateTime limitDate, long processedProducts, String lastProductId, Shard shard, boolean completed) {
+}
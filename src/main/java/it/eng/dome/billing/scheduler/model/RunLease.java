@@ -0,0 +1,20 @@
+package it.eng.dome.billing.scheduler.model;
+
+/**
+ * Lease of a run lock, held by an instance of the Billing Scheduler until its expiry (unless renewed)
+ * 
+ * @param lockName the name of the lock
+ * @param owner the identifier of the instance holding the lease
+ * @param fencingToken the fencing token of the lease: it increases at each acquisition of the lock, so a newer holder always has a greater token
+ * @param expiresAt the expiry time of the lease (epoch millis)
+ */
+public record RunLease(String lockName, String owner, long fencingToken, long expiresAt) {
+	
+	/**
+	 * @return true if the lease is expired
+	 */
+	public boolean isExpired() {
+		return System.currentTimeMillis() >= expiresAt;
+	}
+	
+}
@@ -0,0 +1,206 @@
+package it.eng.dome.billing.scheduler.model;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live progress of a BillCycle run (job), exposed by the REST API. The counters are updated concurrently by the workers of the run.
+ */
+public class RunProgress {
+
+	/**
+	 * Status of a run
+	 */
+	public enum Status {
+		QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED, COALESCED, SKIPPED
+	}
+
+	private final String id;
+	private final String trigger;
+	private final OffsetDateTime limitDate;
+	private final OffsetDateTime submittedAt = OffsetDateTime.now();
+
+	private volatile Status status = Status.QUEUED;
+	private volatile OffsetDateTime startedAt;
+	private volatile OffsetDateTime endedAt;
+	private volatile String message;
+	private volatile boolean cancelRequested;
+	private volatile boolean resumable;
+	private volatile Long productsTotal;
+
+	private final AtomicLong productsSeen = new AtomicLong();
+	private final AtomicLong productsProcessed = new AtomicLong();
+	private final AtomicLong productsSkipped = new AtomicLong();
+	private final AtomicLong invoicesGenerated = new AtomicLong();
+	private final AtomicLong invoicesPersisted = new AtomicLong();
+	private final AtomicLong invoicesDeduplicated = new AtomicLong();
+
+	public RunProgress(String id, String trigger, OffsetDateTime limitDate) {
+		this.id = id;
+		this.trigger = trigger;
+		this.limitDate = limitDate;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getTrigger() {
+		return trigger;
+	}
+
+	public OffsetDateTime getLimitDate() {
+		return limitDate;
+	}
+
+	public OffsetDateTime getSubmittedAt() {
+		return submittedAt;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public OffsetDateTime getStartedAt() {
+		return startedAt;
+	}
+
+	public OffsetDateTime getEndedAt() {
+		return endedAt;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public boolean isCancelRequested() {
+		return cancelRequested;
+	}
+
+	/**
+	 * @return true if the run has been paused, i.e. cancelled keeping its journal checkpoint to be resumed
+	 */
+	public boolean isResumable() {
+		return resumable;
+	}
+
+	/**
+	 * @return the number of Products the run has to process, null if not known in advance (i.e., the run pages all the active Products)
+	 */
+	public Long getProductsTotal() {
+		return productsTotal;
+	}
+
+	public long getProductsSeen() {
+		return productsSeen.get();
+	}
+
+	public long getProductsProcessed() {
+		return productsProcessed.get();
+	}
+
+	public long getProductsSkipped() {
+		return productsSkipped.get();
+	}
+
+	public long getInvoicesGenerated() {
+		return invoicesGenerated.get();
+	}
+
+	public long getInvoicesPersisted() {
+		return invoicesPersisted.get();
+	}
+
+	public long getInvoicesDeduplicated() {
+		return invoicesDeduplicated.get();
+	}
+
+	/**
+	 * @return the Products processed or skipped per second since the start of the run
+	 */
+	public double getThroughput() {
+		OffsetDateTime start = startedAt;
+		if (start == null)
+			return 0;
+
+		OffsetDateTime end = endedAt != null ? endedAt : OffsetDateTime.now();
+		double seconds = Math.max(1, Duration.between(start, end).toMillis()) / 1000.0;
+		return (productsProcessed.get() + productsSkipped.get()) / seconds;
+	}
+
+	/**
+	 * @return the estimated end time of the run, null if the run is not running or the number of Products is not known
+	 */
+	public OffsetDateTime getEta() {
+		Long total = productsTotal;
+		double throughput = getThroughput();
+		if (status != Status.RUNNING || total == null || throughput <= 0)
+			return null;
+
+		long remaining = Math.max(0, total - productsProcessed.get() - productsSkipped.get());
+		return OffsetDateTime.now().plusSeconds((long) Math.ceil(remaining / throughput));
+	}
+
+	public void setProductsTotal(long productsTotal) {
+		this.productsTotal = productsTotal;
+	}
+
+	public void productSeen() {
+		productsSeen.incrementAndGet();
+	}
+
+	public void productProcessed() {
+		productsProcessed.incrementAndGet();
+	}
+
+	public void productSkipped() {
+		productsSkipped.incrementAndGet();
+	}
+
+	public void invoicesGenerated(long count) {
+		invoicesGenerated.addAndGet(count);
+	}
+
+	public void invoicePersisted() {
+		invoicesPersisted.incrementAndGet();
+	}
+
+	public void invoiceDeduplicated() {
+		invoicesDeduplicated.incrementAndGet();
+	}
+
+	/**
+	 * Requests the cooperative cancellation of the run: the run stops before processing the next Products and it is not resumed
+	 */
+	public void requestCancel() {
+		cancelRequested = true;
+	}
+
+	/**
+	 * Requests the cooperative pause of the run: the run stops before processing the next Products and it can be resumed from its journal checkpoint
+	 */
+	public void requestPause() {
+		resumable = true;
+		cancelRequested = true;
+	}
+
+	public void started() {
+		startedAt = OffsetDateTime.now();
+		status = Status.RUNNING;
+	}
+
+	public void ended(Status status, String message) {
+		this.message = message;
+		this.endedAt = OffsetDateTime.now();
+		this.status = status;
+	}
+
+	/**
+	 * @return true if the run is completed, failed, cancelled, coalesced or skipped
+	 */
+	public boolean isEnded() {
+		return status != Status.QUEUED && status != Status.RUNNING;
+	}
+
+}
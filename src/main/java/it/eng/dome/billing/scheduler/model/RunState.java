@@ -0,0 +1,18 @@
+package it.eng.dome.billing.scheduler.model;
+
+import java.time.OffsetDateTime;
+
+/**
+ * State of the BillCycle runs of this instance, exposed by the run coordinator
+ * 
+ * @param running true if a run is active
+ * @param trigger the trigger of the active run (e.g., 'scheduled' or 'api'), null if no run is active
+ * @param limitDate the limit date of the active run, null if no run is active
+ * @param startedAt the start time of the active run, null if no run is active
+ * @param followUpQueued true if a run has been queued to start when the active one completes
+ * @param completedRuns the number of runs completed since the start of the instance
+ * @param coalescedTriggers the number of triggers received while a run was active and coalesced into it
+ */
+public record RunState(boolean running, String trigger, OffsetDateTime limitDate, OffsetDateTime startedAt, boolean followUpQueued, 
+		long completedRuns, long coalescedTriggers) {
+}
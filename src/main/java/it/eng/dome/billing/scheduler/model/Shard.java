@@ -0,0 +1,37 @@
+package it.eng.dome.billing.scheduler.model;
+
+/**
+ * Shard of the Product space processed by an instance of the Billing Scheduler: a Product belongs to the shard 
+ * if the hash of its identifier, modulo the number of shards, is the index of the shard
+ * 
+ * @param index the index of the shard, in [0, count)
+ * @param count the number of shards
+ */
+public record Shard(int index, int count) {
+	
+	/**
+	 * The single shard with all the Products
+	 */
+	public static final Shard ALL = new Shard(0, 1);
+	
+	/**
+	 * Checks if a Product belongs to the shard
+	 * 
+	 * @param productId the identifier of the Product
+	 * @return true if the Product belongs to the shard
+	 */
+	public boolean owns(String productId) {
+		if (count <= 1)
+			return true;
+		
+		// the bits of the String hash are mixed, so that similar identifiers are spread over the shards
+		int hash = productId.hashCode() * 0x9E3779B9;
+		return Math.floorMod(hash ^ (hash >>> 16), count) == index;
+	}
+	
+	@Override
+	public String toString() {
+		return index + "/" + count;
+	}
+	
+}
@@ -0,0 +1,221 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import it.eng.dome.billing.scheduler.model.DownstreamService;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Factory of the executors used to run the BillCycle. Three modes are supported (property 'billing.scheduler.executor'):
+ * <ul>
+ * <li><b>platform</b>: the Products are processed by a fixed pool of 'billing.scheduler.parallelism' platform threads and the calls of a Product are sequential</li>
+ * <li><b>virtual</b>: each Product is processed by its own virtual thread and the independent calls of a Product
+ * (e.g., one per ProductPrice or per billingPeriod) are fanned out on further virtual threads. The virtual threads are cheap, so the Products processed at time are bounded by the permits of the {@link DownstreamLimiter}
+ * (the highest max concurrency of the downstream services) rather than by 'billing.scheduler.parallelism', if lower</li>
+ * <li><b>forkjoin</b>: the Products are processed by a work-stealing {@link ForkJoinPool} of 'billing.scheduler.parallelism' threads and the independent calls
+ * of a Product are forked as subtasks of the Product, so that the idle workers steal the billingPeriods of a heavy Product instead of waiting for it</li>
+ * </ul>
+ * In all the modes, the calls to the downstream services are limited by the {@link DownstreamLimiter}.
+ */
+@Component
+public class BillCycleExecutorFactory {
+
+	private static final Logger logger = LoggerFactory.getLogger(BillCycleExecutorFactory.class);
+
+	public static final String PLATFORM_EXECUTOR = "platform";
+	public static final String VIRTUAL_EXECUTOR = "virtual";
+	public static final String FORK_JOIN_EXECUTOR = "forkjoin";
+
+	private final int parallelism;
+	private final String executorType;
+	private final DownstreamLimiter downstreamLimiter;
+
+	/**
+	 * A function that can throw an exception
+	 */
+	@FunctionalInterface
+	public interface CheckedFunction<T, R> {
+		R apply(T t) throws Exception;
+	}
+
+	/**
+	 * Constructor without {@link DownstreamLimiter}: with the virtual executor, at most 'parallelism' Products are processed at time
+	 */
+	public BillCycleExecutorFactory(int parallelism, String executorType) {
+		this(parallelism, executorType, null);
+	}
+
+	@Autowired
+	public BillCycleExecutorFactory(@Value("${billing.scheduler.parallelism}") int parallelism,
+			@Value("${billing.scheduler.executor}") String executorType, DownstreamLimiter downstreamLimiter) {
+
+		if (!PLATFORM_EXECUTOR.equalsIgnoreCase(executorType) && !VIRTUAL_EXECUTOR.equalsIgnoreCase(executorType)
+				&& !FORK_JOIN_EXECUTOR.equalsIgnoreCase(executorType)) {
+			throw new IllegalArgumentException("Unexpected value '" + executorType + "' for billing.scheduler.executor: allowed values are '"
+					+ PLATFORM_EXECUTOR + "', '" + VIRTUAL_EXECUTOR + "' and '" + FORK_JOIN_EXECUTOR + "'");
+		}
+
+		this.parallelism = Math.max(1, parallelism);
+		this.executorType = executorType.toLowerCase();
+		this.downstreamLimiter = downstreamLimiter;
+		logger.info("BillCycle executor '{}' with parallelism {}", this.executorType, getParallelism());
+	}
+
+	/**
+	 * @return the max number of Products processed concurrently: the number of threads of the pool or, with the virtual executor, 
+	 * the highest current limit of the downstream services (if greater than 'parallelism')
+	 */
+	public int getParallelism() {
+		if (!isVirtual() || downstreamLimiter == null)
+			return parallelism;
+
+		int permits = parallelism;
+		for (DownstreamService service : DownstreamService.values()) {
+			permits = Math.max(permits, downstreamLimiter.getLimit(service));
+		}
+		return permits;
+	}
+
+	/**
+	 * @return true if the virtual threads are used
+	 */
+	public boolean isVirtual() {
+		return VIRTUAL_EXECUTOR.equals(executorType);
+	}
+
+	/**
+	 * @return true if the work-stealing pool is used
+	 */
+	public boolean isWorkStealing() {
+		return FORK_JOIN_EXECUTOR.equals(executorType);
+	}
+
+	/**
+	 * Creates a new {@link ExecutorService} to process the Products of a BillCycle. The caller must shut it down.
+	 *
+	 * @return the {@link ExecutorService}
+	 */
+	public ExecutorService newProductExecutor() {
+		if (isVirtual()) {
+			return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("bill-cycle-vworker-", 0).factory());
+		}
+		if (isWorkStealing()) {
+			// asyncMode: the Products submitted by the paging are processed in FIFO order
+			AtomicInteger workers = new AtomicInteger();
+			return new ForkJoinPool(parallelism, pool -> {
+				ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				worker.setName("bill-cycle-fjworker-" + workers.getAndIncrement());
+				return worker;
+			}, null, true);
+		}
+		return Executors.newFixedThreadPool(parallelism, new CustomizableThreadFactory("bill-cycle-worker-"));
+	}
+
+	/**
+	 * Creates a new {@link ExecutorService} to retrieve in background the ProductOfferingPrices of the Products. The caller must shut it down.
+	 *
+	 * @return the {@link ExecutorService}
+	 */
+	public ExecutorService newPrefetchExecutor() {
+		if (isVirtual()) {
+			return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("pop-prefetch-", 0).factory());
+		}
+		return Executors.newSingleThreadExecutor(new CustomizableThreadFactory("pop-prefetch-"));
+	}
+
+	/**
+	 * Applies a function to all the items of a list. With the virtual executor each item is processed in its own virtual thread,
+	 * with the work-stealing executor each item is forked as a subtask of the caller worker (which can be stolen by the idle workers),
+	 * otherwise the items are processed sequentially by the caller thread. In all cases the results keep the order of the items.
+	 *
+	 * @param items the items to process
+	 * @param function the function to apply
+	 * @return the results, in the same order of the items
+	 * @throws Exception the first exception (in the order of the items) thrown by the function
+	 */
+	public <T, R> List<R> fanOut(@NotNull List<T> items, @NotNull CheckedFunction<T, R> function) throws Exception {
+		List<R> results = new ArrayList<R>(items.size());
+
+		if (isWorkStealing() && items.size() > 1 && ForkJoinTask.inForkJoinPool()) {
+			return forkAll(items, function);
+		}
+
+		if (!isVirtual() || items.size() <= 1) {
+			for (T item : items) {
+				results.add(function.apply(item));
+			}
+			return results;
+		}
+
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			List<Future<R>> futures = new ArrayList<Future<R>>(items.size());
+			for (T item : items) {
+				futures.add(executor.submit(() -> function.apply(item)));
+			}
+
+			for (Future<R> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					futures.forEach(f -> f.cancel(true));
+					if (e.getCause() instanceof Exception cause) {
+						throw cause;
+					}
+					throw e;
+				}
+			}
+		}
+
+		return results;
+	}
+
+	/*
+	 * Forks a subtask for each item and joins them: the caller worker runs the first item and, while joining, the subtasks not stolen by the other workers
+	 */
+	private <T, R> List<R> forkAll(List<T> items, CheckedFunction<T, R> function) throws Exception {
+		List<R> results = new ArrayList<R>(items.size());
+		Exception[] errors = new Exception[items.size()];
+		List<ForkJoinTask<R>> tasks = new ArrayList<ForkJoinTask<R>>(items.size());
+
+		for (int i = 0; i < items.size(); i++) {
+			int index = i;
+			T item = items.get(i);
+			tasks.add(ForkJoinTask.adapt(() -> {
+				try {
+					return function.apply(item);
+				} catch (Exception e) {
+					// kept to be rethrown as is, rather than wrapped by the ForkJoinTask
+					errors[index] = e;
+					return null;
+				}
+			}));
+		}
+
+		ForkJoinTask.invokeAll(tasks);
+		for (int i = 0; i < tasks.size(); i++) {
+			if (errors[i] != null) {
+				throw errors[i];
+			}
+			results.add(tasks.get(i).join());
+		}
+
+		return results;
+	}
+
+}
@@ -1,10 +1,11 @@
 package it.eng.dome.billing.scheduler.service;
 
 import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.PriorityQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,63 +50,25 @@ public class BillCycleService{
 		Logger.info("Starting calculation of the billingPeriod end dates for BillCycleSpecification with recurring period '{}' and lenght '{}' and activation date '{}'",
 			billCycleSpec.getBillingPeriodType(),billCycleSpec.getBillingPeriodLength(), activationDate);
 		
-		
 		RecurringPeriod billingPeriodType=billCycleSpec.getBillingPeriodType();
 		Integer billingPeriodLength=billCycleSpec.getBillingPeriodLength();
 		
-		if(billingPeriodType!=null && billingPeriodLength!=null && billingPeriodLength>0) {
-			Stream<OffsetDateTime> streamData=Stream.empty();
-			
-
-			switch (billCycleSpec.getBillingPeriodType()) {
-			case DAY: {
-			
-				// Stream of dates every n DAY according to the BillCycleSpecification (the activation date is included)
-				streamData = Stream.iterate(
-						activationDate.plusDays( billCycleSpec.getBillingPeriodLength()- 1),          
-						d -> d.plusDays(billCycleSpec.getBillingPeriodLength())                    
-						);
-		       break;
-			}
-			case WEEK: {
-			
-				// Stream of dates every n WEEK according to the BillCycleSpecification (the activation date is included)
-				streamData = Stream.iterate(
-		        		activationDate.plusDays((7 * billCycleSpec.getBillingPeriodLength())-1),          
-		                d -> d.plusDays(7 * billCycleSpec.getBillingPeriodLength())                    
-		        );
-		       break;
-			}
-			case MONTH: {
-				// Stream of dates every n MONTH according to the BillCycleSpecification (the activation date is included)
-				streamData = Stream.iterate(
-				        1, i -> i + 1
-				).map(i -> activationDate.plusMonths(i * billCycleSpec.getBillingPeriodLength()).minusDays(1));
-		       break;
-			}
-			case YEAR: {
-				// Stream of dates every n YEAR according to the BillCycleSpecification (the activation date is included)
-				streamData = Stream.iterate(
-				        1, i -> i + 1
-				).map(i -> activationDate.plusYears(i * billCycleSpec.getBillingPeriodLength()).minusDays(1));
-		       break;
-			}
-			default:
-				throw new IllegalArgumentException("Error in the BillCycleSpecification: unexpected value for billingPeriodType");
-			}
-			
-			List<OffsetDateTime> billPeriodEndDates = streamData.takeWhile(d -> d.isBefore(limitDate) || d.isEqual(limitDate)).toList();
-			if(activationDate.isAfter(limitDate))
-		    	   Logger.warn("activationDate '{}' is after limitDate '{}'", activationDate, limitDate);
-		    Logger.info("Per {} billingPeriod END dates:{}",billingPeriodType,billPeriodEndDates);
-		    
-		    return billPeriodEndDates;
-			
-		}else {
+		if(billingPeriodType==null || billingPeriodLength==null || billingPeriodLength<=0) {
 			throw new IllegalArgumentException("Error in the BillCycleSpecification: billingPeriodType must not be null, billingPeriodLength must be greater than 0");
 		}
-
+		if(!isSupported(billingPeriodType)) {
+			throw new IllegalArgumentException("Error in the BillCycleSpecification: unexpected value for billingPeriodType");
+		}
+		
+		if(activationDate.isAfter(limitDate))
+	    	   Logger.warn("activationDate '{}' is after limitDate '{}'", activationDate, limitDate);
+		
+		List<OffsetDateTime> billPeriodEndDates = generateEndDates(billingPeriodType, billingPeriodLength, activationDate, 1, lastPeriodIndex(billingPeriodType, billingPeriodLength, activationDate, limitDate));
+	    Logger.info("Per {} billingPeriod END dates:{}",billingPeriodType,billPeriodEndDates);
+	    
+	    return billPeriodEndDates;
 	}
+	
 	/**
 	 * Calculates the billingPeriod END dates of the BillCycle, included from an activation {@link OffsetDateTime} and a limit {@link OffsetDateTime}, according to the specified {@link RecurringChargePeriod} (e.g., 5 DAY, 2 WEEK; 1 MONTH, 1 YEAR) 
 	 * 
@@ -120,65 +83,183 @@ public class BillCycleService{
 		Logger.debug("Calculation of the billingPeriod end dates for recurringPeriodLenght '{}' and recurringPeriodType '{}' and activation date '{}'",
 				recurringChargePeriod.getRecurringChargePeriodLenght(),recurringChargePeriod.getRecurringChargePeriodType(), activationDate);
 		
-		List<OffsetDateTime> endDates=new ArrayList<OffsetDateTime>();
+	    if (activationDate.isAfter(limitDate)) {
+	        Logger.warn("activationDate '{}' is after limitDate '{}'", activationDate, limitDate);
+	        return new ArrayList<OffsetDateTime>();
+	    }
+	    
+	    RecurringPeriod billingPeriodType=recurringChargePeriod.getRecurringChargePeriodType();
+		Integer billingPeriodLength=recurringChargePeriod.getRecurringChargePeriodLenght();
+	    validate(billingPeriodType, billingPeriodLength);
+		
+		List<OffsetDateTime> endDates=generateEndDates(billingPeriodType, billingPeriodLength, activationDate, 1, lastPeriodIndex(billingPeriodType, billingPeriodLength, activationDate, limitDate));
+	    
+		Logger.debug("Per {} {} billingPeriod END dates:{}",billingPeriodLength,billingPeriodType,endDates);
+	    
+	    return endDates;
+	}
+	
+	/**
+	 * Calculates only the billingPeriod END dates, according to the specified {@link RecurringChargePeriod}, of the billingPeriods that end within the window (from, to], 
+	 * i.e., the END dates after 'from' and not after 'to'. 
+	 * The index of the first and of the last billingPeriod in the window are computed arithmetically (days and weeks directly, months and years with the calendar), 
+	 * so the cost depends only on the number of billingPeriods in the window and not on the number of billingPeriods since the activation date.
+	 * 
+	 * @param recurringChargePeriod A {@link RecurringChargePeriod} specifying the recurringChargePeriodType and recurringChargePeriodLength  
+	 * @param activationDate An {@link OffsetDateTime} representing the start date of the first billingPeriod
+	 * @param from An {@link OffsetDateTime} representing the (excluded) lower limit of the window
+	 * @param to An {@link OffsetDateTime} representing the (included) upper limit of the window
+	 * @return The list of {@link OffsetDateTime} representing the billingPeriod END dates that fall in the window, sorted
+	 * @throws IllegalArgumentException If the {@link RecurringChargePeriod} contains unexpected values
+	 */
+	public List<OffsetDateTime> calculateBillingPeriodEndDates(@NotNull RecurringChargePeriod recurringChargePeriod, @NotNull OffsetDateTime activationDate, 
+			@NotNull OffsetDateTime from, @NotNull OffsetDateTime to) throws IllegalArgumentException{
+		
+		RecurringPeriod billingPeriodType=recurringChargePeriod.getRecurringChargePeriodType();
+		Integer billingPeriodLength=recurringChargePeriod.getRecurringChargePeriodLenght();
+		validate(billingPeriodType, billingPeriodLength);
+		
+		long first=lastPeriodIndex(billingPeriodType, billingPeriodLength, activationDate, from) + 1;
+		long last=lastPeriodIndex(billingPeriodType, billingPeriodLength, activationDate, to);
+		
+		List<OffsetDateTime> endDates=generateEndDates(billingPeriodType, billingPeriodLength, activationDate, first, last);
+		Logger.debug("Per {} {} billingPeriod END dates in ({} - {}]: {}",billingPeriodLength,billingPeriodType,from,to,endDates);
+		
+		return endDates;
+	}
+	
+	/**
+	 * Calculates the last billingPeriod END date, according to the specified {@link RecurringChargePeriod}, that is not after a date
+	 * 
+	 * @param recurringChargePeriod A {@link RecurringChargePeriod} specifying the recurringChargePeriodType and recurringChargePeriodLength  
+	 * @param activationDate An {@link OffsetDateTime} representing the start date of the first billingPeriod
+	 * @param date An {@link OffsetDateTime} representing the date
+	 * @return The last billingPeriod END date not after the date, or null if the first billingPeriod ends after the date
+	 * @throws IllegalArgumentException If the {@link RecurringChargePeriod} contains unexpected values
+	 */
+	public OffsetDateTime calculateLastBillingPeriodEndDate(@NotNull RecurringChargePeriod recurringChargePeriod, @NotNull OffsetDateTime activationDate, 
+			@NotNull OffsetDateTime date) throws IllegalArgumentException{
 		
 		RecurringPeriod billingPeriodType=recurringChargePeriod.getRecurringChargePeriodType();
 		Integer billingPeriodLength=recurringChargePeriod.getRecurringChargePeriodLenght();
+		validate(billingPeriodType, billingPeriodLength);
 		
-
-	    if (activationDate.isAfter(limitDate)) {
-	        Logger.warn("activationDate '{}' is after limitDate '{}'", activationDate, limitDate);
-	        return endDates;
-	    }
-
-	    if (billingPeriodType == null || billingPeriodLength == null || billingPeriodLength <= 0) {
-	    	throw new IllegalArgumentException("Error in the RecurringChargePeriod: billingPeriodType must not be null, billingPeriodLength must be greater than 0");
-	    }
-			
-		Stream<OffsetDateTime> streamData=Stream.empty();
+		long index=lastPeriodIndex(billingPeriodType, billingPeriodLength, activationDate, date);
+		return index > 0 ? endDate(billingPeriodType, billingPeriodLength, activationDate, index) : null;
+	}
+	
+	/**
+	 * Calculates the next billingPeriod END date after a date, considering the billingPeriod end dates of several {@link RecurringChargePeriod} 
+	 * (e.g., one for each ProductPrice of a Product), i.e., the first date after which a new billingPeriod has to be billed
+	 * 
+	 * @param recurringChargePeriods The {@link RecurringChargePeriod}(s) from which the billingPeriod end dates are calculated
+	 * @param activationDate An {@link OffsetDateTime} representing the start date of the first billingPeriod
+	 * @param date An {@link OffsetDateTime} representing the date
+	 * @return The first billingPeriod END date after the date, or null if there are no {@link RecurringChargePeriod}
+	 * @throws IllegalArgumentException If a {@link RecurringChargePeriod} contains unexpected values
+	 */
+	public OffsetDateTime calculateNextBillingPeriodEndDate(@NotNull List<RecurringChargePeriod> recurringChargePeriods, @NotNull OffsetDateTime activationDate, 
+			@NotNull OffsetDateTime date) throws IllegalArgumentException{
 		
-		switch (recurringChargePeriod.getRecurringChargePeriodType()) {
-		case DAY: {
+		OffsetDateTime next=null;
+		for(RecurringChargePeriod recurringChargePeriod: recurringChargePeriods) {
+			RecurringPeriod billingPeriodType=recurringChargePeriod.getRecurringChargePeriodType();
+			Integer billingPeriodLength=recurringChargePeriod.getRecurringChargePeriodLenght();
+			validate(billingPeriodType, billingPeriodLength);
 			
-			streamData = Stream.iterate(
-	                activationDate.plusDays(billingPeriodLength- 1),          
-	                d -> d.plusDays(billingPeriodLength)                    
-	        );
-	       break;
+			long index=lastPeriodIndex(billingPeriodType, billingPeriodLength, activationDate, date);
+			OffsetDateTime endDate=endDate(billingPeriodType, billingPeriodLength, activationDate, index + 1);
+			if(next==null || endDate.isBefore(next))
+				next=endDate;
 		}
-		case WEEK: {
-			
-			streamData = Stream.iterate(
-	        		activationDate.plusDays((7 * billingPeriodLength)-1),          
-	                d -> d.plusDays(7 * billingPeriodLength)                    
-	        );
-	       break;
+		return next;
+	}
+	
+	/*
+	 * Checks the billingPeriodType and billingPeriodLength of a RecurringChargePeriod 
+	 */
+	private void validate(RecurringPeriod billingPeriodType, Integer billingPeriodLength) throws IllegalArgumentException{
+		if (billingPeriodType == null || billingPeriodLength == null || billingPeriodLength <= 0) {
+	    	throw new IllegalArgumentException("Error in the RecurringChargePeriod: billingPeriodType must not be null, billingPeriodLength must be greater than 0");
+	    }
+		if (!isSupported(billingPeriodType)) {
+			throw new IllegalArgumentException("Error in the RecurringChargePeriod: unexpected value for billingPeriodType");
 		}
-		case MONTH: {
-
-			streamData = Stream.iterate(
-			        1, i -> i + 1
-			).map(i -> activationDate.plusMonths(i * billingPeriodLength).minusDays(1));
-	       break;
+	}
+	
+	private boolean isSupported(RecurringPeriod billingPeriodType) {
+		switch (billingPeriodType) {
+		case DAY:
+		case WEEK:
+		case MONTH:
+		case YEAR:
+			return true;
+		default:
+			return false;
 		}
-		case YEAR: {
-
-			streamData = Stream.iterate(
-			        1, i -> i + 1
-			).map(i -> activationDate.plusYears(i * billingPeriodLength).minusDays(1));
-	       break;
+	}
+	
+	/*
+	 * Returns the END date of the index-th billingPeriod (the first one has index 1 and starts at the activation date)
+	 */
+	private OffsetDateTime endDate(RecurringPeriod billingPeriodType, int billingPeriodLength, OffsetDateTime activationDate, long index) {
+		switch (billingPeriodType) {
+		case DAY:
+			return activationDate.plusDays((index * billingPeriodLength) - 1);
+		case WEEK:
+			return activationDate.plusDays((index * 7 * billingPeriodLength) - 1);
+		case MONTH:
+			return activationDate.plusMonths(index * billingPeriodLength).minusDays(1);
+		case YEAR:
+			return activationDate.plusYears(index * billingPeriodLength).minusDays(1);
+		default:
+			throw new IllegalArgumentException("Error in the RecurringChargePeriod: unexpected value for billingPeriodType");
 		}
+	}
+	
+	/*
+	 * Returns the index of the last billingPeriod whose END date is not after the date (0 if the first billingPeriod ends after the date).
+	 * The index is estimated from the distance between the activation date and the date, then corrected comparing the actual END dates 
+	 * (the END dates increase with the index, so at most a couple of corrections are needed).
+	 */
+	private long lastPeriodIndex(RecurringPeriod billingPeriodType, int billingPeriodLength, OffsetDateTime activationDate, OffsetDateTime date) {
+		long estimate;
+		switch (billingPeriodType) {
+		case DAY:
+			estimate = (ChronoUnit.DAYS.between(activationDate, date) + 1) / billingPeriodLength;
+			break;
+		case WEEK:
+			estimate = (ChronoUnit.DAYS.between(activationDate, date) + 1) / (7L * billingPeriodLength);
+			break;
+		case MONTH:
+			estimate = ChronoUnit.MONTHS.between(activationDate, date) / billingPeriodLength;
+			break;
+		case YEAR:
+			estimate = ChronoUnit.YEARS.between(activationDate, date) / billingPeriodLength;
+			break;
 		default:
 			throw new IllegalArgumentException("Error in the RecurringChargePeriod: unexpected value for billingPeriodType");
 		}
 		
-		endDates=streamData
-	            .takeWhile(d -> !d.isAfter(limitDate))
-	            .toList(); // immutable → create new ArrayList
-	    
-		Logger.debug("Per {} {} billingPeriod END dates:{}",billingPeriodLength,billingPeriodType,endDates);
-	    
-	    return new ArrayList<>(endDates);
+		long index = Math.max(0, estimate);
+		while (index > 0 && endDate(billingPeriodType, billingPeriodLength, activationDate, index).isAfter(date)) {
+			index--;
+		}
+		while (!endDate(billingPeriodType, billingPeriodLength, activationDate, index + 1).isAfter(date)) {
+			index++;
+		}
+		return index;
+	}
+	
+	/*
+	 * Generates the END dates of the billingPeriods with index in [first, last]
+	 */
+	private List<OffsetDateTime> generateEndDates(RecurringPeriod billingPeriodType, int billingPeriodLength, OffsetDateTime activationDate, long first, long last) {
+		List<OffsetDateTime> endDates=new ArrayList<OffsetDateTime>((int) Math.max(0, Math.min(last - first + 1, Integer.MAX_VALUE)));
+		for (long index = Math.max(1, first); index <= last; index++) {
+			endDates.add(endDate(billingPeriodType, billingPeriodLength, activationDate, index));
+		}
+		return endDates;
 	}
 	
 	/**
@@ -212,6 +293,95 @@ public class BillCycleService{
 		return billingPeriods;
 	}
 	
+	/**
+	 * Calculates only the billingPeriods (i.e., startDate - endDate) of the BillCycle that overlap the window [from, to], considering the billingPeriod end dates 
+	 * of several {@link RecurringChargePeriod} (e.g., one for each ProductPrice of a Product) and an initial activation date. 
+	 * The result is the same of calculating all the billingPeriods up to 'to' with {@link #calculateBillingPeriods(List, OffsetDateTime)} and keeping the ones 
+	 * that end after 'from' and start before 'to', but only the end dates in the window are generated: the sorted end dates of each {@link RecurringChargePeriod}
+	 * are merged with a k-way merge and the start date of the first billingPeriod comes from the last end date before the window.
+	 * 
+	 * @param recurringChargePeriods The {@link RecurringChargePeriod}(s) from which the billingPeriod end dates are calculated
+	 * @param activationDate An activation date from which the billingPeriod(s) are calculated
+	 * @param from The lower limit of the window
+	 * @param to The upper limit of the window
+	 * @return A list of {@link TimePeriod} representing the billingPeriod(s) of the BillCycle that overlap the window, sorted
+	 * @throws IllegalArgumentException If a {@link RecurringChargePeriod} contains unexpected values
+	 */
+	public List<TimePeriod> calculateBillingPeriods(@NotNull List<RecurringChargePeriod> recurringChargePeriods, @NotNull OffsetDateTime activationDate, 
+			@NotNull OffsetDateTime from, @NotNull OffsetDateTime to) throws IllegalArgumentException{
+		
+		Logger.debug("Calculation of the billingPeriods in [{} - {}] from activationDate {}", from, to, activationDate);
+		
+		List<TimePeriod> billingPeriods=new ArrayList<TimePeriod>();
+		
+		if (activationDate.isAfter(to)) {
+	        Logger.warn("activationDate '{}' is after limitDate '{}'", activationDate, to);
+	        return billingPeriods;
+	    }
+		
+		// The first billingPeriod in the window starts the day after the last end date (of any RecurringChargePeriod) before the window
+		OffsetDateTime startDate=activationDate;
+		List<List<OffsetDateTime>> endDatesInWindow=new ArrayList<List<OffsetDateTime>>(recurringChargePeriods.size());
+		
+		for(RecurringChargePeriod rcp: recurringChargePeriods) {
+			OffsetDateTime lastEndDate=calculateLastBillingPeriodEndDate(rcp, activationDate, from);
+			if(lastEndDate!=null && !lastEndDate.plusDays(1).isBefore(startDate)) {
+				startDate=lastEndDate.plusDays(1);
+			}
+			endDatesInWindow.add(calculateBillingPeriodEndDates(rcp, activationDate, from, to));
+		}
+		
+		for(OffsetDateTime endDate: mergeSorted(endDatesInWindow)) {
+			if(startDate.isBefore(to)) {
+				TimePeriod tp=new TimePeriod();
+				tp.setStartDateTime(startDate);
+				tp.setEndDateTime(endDate);
+				
+				billingPeriods.add(tp);
+			}
+			
+			startDate=endDate.plusDays(1);
+		}
+		
+		return billingPeriods;
+	}
+	
+	/*
+	 * K-way merge of sorted lists of dates, removing the duplicates 
+	 */
+	private List<OffsetDateTime> mergeSorted(List<List<OffsetDateTime>> sortedLists) {
+		List<OffsetDateTime> merged=new ArrayList<OffsetDateTime>();
+		
+		if(sortedLists.size()==1) {
+			return sortedLists.get(0);
+		}
+		
+		// Each element of the queue is a cursor {list index, position in the list}, ordered by the date it points to
+		PriorityQueue<int[]> cursors=new PriorityQueue<int[]>(Math.max(1, sortedLists.size()),
+				(c1, c2) -> sortedLists.get(c1[0]).get(c1[1]).compareTo(sortedLists.get(c2[0]).get(c2[1])));
+		
+		for(int i=0; i<sortedLists.size(); i++) {
+			if(!sortedLists.get(i).isEmpty())
+				cursors.add(new int[] {i, 0});
+		}
+		
+		while(!cursors.isEmpty()) {
+			int[] cursor=cursors.poll();
+			List<OffsetDateTime> list=sortedLists.get(cursor[0]);
+			OffsetDateTime date=list.get(cursor[1]);
+			
+			if(merged.isEmpty() || !merged.get(merged.size()-1).equals(date))
+				merged.add(date);
+			
+			if(cursor[1]+1 < list.size()) {
+				cursor[1]++;
+				cursors.add(cursor);
+			}
+		}
+		
+		return merged;
+	}
+	
 	/**
 	 * Checks if a bill date falls within a billingPeriod
 	 * 
@@ -3,11 +3,18 @@ package it.eng.dome.billing.scheduler.service;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,15 +25,21 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
 import it.eng.dome.billing.scheduler.client.BillingProxyApiClient;
+import it.eng.dome.billing.scheduler.client.ReactiveBillingProxyApiClient;
 import it.eng.dome.billing.scheduler.controller.BillingSchedulerController;
-import it.eng.dome.billing.scheduler.exception.BillingSchedulerValidationException;
+import it.eng.dome.billing.scheduler.exception.BadTmfDataException;
+import it.eng.dome.billing.scheduler.model.DownstreamService;
+import it.eng.dome.billing.scheduler.model.RunCheckpoint;
+import it.eng.dome.billing.scheduler.model.RunProgress;
+import it.eng.dome.billing.scheduler.model.Shard;
+import it.eng.dome.billing.scheduler.utils.BoundedExecutor;
 import it.eng.dome.billing.scheduler.validator.TMFEntityValidator;
-import it.eng.dome.brokerage.api.ProductCatalogManagementApis;
 import it.eng.dome.brokerage.api.ProductInventoryApis;
 import it.eng.dome.brokerage.api.fetch.FetchUtils;
 import it.eng.dome.brokerage.billing.utils.ProductOfferingPriceUtils;
 import it.eng.dome.brokerage.model.BillCycleSpecification;
 import it.eng.dome.brokerage.model.Invoice;
+import it.eng.dome.brokerage.model.RecurringChargePeriod;
 import it.eng.dome.tmforum.tmf620.v4.ApiException;
 import it.eng.dome.tmforum.tmf620.v4.model.ProductOfferingPrice;
 import it.eng.dome.tmforum.tmf637.v4.model.Product;
@@ -39,6 +52,7 @@ import jakarta.validation.constraints.NotNull;
 public class BillingSchedulerService {
 
 	private final Logger logger = LoggerFactory.getLogger(BillingSchedulerService.class);
+	private final static int PRODUCTS_PAGE_SIZE = 100;
 	private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss dd/MM/yyyy");
 	
 	@Autowired
@@ -50,22 +64,56 @@ public class BillingSchedulerService {
 	@Autowired
 	private BillingProxyApiClient billingProxyApiClient;
 	
+	@Autowired
+	private ReactiveBillingProxyApiClient reactiveBillingProxyApiClient;
+	
 	@Autowired
 	private TmfPersistenceService tmfPersistenceService;
 	
 	@Value("${persistence.monthsBack}")
 	private int monthsBack;
 	
+	@Value("${billing.streaming}")
+	private boolean billingProxyStreaming;
+	
+	@Autowired
+	private BillCycleExecutorFactory billCycleExecutorFactory;
+	
+	@Autowired
+	private DownstreamLimiter downstreamLimiter;
+	
+	@Autowired
+	private ProductOfferingPriceCache productOfferingPriceCache;
+	
+	@Autowired
+	private TmfDedupIndex tmfDedupIndex;
+	
+	@Autowired
+	private InvoiceLedger invoiceLedger;
+	
+	@Autowired
+	private PersistenceQueue persistenceQueue;
+	
+	@Autowired
+	private RunJournal runJournal;
+	
+	@Autowired
+	private IncrementalRunState incrementalRunState;
+	
+	@Autowired
+	private DueDateIndex dueDateIndex;
+	
+	@Autowired
+	private RunRegistry runRegistry;
+	
+	@Autowired
+	private ShardAssignment shardAssignment;
+	
 	private final ProductInventoryApis productInventoryApis;
-	private final ProductCatalogManagementApis productCatalogManagementApis;
 	
-	private List<TimePeriod> billingPeriods = new ArrayList<TimePeriod>();
-
-	public BillingSchedulerService(ProductInventoryApis productInventoryApis, 
-			ProductCatalogManagementApis productCatalogManagementApis) {
+	public BillingSchedulerService(ProductInventoryApis productInventoryApis) {
 		
 		this.productInventoryApis = productInventoryApis;
-		this.productCatalogManagementApis = productCatalogManagementApis;
 	}
 
 	
@@ -77,79 +125,463 @@ public class BillingSchedulerService {
 	 * To guarantee that no bills are missed during the Billing Scheduler (BS) processing, the calculation of the bills 
 	 * will be performed for all the billingPeriods that overlap the interval between date of the BS processing and going back of 'persistence.monthsBack' 
 	 * All the {@link Invoice} returned by the invocation of the BillingProxy are persisted in the DOME persistence layer, if not yet done.
+	 * If 'billing.scheduler.parallelism' is greater than 1, the Products are processed concurrently by that number of workers 
+	 * (platform or virtual threads, see {@link BillCycleExecutorFactory}); the invoices of a single Product are always persisted in the order of its billingPeriods.
 	 *  
 	 * @param limitDate The limit date to stop the calculation of the BillCycle 
 	 * @param billCycleSpecificationEnabled true if the use of BillCycleSpecification has been enabled, false otherwise
 	 * @throws it.eng.dome.tmforum.tmf637.v4.ApiException 
 	 */
 	public void manageBillCycle(OffsetDateTime limitDate, boolean billCycleSpecificationEnabled) throws it.eng.dome.tmforum.tmf637.v4.ApiException{
+		manageBillCycle(limitDate, billCycleSpecificationEnabled, false);
+	}
+	
+	/**
+	 * Starts the management of BillCycle as {@link #manageBillCycle(OffsetDateTime, boolean)}. If resume is true and the last run has been interrupted
+	 * (e.g., by a restart), that run is resumed from its last checkpoint in the {@link RunJournal}, with its limit date, instead of starting a new run.
+	 *  
+	 * @param limitDate The limit date to stop the calculation of the BillCycle (ignored if a run is resumed)
+	 * @param billCycleSpecificationEnabled true if the use of BillCycleSpecification has been enabled, false otherwise
+	 * @param resume true to resume the last run, if interrupted
+	 * @throws it.eng.dome.tmforum.tmf637.v4.ApiException 
+	 */
+	public void manageBillCycle(OffsetDateTime limitDate, boolean billCycleSpecificationEnabled, boolean resume) throws it.eng.dome.tmforum.tmf637.v4.ApiException{
 
-		logger.info("Starting management of BillCycle at {}", limitDate.format(formatter));
-		
 		if(billCycleSpecificationEnabled) {
+			logger.info("Starting management of BillCycle at {}", limitDate.format(formatter));
 			calculateBillCycleFromBillCycleSpecs(limitDate);
+			return;
+		}
+		
+		RunCheckpoint checkpoint = resume ? runJournal.getInterruptedRun() : null;
+		if(checkpoint != null) {
+			Shard shard = shardAssignment.assignRun();
+			// the processed Products are positions in TMF637: if the shards have been rebalanced, the skipped positions may hold Products of the new shard
+			if(!shard.equals(checkpoint.shard())) {
+				logger.info("Resuming the run {} of the BillCycle at {} from the first Product: shard {} assigned instead of {}", 
+						checkpoint.runId(), checkpoint.limitDate().format(formatter), shard, checkpoint.shard());
+				runBillCycle(checkpoint.runId(), checkpoint.limitDate(), 0, null, null, shard);
+				return;
+			}
+			// the positions are meaningful only if the Products before the checkpoint are still the same (no stable sort in TMF637)
+			if(!isCheckpointPositionValid(checkpoint)) {
+				logger.info("Resuming the run {} of the BillCycle at {} from the first Product: Product '{}' not found at position {}", 
+						checkpoint.runId(), checkpoint.limitDate().format(formatter), checkpoint.lastProductId(), checkpoint.processedProducts());
+				runBillCycle(checkpoint.runId(), checkpoint.limitDate(), 0, null, null, shard);
+				return;
+			}
+			logger.info("Resuming the run {} of the BillCycle at {} after {} Products (last Product '{}')", 
+					checkpoint.runId(), checkpoint.limitDate().format(formatter), checkpoint.processedProducts(), checkpoint.lastProductId());
+			runBillCycle(checkpoint.runId(), checkpoint.limitDate(), checkpoint.processedProducts(), checkpoint.lastProductId(), null, shard);
 		}
-		else {	
-			// Get all ACTIVE Product (100 at time)
-			FetchUtils.streamAll(
-					productInventoryApis::listProducts,  // method reference
+		else {
+			logger.info("Starting management of BillCycle at {}", limitDate.format(formatter));
+			runBillCycle(UUID.randomUUID().toString(), limitDate, 0, null, null, shardAssignment.assignRun());
+		}
+	}
+	
+	/**
+	 * Starts the management of BillCycle from the scheduled task as {@link #manageBillCycle(OffsetDateTime, boolean, boolean)}. 
+	 * If no run has to be resumed and the {@link DueDateIndex} is usable, only the Products with a billingPeriod ended at the limit date 
+	 * are retrieved from TMF637 and processed, instead of all the active Products (unless the shards have been rebalanced since the last run).
+	 *  
+	 * @param limitDate The limit date to stop the calculation of the BillCycle
+	 * @param resume true to resume the last run, if interrupted
+	 * @throws it.eng.dome.tmforum.tmf637.v4.ApiException 
+	 */
+	public void manageScheduledBillCycle(OffsetDateTime limitDate, boolean resume) throws it.eng.dome.tmforum.tmf637.v4.ApiException{
+		
+		Shard previousShard = shardAssignment.getLastShard();
+		Shard shard = shardAssignment.assignRun();
+		boolean rebalanced = shardAssignment.isDynamic() && !shard.equals(previousShard);
+		
+		if((!resume || runJournal.getInterruptedRun() == null) && dueDateIndex.isUsable(limitDate) && !rebalanced) {
+			List<String> dueProductIds = dueDateIndex.getDueProductIds(limitDate).stream()
+					.filter(shard::owns)
+					.toList();
+			logger.info("Starting management of BillCycle at {} for {} due Products", limitDate.format(formatter), dueProductIds.size());
+			runBillCycle(UUID.randomUUID().toString(), limitDate, 0, null, dueProductIds, shard);
+			return;
+		}
+		
+		manageBillCycle(limitDate, false, resume);
+	}
+	
+	/*
+	 * Method to run the BillCycle for all the active Products, skipping the first 'processedProducts' ones (already processed by an interrupted run), 
+	 * or only for the due Products of the DueDateIndex, if not null (such runs are not journaled). Only the Products of the shard are processed.
+	 */
+	private void runBillCycle(String runId, OffsetDateTime limitDate, long processedProducts, String lastProductId, List<String> dueProductIds, 
+			Shard shard) throws it.eng.dome.tmforum.tmf637.v4.ApiException {
+		
+		if(shard.count() > 1) {
+			logger.info("Processing of the Products of shard {}", shard);
+		}
+		
+		RunProgress progress = runRegistry.current();
+		productOfferingPriceCache.startRun();
+		invoiceLedger.startRun(limitDate.minusMonths(monthsBack));
+		tmfDedupIndex.startRun(limitDate.minusMonths(monthsBack));
+		incrementalRunState.startRun(processedProducts > 0 || dueProductIds != null);
+		dueDateIndex.startRun(processedProducts == 0 && dueProductIds == null);
+		if(persistenceQueue.isEnabled()) {
+			startPersistence();
+		}
+		
+		Stream<Product> products;
+		if(dueProductIds == null) {
+			runJournal.begin(runId, limitDate, processedProducts, lastProductId, shard);
+			
+			// Get all ACTIVE Product (100 at time), starting after the Products already processed
+			int skip = (int) processedProducts;
+			products = FetchUtils.streamAll(
+					(FetchUtils.ListedFetcher<Product>) (f, flt, size, offset) ->
+							downstreamLimiter.call(DownstreamService.TMF637_INVENTORY, () -> productInventoryApis.listProducts(f, flt, size, offset + skip)),
 			        null,                     	// fields
 			        Map.of("status","active"),	// filter
-			        100                         // pageSize
-				)
-				.forEach(product -> { 
-					List<Invoice> invoices=new ArrayList<Invoice>();
-					
-					try {
-						
-						logger.info("##### Calculation of billingPeriods from ProductPrice components of Product {} #####",product.getId());
-						// Validate Product
-						tmfEntityValidator.validateProduct(product);
-						
-						// Calculate the billingPeriods of a Product that falls within the limit date.
-						List<TimePeriod> billingPeriods=calculateBillingPeriod(product,limitDate);
-						
-						// Gets all the billingPeriods that overlap the interval [ limitDate - monthsBack  ,  limitDate ]
-						List<TimePeriod> filteredBillingPeriods=filterBillingPeriods(billingPeriods, limitDate, monthsBack);
-						String filteredPeriodsString = filteredBillingPeriods.stream()
-							    .map(bp -> "[" + bp.getStartDateTime() + " - " + bp.getEndDateTime() + "]")
-							    .collect(Collectors.joining(", "));
-
-						logger.debug("Filtered BillingPeriods back of {} months: {}", monthsBack, filteredPeriodsString);
+			        PRODUCTS_PAGE_SIZE          // pageSize
+				);
+		}
+		else {
+			progress.setProductsTotal(dueProductIds.size());
+			
+			// Get only the due Products, one at time
+			products = dueProductIds.stream()
+					.map(this::getDueProduct)
+					.filter(Objects::nonNull);
+		}
+		Iterator<Product> iterator = products.iterator();
+		
+		// The ProductOfferingPrices of each page of Products are retrieved in bulk, in background, before the Products are processed
+		ExecutorService prefetchExecutor = billCycleExecutorFactory.newPrefetchExecutor();
+		try {
+			long pageIndex = 0;
+			int parallelism = billCycleExecutorFactory.getParallelism();
+			if(parallelism <= 1) {
+				while (iterator.hasNext() && !progress.isCancelRequested()) {
+					List<Product> page = nextPage(iterator, shard, prefetchExecutor);
+					for (Product product : owned(page, shard)) {
+						manageProductBillCycle(product, limitDate);
+					}
+					runJournal.pageCompleted(runId, pageIndex++, page.size(), page.get(page.size() - 1).getId());
+				}
+			}
+			else {
+				logger.info("Processing of the Products with {} parallel workers", parallelism);
+				
+				// At most 2 * parallelism Products are submitted and not yet completed, to not page the whole inventory in memory
+				try (BoundedExecutor executor = new BoundedExecutor(billCycleExecutorFactory.newProductExecutor(), 2 * parallelism)) {
+					while (iterator.hasNext() && !progress.isCancelRequested()) {
+						List<Product> page = nextPage(iterator, shard, prefetchExecutor);
+						List<Product> ownedProducts = owned(page, shard);
+						long index = pageIndex++;
+						String pageLastProductId = page.get(page.size() - 1).getId();
+						AtomicInteger remaining = new AtomicInteger(ownedProducts.size());
 						
-						// Invocation of BillingProxy for bills calculation
-						for(TimePeriod billingPeriod:filteredBillingPeriods) {
-							List<Invoice> invoicesInBillingPeriod= billingProxyApiClient.billingBill(product.getId(), billingPeriod);
-							logger.debug("Number of invoices generated for Product {} in billingPeriod [{}-{}]:{}",
-									product.getId(), billingPeriod.getStartDateTime(),billingPeriod.getEndDateTime(),invoicesInBillingPeriod.size());
-							invoices.addAll(invoicesInBillingPeriod);
+						if (ownedProducts.isEmpty())
+							runJournal.pageCompleted(runId, index, page.size(), pageLastProductId);
+						for (Product product : ownedProducts) {
+							executor.submit(() -> {
+								try {
+									manageProductBillCycle(product, limitDate);
+								} finally {
+									// the page is checkpointed when all its Products have been processed
+									if (remaining.decrementAndGet() == 0)
+										runJournal.pageCompleted(runId, index, page.size(), pageLastProductId);
+								}
+							});
 						}
-						
-						logger.debug("Total numeber of invoices generated in the interval [{}-{}]: {}",limitDate.minusMonths(monthsBack),limitDate,invoices.size());
-						
-						//Invoke persistence service to store invoices
-						List<Invoice> persistedInvoices= tmfPersistenceService.persistAllInvoices(invoices, product.getId());
-						String persistedInvoiceIdsString = persistedInvoices.stream()
-							    .map(invoice -> invoice.getCustomerBill().getId())
-							    .collect(Collectors.joining(", "));
-						logger.debug("Persisted Invoices: ", persistedInvoiceIdsString);
-						
-					}catch(Exception e) {
-						logger.error(e.getMessage());
-						logger.error("Product '{}' skipped",product.getId());
-						return;
-					
 					}
+				} catch (InterruptedException e) {
+					logger.warn("Management of BillCycle interrupted");
+					Thread.currentThread().interrupt();
 				}
-				);	
+			}
+			
+			// The run completes when all the queued invoices have been persisted
+			if(persistenceQueue.isEnabled()) {
+				awaitPersistence();
+			}
+			
+			// A paused run is not completed: it can be resumed from its checkpoint
+			if(progress.isCancelRequested()) {
+				logger.warn("Management of BillCycle at {} {}", limitDate.format(formatter), progress.isResumable() ? "paused" : "cancelled");
+				if(!progress.isResumable())
+					runJournal.abandon(runId);
+			}
+			else if(!Thread.currentThread().isInterrupted()) {
+				runJournal.complete(runId);
+				incrementalRunState.endRun();
+				dueDateIndex.endRun(limitDate);
+			}
+		} finally {
+			prefetchExecutor.shutdown();
+			tmfDedupIndex.endRun();
 		}
+		
+		productOfferingPriceCache.logStatistics();
+		logger.info("Management of BillCycle at {} completed", limitDate.format(formatter));
 	}
 	
 	/*
-	 * Method to calculate the billingPeriods of a Product that falls within the limit date.
-	 * The billingPeriods are calculated considering all the billingPeriod end dates of its ProductPrice(s)
+	 * Method to check that the last Product processed by an interrupted run is still at the position of its checkpoint in TMF637, 
+	 * i.e., that the Products inserted or removed since then do not shift the Products to skip
+	 */
+	private boolean isCheckpointPositionValid(RunCheckpoint checkpoint) throws it.eng.dome.tmforum.tmf637.v4.ApiException {
+		if(checkpoint.processedProducts() <= 0)
+			return true;
+		if(checkpoint.lastProductId() == null)
+			return false;
+		
+		int offset = (int) checkpoint.processedProducts() - 1;
+		List<Product> products = downstreamLimiter.call(DownstreamService.TMF637_INVENTORY, 
+				() -> productInventoryApis.listProducts(null, Map.of("status","active"), 1, offset));
+		return products != null && !products.isEmpty() && checkpoint.lastProductId().equals(products.get(0).getId());
+	}
+	
+	/*
+	 * Method to retrieve a due Product from TMF637. The Products not found or not active anymore are removed from the DueDateIndex, 
+	 * the Products that cannot be retrieved stay due for the next run.
+	 */
+	private Product getDueProduct(@NotNull String productId) {
+		try {
+			Product product = downstreamLimiter.call(DownstreamService.TMF637_INVENTORY, () -> productInventoryApis.getProduct(productId, null));
+			if(product != null && product.getStatus() != null && "active".equalsIgnoreCase(product.getStatus().getValue()))
+				return product;
+			
+			logger.info("Product '{}' not active anymore: removed from the due-date index", productId);
+			dueDateIndex.remove(productId);
+		}catch(it.eng.dome.tmforum.tmf637.v4.ApiException e) {
+			if(e.getCode() == 404) {
+				logger.info("Product '{}' not found: removed from the due-date index", productId);
+				dueDateIndex.remove(productId);
+			}else {
+				logger.error("Error retrieving the Product '{}': {}", productId, e.getMessage());
+			}
+		}
+		return null;
+	}
+	
+	/*
+	 * Method to hand to the PersistenceQueue the invoices left by a previous execution, persisted only by a run holding the run lock
+	 */
+	private void startPersistence() {
+		try {
+			persistenceQueue.startRun();
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while queuing the invoices left by the previous execution");
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/*
+	 * Method to wait for the persistence of the invoices queued in the PersistenceQueue
+	 */
+	private void awaitPersistence() {
+		try {
+			persistenceQueue.awaitIdle();
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while waiting for the persistence of the queued invoices");
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/*
+	 * Method to get the next page of Products from TMF637 and to start the bulk retrieval of the ProductOfferingPrices referred by the Products of the shard.
+	 * The page contains also the Products of the other shards, so that the checkpoints of the RunJournal count the positions in TMF637.
+	 */
+	private List<Product> nextPage(Iterator<Product> iterator, Shard shard, Executor prefetchExecutor) {
+		List<Product> page = new ArrayList<Product>(PRODUCTS_PAGE_SIZE);
+		while (iterator.hasNext() && page.size() < PRODUCTS_PAGE_SIZE) {
+			page.add(iterator.next());
+		}
+		
+		Set<String> popIds = new LinkedHashSet<String>();
+		for (Product product : owned(page, shard)) {
+			if (product.getProductPrice() != null) {
+				for (ProductPrice pp : product.getProductPrice()) {
+					if (pp != null && pp.getProductOfferingPrice() != null && pp.getProductOfferingPrice().getId() != null)
+						popIds.add(pp.getProductOfferingPrice().getId());
+				}
+			}
+		}
+		productOfferingPriceCache.prefetch(popIds, prefetchExecutor);
+		
+		return page;
+	}
+	
+	/*
+	 * Method to get the Products of a page that belong to the shard
 	 */
-	private List<TimePeriod> calculateBillingPeriod(@NotNull Product product, @NotNull OffsetDateTime limitDate) throws IllegalArgumentException, ApiException, BillingSchedulerValidationException {
+	private List<Product> owned(List<Product> page, Shard shard) {
+		if (shard.count() <= 1)
+			return page;
+		return page.stream().filter(product -> shard.owns(product.getId())).toList();
+	}
+	
+	/*
+	 * Method to manage the BillCycle of a single Product: calculates its billingPeriods, invokes the BillingProxy for each of them (in order) 
+	 * and persists the generated invoices. Any error is logged and the Product is skipped. 
+	 */
+	private void manageProductBillCycle(@NotNull Product product, @NotNull OffsetDateTime limitDate) {
+		RunProgress progress = runRegistry.current();
+		progress.productSeen();
+		
+		try {
+			
+			logger.info("##### Calculation of billingPeriods from ProductPrice components of Product {} #####",product.getId());
+			// Validate Product
+			tmfEntityValidator.validateProduct(product);
+			
+			// Calculate the billingPeriods of a Product that overlap the interval [ limitDate - monthsBack  ,  limitDate ]
+			List<RecurringChargePeriod> recurringChargePeriods=getRecurringChargePeriods(product);
+			List<TimePeriod> filteredBillingPeriods=calculateBillingPeriod(product, recurringChargePeriods, limitDate);
+			dueDateIndex.update(product.getId(), billCycleService.calculateNextBillingPeriodEndDate(recurringChargePeriods, product.getStartDate(), limitDate));
+			String filteredPeriodsString = filteredBillingPeriods.stream()
+				    .map(bp -> "[" + bp.getStartDateTime() + " - " + bp.getEndDateTime() + "]")
+				    .collect(Collectors.joining(", "));
+
+			logger.debug("Filtered BillingPeriods back of {} months: {}", monthsBack, filteredPeriodsString);
+			
+			// Incremental run: the Product is skipped if not modified and without billingPeriods ended since the last run
+			if(!incrementalRunState.isDue(product, filteredBillingPeriods, limitDate)) {
+				logger.info("Product '{}' not modified and without new billingPeriods since the last run: skipped", product.getId());
+				progress.productSkipped();
+				return;
+			}
+			
+			// Write-behind: the Product is recorded as processed only when the workers of the PersistenceQueue have persisted all its invoices
+			PersistenceQueue.ProductBatch batch=null;
+			if(persistenceQueue.isEnabled()) {
+				batch=persistenceQueue.openBatch(product.getId(), persisted -> productPersisted(product, filteredBillingPeriods, limitDate, persisted));
+			}
+			
+			try {
+				billProduct(product, filteredBillingPeriods, limitDate, batch);
+			}catch(Exception e) {
+				if(batch!=null)
+					batch.abort();
+				throw e;
+			}
+			
+			if(batch!=null)
+				batch.close();
+			else
+				incrementalRunState.recordProcessed(product, filteredBillingPeriods, limitDate);
+			progress.productProcessed();
+			
+		}catch(Exception e) {
+			logger.error(e.getMessage());
+			logger.error("Product '{}' skipped",product.getId());
+			progress.productSkipped();
+			// the Product is processed again by the next run
+			dueDateIndex.update(product.getId(), limitDate);
+		}
+	}
+	
+	/*
+	 * Method invoked when the invoices of a Product queued in the PersistenceQueue have been processed: if any of them has not been persisted,
+	 * the Product is not recorded as processed and is billed again by the next run
+	 */
+	private void productPersisted(@NotNull Product product, @NotNull List<TimePeriod> filteredBillingPeriods, @NotNull OffsetDateTime limitDate, boolean persisted) {
+		if(persisted) {
+			incrementalRunState.recordProcessed(product, filteredBillingPeriods, limitDate);
+			return;
+		}
+		
+		logger.error("Invoices of Product '{}' not persisted: the Product is billed again by the next run", product.getId());
+		dueDateIndex.update(product.getId(), limitDate);
+	}
+	
+	/*
+	 * Method to invoke the BillingProxy for the billingPeriods of a Product and to persist the generated invoices, or to queue them in the batch of the Product (write-behind)
+	 */
+	private void billProduct(@NotNull Product product, @NotNull List<TimePeriod> filteredBillingPeriods, @NotNull OffsetDateTime limitDate, 
+			PersistenceQueue.ProductBatch batch) throws Exception {
+		List<Invoice> invoices=new ArrayList<Invoice>();
+		
+		if(billingProxyStreaming) {
+			streamProductInvoices(product, filteredBillingPeriods, batch);
+			return;
+		}
+		
+		// Invocation of BillingProxy for bills calculation, with a single request for all the billingPeriods (the invoices are collected in the order of the billingPeriods)
+		List<List<Invoice>> invoicesByBillingPeriod= billingProxyApiClient.billingBills(product.getId(), filteredBillingPeriods);
+		if(invoicesByBillingPeriod==null) {
+			// Batch API not supported by the BillingProxy: one request per billingPeriod
+			if(reactiveBillingProxyApiClient.isEnabled()) {
+				// each request fails after the timeout: the whole Product cannot take longer than a timeout per billingPeriod
+				invoicesByBillingPeriod= reactiveBillingProxyApiClient.billingBills(product.getId(), filteredBillingPeriods)
+						.block(reactiveBillingProxyApiClient.getTimeout().multipliedBy(Math.max(1, filteredBillingPeriods.size())));
+			}else {
+				invoicesByBillingPeriod= billCycleExecutorFactory.fanOut(filteredBillingPeriods, 
+						billingPeriod -> billingProxyApiClient.billingBill(product.getId(), billingPeriod));
+			}
+		}
+		
+		for(int i=0; i<filteredBillingPeriods.size(); i++) {
+			TimePeriod billingPeriod=filteredBillingPeriods.get(i);
+			List<Invoice> invoicesInBillingPeriod=invoicesByBillingPeriod.get(i);
+			logger.debug("Number of invoices generated for Product {} in billingPeriod [{}-{}]:{}",
+					product.getId(), billingPeriod.getStartDateTime(),billingPeriod.getEndDateTime(),invoicesInBillingPeriod.size());
+			invoices.addAll(invoicesInBillingPeriod);
+		}
+		
+		logger.debug("Total numeber of invoices generated in the interval [{}-{}]: {}",limitDate.minusMonths(monthsBack),limitDate,invoices.size());
+		runRegistry.current().invoicesGenerated(invoices.size());
+		
+		// Write-behind: the invoices are persisted by the workers of the PersistenceQueue
+		if(batch!=null) {
+			for(Invoice invoice: invoices) {
+				batch.add(invoice);
+			}
+			return;
+		}
+		
+		//Invoke persistence service to store invoices
+		List<Invoice> persistedInvoices= tmfPersistenceService.persistAllInvoices(invoices, product.getId());
+		String persistedInvoiceIdsString = persistedInvoices.stream()
+			    .map(invoice -> invoice.getCustomerBill().getId())
+			    .collect(Collectors.joining(", "));
+		logger.debug("Persisted Invoices: {}", persistedInvoiceIdsString);
+	}
+	
+	/*
+	 * Method to invoke the BillingProxy for each billingPeriod of a Product in streaming mode (the billingPeriods are fanned out as the other independent calls 
+	 * of a Product): each invoice is persisted as soon as it is decoded from the response, so that only one invoice at time per billingPeriod is kept in memory
+	 */
+	private void streamProductInvoices(@NotNull Product product, @NotNull List<TimePeriod> billingPeriods, PersistenceQueue.ProductBatch batch) throws Exception {
+		AtomicInteger persisted = new AtomicInteger();
+		
+		List<Integer> invoicesByBillingPeriod= billCycleExecutorFactory.fanOut(billingPeriods, billingPeriod -> {
+			int invoicesInBillingPeriod= billingProxyApiClient.billingBill(product.getId(), billingPeriod, invoice -> {
+				if(batch!=null) {
+					batch.add(invoice);
+					return;
+				}
+				Invoice persistedInvoice= tmfPersistenceService.persistInvoice(invoice, product.getId());
+				if(persistedInvoice!=null) {
+					persisted.incrementAndGet();
+					logger.debug("Persisted Invoice: {}", persistedInvoice.getCustomerBill().getId());
+				}
+			});
+			logger.debug("Number of invoices generated for Product {} in billingPeriod [{}-{}]:{}",
+					product.getId(), billingPeriod.getStartDateTime(),billingPeriod.getEndDateTime(),invoicesInBillingPeriod);
+			return invoicesInBillingPeriod;
+		});
+		int total = invoicesByBillingPeriod.stream().mapToInt(Integer::intValue).sum();
+		runRegistry.current().invoicesGenerated(total);
+		
+		if(batch!=null)
+			logger.info("... {} Invoices generated and queued for Product {}", total, product.getId());
+		else
+			logger.info("... {} Invoices persisted for Product {} out of {} generated", persisted.get(), product.getId(), total);
+	}
+	
+	/*
+	 * Method to get, for all the ProductPrice of a Product, the RecurringChargePeriod defining the end dates of the billingPeriod(s) 
+	 */
+	private List<RecurringChargePeriod> getRecurringChargePeriods(@NotNull Product product) throws Exception {
 
 		logger.info("Calculation of current billingPeriod for Product '{}'", product.getId());
 		
@@ -157,28 +589,38 @@ public class BillingSchedulerService {
 		List<ProductPrice> productPrices=product.getProductPrice();
 		logger.debug("...ProductPrice(s) found: {}", productPrices.size());
 		
-		//Variable to collect, for all the ProductPrice of the Product, all the end dates of the billingPeriod(s) 
-		Set<OffsetDateTime> billingPeriodsEndDates=new HashSet<OffsetDateTime>();
+		//Variable to collect, for all the ProductPrice of the Product, the RecurringChargePeriod defining the end dates of the billingPeriod(s) 
+		List<RecurringChargePeriod> recurringChargePeriods=new ArrayList<RecurringChargePeriod>();
 		
-		// Get billingPeriod end dates for each ProductPrice
+		// Validate ProductPrice(s)
 		for(ProductPrice pp: productPrices) {
-			
-			// Validate ProductPrice
 			tmfEntityValidator.validateProductPrice(pp, product.getId());
-			
-			ProductOfferingPrice pop= ProductOfferingPriceUtils.getProductOfferingPrice(pp.getProductOfferingPrice().getId(), productCatalogManagementApis);
+		}
+		
+		// Get the ProductOfferingPrice of each ProductPrice
+		List<ProductOfferingPrice> pops= billCycleExecutorFactory.fanOut(productPrices, 
+				pp -> getProductOfferingPrice(pp.getProductOfferingPrice().getId()));
+		
+		// Get the RecurringChargePeriod for each ProductPrice
+		for(ProductOfferingPrice pop: pops) {
 			
 			// Validate POP
 			tmfEntityValidator.validateProductOfferingPrice(pop);
 	
-			List<OffsetDateTime> popBillingPeriodEndDates= billCycleService.calculateBillingPeriodEndDates(ProductOfferingPriceUtils.getRecurringChargePeriod(pop), product.getStartDate(), limitDate);
-
-			billingPeriodsEndDates.addAll(popBillingPeriodEndDates);
+			recurringChargePeriods.add(ProductOfferingPriceUtils.getRecurringChargePeriod(pop));
 		}
 		
-		if(!billingPeriodsEndDates.isEmpty())
-			// Get all billingPeriods for the Product from the calculated billingPeriod end dates of the ProductPrice(s)
-			billingPeriods= billCycleService.calculateBillingPeriods(new ArrayList<OffsetDateTime>(billingPeriodsEndDates), product.getStartDate());
+		return recurringChargePeriods;
+	}
+	
+	/*
+	 * Method to calculate the billingPeriods of a Product that overlap the interval [ limitDate - monthsBack  ,  limitDate ].
+	 * The billingPeriods are calculated considering all the billingPeriod end dates of its ProductPrice(s)
+	 */
+	private List<TimePeriod> calculateBillingPeriod(@NotNull Product product, @NotNull List<RecurringChargePeriod> recurringChargePeriods, @NotNull OffsetDateTime limitDate) throws Exception {
+		
+		// Get only the billingPeriods for the Product that overlap the interval, merging the billingPeriod end dates of the ProductPrice(s)
+		List<TimePeriod> billingPeriods= billCycleService.calculateBillingPeriods(recurringChargePeriods, product.getStartDate(), limitDate.minusMonths(monthsBack), limitDate);
 		
 		if(!billingPeriods.isEmpty()) {
 			String periodsString = billingPeriods.stream()
@@ -196,6 +638,13 @@ public class BillingSchedulerService {
 	}
 
 	
+	/*
+	 * Method to retrieve a ProductOfferingPrice from the cache in front of TMF620
+	 */
+	private ProductOfferingPrice getProductOfferingPrice(@NotNull String popId) throws ApiException, BadTmfDataException {
+		return productOfferingPriceCache.get(popId);
+	}
+	
 	/*
 	 * TODO: Method not implemented yet. BillCycleSpecification not supported yet.
 	 * @param date  
@@ -205,28 +654,5 @@ public class BillingSchedulerService {
 		throw new UnsupportedOperationException("Method not supported yet!");
 	}
 	
-	/*
-	 * Method to retrieve the billingPeriods that overlap the interval [ limitDate - monthsBack  ,  limitDate ]
-	 * @param billingPeriods A list of TimePeriod representing the billingPeriods
-	 * @param limitDate An OffsedDateTime representing the upper limit of the interval
-	 * @param monthBack integer representing the number of month to go back (i.e., the lower limit of the interval)
-	 */
-	private List<TimePeriod> filterBillingPeriods(
-	        List<TimePeriod> billingPeriods,
-	        OffsetDateTime limitDate,
-	        int monthsBack) {
-
-	    OffsetDateTime threshold = limitDate.minusMonths(monthsBack);
-
-	    return billingPeriods.stream()
-	            // The period is valid if it overlaps the interval [threshold, limitDate]
-	            .filter(bp ->
-	                bp.getEndDateTime().isAfter(threshold) &&
-	                bp.getStartDateTime().isBefore(limitDate)
-	            )
-	            .collect(Collectors.toList());
-	}
-	
-	
 	
 }
\ No newline at end of file
@@ -0,0 +1,313 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientResponseException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.eng.dome.billing.scheduler.model.DownstreamService;
+import it.eng.dome.billing.scheduler.utils.AdaptiveConcurrencyLimit;
+import jakarta.validation.constraints.NotNull;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Limits the number of concurrent calls to each {@link DownstreamService}, so that the workers of a BillCycle
+ * (potentially thousands of virtual threads) never overload TMF or the BillingProxy.
+ * With 'downstream.adaptive.enabled' the limit of each service starts from its configured max concurrency and is adapted to the service
+ * (see {@link AdaptiveConcurrencyLimit}): it grows while the latency of the service is stable and backs off on 5xx, 429 and timeouts.
+ * The current limit of each service is exported as the 'billing.scheduler.downstream.limit' metric.
+ * The blocking calls made by the workers of a work-stealing pool ('forkjoin' executor) are managed blocks of the pool (see {@link ForkJoinPool#managedBlock}),
+ * so that the pool keeps its parallelism while its workers wait for a permit or for the response.
+ */
+@Component
+public class DownstreamLimiter {
+
+	private static final Logger logger = LoggerFactory.getLogger(DownstreamLimiter.class);
+	private static final String METRIC_PREFIX = "billing.scheduler.downstream";
+
+	private final Map<DownstreamService, AdaptiveConcurrencyLimit> limits = new EnumMap<DownstreamService, AdaptiveConcurrencyLimit>(DownstreamService.class);
+
+	/**
+	 * A blocking call to a downstream service
+	 *
+	 * @param <T> the type of the result
+	 * @param <E> the type of the exception thrown by the call
+	 */
+	@FunctionalInterface
+	public interface DownstreamCall<T, E extends Exception> {
+		T call() throws E;
+	}
+
+	/*
+	 * A blocking call executed as a managed block of the ForkJoinPool of the current worker
+	 */
+	private static final class ManagedCall<T, E extends Exception> implements ForkJoinPool.ManagedBlocker {
+		
+		private final DownstreamCall<T, E> call;
+		private volatile boolean done;
+		private T result;
+		private Exception failure;
+		
+		private ManagedCall(DownstreamCall<T, E> call) {
+			this.call = call;
+		}
+		
+		@Override
+		public boolean block() {
+			try {
+				result = call.call();
+			} catch (Exception e) {
+				failure = e;
+			}
+			done = true;
+			return true;
+		}
+		
+		@Override
+		public boolean isReleasable() {
+			return done;
+		}
+		
+		@SuppressWarnings("unchecked")
+		private T get() throws E {
+			if (failure instanceof RuntimeException e)
+				throw e;
+			if (failure != null)
+				throw (E) failure;
+			return result;
+		}
+	}
+
+	/*
+	 * A permit of a non-blocking call: the outcome of the call is recorded by the call and the permit is released once, on any termination 
+	 * of the call (also when it is cancelled while waiting for the permit or before subscribing to the call)
+	 */
+	private static final class ReactivePermit {
+		
+		private final AdaptiveConcurrencyLimit limit;
+		private boolean acquired;
+		private boolean released;
+		private long start;
+		private boolean succeeded;
+		private Throwable failure;
+		
+		private ReactivePermit(AdaptiveConcurrencyLimit limit) {
+			this.limit = limit;
+		}
+		
+		private boolean acquire() throws InterruptedException {
+			limit.acquire();
+			synchronized (this) {
+				acquired = true;
+				start = System.nanoTime();
+				// cancelled while waiting: the permit is returned at once
+				if (released)
+					limit.onIgnored();
+				return !released;
+			}
+		}
+		
+		private synchronized void succeeded() {
+			succeeded = true;
+		}
+		
+		private synchronized void failed(Throwable e) {
+			failure = e;
+		}
+		
+		private synchronized void release() {
+			if (released)
+				return;
+			released = true;
+			if (!acquired)
+				return;
+			
+			if (failure != null && isOverload(failure)) {
+				limit.onDropped();
+			} else if (succeeded) {
+				limit.onSuccess(System.nanoTime() - start);
+			} else {
+				limit.onIgnored();
+			}
+		}
+	}
+
+	/**
+	 * Constructor with fixed limits
+	 */
+	public DownstreamLimiter(int tmf620MaxConcurrency, int tmf637MaxConcurrency, int tmf678MaxConcurrency, int billingProxyMaxConcurrency) {
+		this(tmf620MaxConcurrency, tmf637MaxConcurrency, tmf678MaxConcurrency, billingProxyMaxConcurrency, false, 1, 1, null);
+	}
+
+	@Autowired
+	public DownstreamLimiter(@Value("${downstream.tmf620_max_concurrency}") int tmf620MaxConcurrency,
+			@Value("${downstream.tmf637_max_concurrency}") int tmf637MaxConcurrency,
+			@Value("${downstream.tmf678_max_concurrency}") int tmf678MaxConcurrency,
+			@Value("${downstream.billing_proxy_max_concurrency}") int billingProxyMaxConcurrency,
+			@Value("${downstream.adaptive.enabled}") boolean adaptive,
+			@Value("${downstream.adaptive.min_concurrency}") int minConcurrency,
+			@Value("${downstream.adaptive.max_concurrency}") int maxConcurrency,
+			MeterRegistry meterRegistry) {
+
+		limits.put(DownstreamService.TMF620_CATALOG, newLimit(tmf620MaxConcurrency, adaptive, minConcurrency, maxConcurrency));
+		limits.put(DownstreamService.TMF637_INVENTORY, newLimit(tmf637MaxConcurrency, adaptive, minConcurrency, maxConcurrency));
+		limits.put(DownstreamService.TMF678_BILLING, newLimit(tmf678MaxConcurrency, adaptive, minConcurrency, maxConcurrency));
+		limits.put(DownstreamService.BILLING_PROXY, newLimit(billingProxyMaxConcurrency, adaptive, minConcurrency, maxConcurrency));
+
+		if (meterRegistry != null) {
+			limits.forEach((service, limit) -> {
+				Gauge.builder(METRIC_PREFIX + ".limit", limit, AdaptiveConcurrencyLimit::getLimit).tag("service", service.name()).register(meterRegistry);
+				Gauge.builder(METRIC_PREFIX + ".in_flight", limit, AdaptiveConcurrencyLimit::getInFlight).tag("service", service.name()).register(meterRegistry);
+			});
+		}
+
+		logger.info("Max concurrent calls to downstream services: {}", limits);
+	}
+
+	/**
+	 * Executes a call to a downstream service, waiting if the max number of concurrent calls to that service has been reached
+	 *
+	 * @param service the {@link DownstreamService} invoked by the call
+	 * @param call the call to execute
+	 * @return the result of the call
+	 * @throws E the exception thrown by the call
+	 * @throws CancellationException if the caller is interrupted while waiting
+	 */
+	public <T, E extends Exception> T call(@NotNull DownstreamService service, @NotNull DownstreamCall<T, E> call) throws E {
+		if (!ForkJoinTask.inForkJoinPool())
+			return limitedCall(service, call);
+		
+		// a worker of a work-stealing pool: the pool can start a compensating worker while this one is blocked
+		ManagedCall<T, E> managedCall = new ManagedCall<T, E>(() -> limitedCall(service, call));
+		try {
+			ForkJoinPool.managedBlock(managedCall);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while waiting to call " + service);
+		}
+		return managedCall.get();
+	}
+	
+	/*
+	 * Executes a call to a downstream service, waiting for a permit of its limit
+	 */
+	private <T, E extends Exception> T limitedCall(DownstreamService service, DownstreamCall<T, E> call) throws E {
+		AdaptiveConcurrencyLimit limit = limits.get(service);
+		try {
+			limit.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while waiting to call " + service);
+		}
+
+		long start = System.nanoTime();
+		Exception failure = null;
+		try {
+			return call.call();
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			if (failure == null) {
+				limit.onSuccess(System.nanoTime() - start);
+			} else if (isOverload(failure)) {
+				limit.onDropped();
+				logger.debug("{} overloaded, concurrent calls limited to {}: {}", service, limit.getLimit(), failure.getMessage());
+			} else {
+				limit.onIgnored();
+			}
+		}
+	}
+
+	/**
+	 * Executes a non-blocking call to a downstream service, subscribing to it when the max number of concurrent calls to that service allows it.
+	 * The wait for the permit runs on the bounded elastic scheduler, never on the event-loop threads, and the permit is held until the call terminates.
+	 * The permit is acquired and released by the same resource ({@link Mono#using}), so it is released on any termination, including a cancellation
+	 * or a timeout arriving between the acquisition of the permit and the subscription to the call.
+	 *
+	 * @param service the {@link DownstreamService} invoked by the call
+	 * @param call the call to execute
+	 * @return a {@link Mono} of the result of the call
+	 */
+	public <T> Mono<T> callReactive(@NotNull DownstreamService service, @NotNull Mono<T> call) {
+		AdaptiveConcurrencyLimit limit = limits.get(service);
+
+		return Mono.using(() -> new ReactivePermit(limit),
+				permit -> Mono.fromCallable(permit::acquire)
+						.subscribeOn(Schedulers.boundedElastic())
+						.filter(acquired -> acquired)
+						.flatMap(acquired -> call)
+						.doOnSuccess(result -> permit.succeeded())
+						.doOnError(permit::failed),
+				ReactivePermit::release);
+	}
+
+	/**
+	 * Gets the number of calls that can be currently started towards a downstream service
+	 *
+	 * @param service the {@link DownstreamService}
+	 * @return the number of available permits
+	 */
+	public int getAvailablePermits(@NotNull DownstreamService service) {
+		return limits.get(service).getAvailable();
+	}
+
+	/**
+	 * Gets the current max number of concurrent calls to a downstream service
+	 *
+	 * @param service the {@link DownstreamService}
+	 * @return the current limit
+	 */
+	public int getLimit(@NotNull DownstreamService service) {
+		return limits.get(service).getLimit();
+	}
+
+	private static AdaptiveConcurrencyLimit newLimit(int maxConcurrency, boolean adaptive, int minAdaptive, int maxAdaptive) {
+		int initial = Math.max(1, maxConcurrency);
+		if (!adaptive)
+			return AdaptiveConcurrencyLimit.fixed(initial);
+		return new AdaptiveConcurrencyLimit(initial, Math.min(initial, minAdaptive), Math.max(initial, maxAdaptive));
+	}
+
+	/*
+	 * Checks if a call failed because the service is overloaded: an HTTP status 5xx or 429 (TMF APIs or BillingProxy) or a timeout, in the exception or in its causes
+	 */
+	private static boolean isOverload(Throwable failure) {
+		for (Throwable t = failure; t != null; t = t.getCause() != t ? t.getCause() : null) {
+			if (t instanceof SocketTimeoutException || t instanceof HttpTimeoutException || t instanceof ConnectException || t instanceof TimeoutException)
+				return true;
+			if (t instanceof RestClientResponseException e)
+				return isOverloadStatus(e.getStatusCode().value());
+			if (t instanceof WebClientResponseException e)
+				return isOverloadStatus(e.getStatusCode().value());
+			if (t instanceof it.eng.dome.tmforum.tmf620.v4.ApiException e && e.getCode() > 0)
+				return isOverloadStatus(e.getCode());
+			if (t instanceof it.eng.dome.tmforum.tmf637.v4.ApiException e && e.getCode() > 0)
+				return isOverloadStatus(e.getCode());
+			if (t instanceof it.eng.dome.tmforum.tmf678.v4.ApiException e && e.getCode() > 0)
+				return isOverloadStatus(e.getCode());
+		}
+		return false;
+	}
+
+	private static boolean isOverloadStatus(int status) {
+		return status >= 500 || status == 429;
+	}
+
+}
@@ -0,0 +1,275 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Index of the next billingPeriod END date (epoch day, UTC) of each active Product ('billing.scheduler.due_index' properties),
+ * so that the scheduled runs retrieve from TMF637 only the Products with a billingPeriod ended, instead of paging the whole inventory.
+ * The index is kept in two sorted primitive arrays (due dates and Product ids) and saved in 'due-date-index.bin' under 'data_dir', read back with a memory-mapped file.
+ * It is rebuilt by each run processing all the Products and used until it is older than 'max_age_hours', so that the Products created
+ * after the last rebuild are billed by the next full run.
+ */
+@Component
+public class DueDateIndex {
+
+	private static final Logger logger = LoggerFactory.getLogger(DueDateIndex.class);
+	private static final String INDEX_FILE = "due-date-index.bin";
+	private static final int MAGIC = 0x44554549;
+	private static final int VERSION = 1;
+
+	// epoch day of the Products without a next billingPeriod
+	private static final long NEVER = Long.MAX_VALUE;
+
+	private final boolean enabled;
+	private final long maxAgeSeconds;
+	private final Path indexFile;
+
+	// the index, sorted by due date
+	private volatile long[] dueDays = new long[0];
+	private volatile String[] productIds = new String[0];
+	private volatile long builtAt;
+
+	// the changes of the current run
+	private final Map<String, Long> updates = new ConcurrentHashMap<String, Long>();
+	private final Set<String> removed = ConcurrentHashMap.newKeySet();
+	private boolean rebuild;
+
+	public DueDateIndex(@Value("${billing.scheduler.due_index.enabled}") boolean enabled,
+			@Value("${billing.scheduler.due_index.max_age_hours}") long maxAgeHours,
+			@Value("${billing.scheduler.due_index.data_dir}") String dataDir) {
+
+		this.enabled = enabled;
+		this.maxAgeSeconds = Math.max(1, maxAgeHours) * 3600;
+		this.indexFile = Paths.get(dataDir, INDEX_FILE);
+
+		if (enabled) {
+			load();
+		}
+	}
+
+	/**
+	 * @return true if the index is enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Checks if the index can be used by a run, i.e., it has been built and it is not older than 'max_age_hours'
+	 *
+	 * @param limitDate the limit date of the run
+	 * @return true if the run can process only the due Products
+	 */
+	public boolean isUsable(@NotNull OffsetDateTime limitDate) {
+		return enabled && builtAt > 0 && limitDate.toEpochSecond() - builtAt < maxAgeSeconds;
+	}
+
+	/**
+	 * Gets the Products with the next billingPeriod ended at a date
+	 *
+	 * @param limitDate the date
+	 * @return the identifiers of the Products due at the date, in order of due date
+	 */
+	public synchronized List<String> getDueProductIds(@NotNull OffsetDateTime limitDate) {
+		long[] days = dueDays;
+		String[] ids = productIds;
+
+		// binary search of the first position with due day after the limit date
+		long day = epochDay(limitDate);
+		int low = 0;
+		int high = days.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (days[middle] <= day)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return Arrays.asList(Arrays.copyOf(ids, low));
+	}
+
+	/**
+	 * Begins a run
+	 *
+	 * @param rebuild true if the run processes all the Products, so that the index is replaced by the Products seen by the run
+	 */
+	public synchronized void startRun(boolean rebuild) {
+		this.rebuild = rebuild;
+		updates.clear();
+		removed.clear();
+	}
+
+	/**
+	 * Sets the next billingPeriod END date of a Product
+	 *
+	 * @param productId the identifier of the Product
+	 * @param nextBillingPeriodEnd the next billingPeriod END date, or null if the Product has no next billingPeriod
+	 */
+	public void update(@NotNull String productId, OffsetDateTime nextBillingPeriodEnd) {
+		if (!enabled)
+			return;
+
+		updates.put(productId, nextBillingPeriodEnd == null ? NEVER : epochDay(nextBillingPeriodEnd));
+		removed.remove(productId);
+	}
+
+	/**
+	 * Removes a Product not active anymore from the index
+	 *
+	 * @param productId the identifier of the Product
+	 */
+	public void remove(@NotNull String productId) {
+		if (!enabled)
+			return;
+
+		updates.remove(productId);
+		removed.add(productId);
+	}
+
+	/**
+	 * Ends a run applying its changes to the index and saving it
+	 *
+	 * @param limitDate the limit date of the run
+	 */
+	public synchronized void endRun(@NotNull OffsetDateTime limitDate) {
+		if (!enabled)
+			return;
+
+		Map<String, Long> entries = new HashMap<String, Long>();
+		if (!rebuild) {
+			for (int i = 0; i < productIds.length; i++) {
+				entries.put(productIds[i], dueDays[i]);
+			}
+			entries.keySet().removeAll(removed);
+		}
+		entries.putAll(updates);
+
+		freeze(entries, rebuild ? limitDate.toEpochSecond() : builtAt);
+		save();
+		logger.info("Due-date index {}: {} Products", rebuild ? "rebuilt" : "updated", productIds.length);
+	}
+
+	/*
+	 * Replaces the index with the entries sorted by due date
+	 */
+	private void freeze(Map<String, Long> entries, long builtAt) {
+		@SuppressWarnings("unchecked")
+		Map.Entry<String, Long>[] sorted = entries.entrySet().toArray(new Map.Entry[0]);
+		Arrays.sort(sorted, Map.Entry.comparingByValue());
+
+		long[] days = new long[sorted.length];
+		String[] ids = new String[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			days[i] = sorted[i].getValue();
+			ids[i] = sorted[i].getKey();
+		}
+
+		this.productIds = ids;
+		this.dueDays = days;
+		this.builtAt = builtAt;
+	}
+
+	private static long epochDay(OffsetDateTime date) {
+		return date.atZoneSameInstant(ZoneOffset.UTC).toLocalDate().toEpochDay();
+	}
+
+	/*
+	 * Reads the index from the memory-mapped file: magic, version, build time, size, due days, then the Product ids (length and UTF-8 bytes)
+	 */
+	private void load() {
+		if (!Files.exists(indexFile))
+			return;
+
+		try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				logger.warn("Due-date index {} not valid: it will be rebuilt by the next full run", indexFile.toAbsolutePath());
+				return;
+			}
+
+			long built = buffer.getLong();
+			int size = buffer.getInt();
+			long[] days = new long[size];
+			buffer.asLongBuffer().get(days);
+			buffer.position(buffer.position() + size * Long.BYTES);
+
+			String[] ids = new String[size];
+			for (int i = 0; i < size; i++) {
+				byte[] id = new byte[buffer.getInt()];
+				buffer.get(id);
+				ids[i] = new String(id, StandardCharsets.UTF_8);
+			}
+
+			this.productIds = ids;
+			this.dueDays = days;
+			this.builtAt = built;
+			logger.info("Due-date index {} loaded: {} Products", indexFile.toAbsolutePath(), size);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Due-date index {} not readable, it will be rebuilt by the next full run: {}", indexFile.toAbsolutePath(), e.getMessage());
+		}
+	}
+
+	/*
+	 * Writes the index in a temporary file, forces it to the disk and replaces the index file
+	 */
+	private void save() {
+		String[] ids = productIds;
+		long[] days = dueDays;
+		byte[][] encodedIds = new byte[ids.length][];
+		int size = 3 * Integer.BYTES + Long.BYTES + days.length * Long.BYTES;
+		for (int i = 0; i < ids.length; i++) {
+			encodedIds[i] = ids[i].getBytes(StandardCharsets.UTF_8);
+			size += Integer.BYTES + encodedIds[i].length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(MAGIC).putInt(VERSION).putLong(builtAt).putInt(days.length);
+		for (long day : days) {
+			buffer.putLong(day);
+		}
+		for (byte[] id : encodedIds) {
+			buffer.putInt(id.length).put(id);
+		}
+		buffer.flip();
+
+		Path tmp = indexFile.resolveSibling(INDEX_FILE + ".tmp");
+		try {
+			Files.createDirectories(indexFile.toAbsolutePath().getParent());
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			}
+			Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Error saving the due-date index {}: {}", indexFile.toAbsolutePath(), e.getMessage());
+		}
+	}
+
+}
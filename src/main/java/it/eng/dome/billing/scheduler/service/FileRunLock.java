@@ -0,0 +1,117 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import it.eng.dome.billing.scheduler.model.RunLease;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * {@link RunLock} on a file system shared by the instances (e.g., a shared volume): each lock is a file '&lt;name&gt;.lock' in 'billing.scheduler.run_lock.lock_dir'
+ * with the last fencing token, the expiry time and the owner of its lease. The file is read and updated holding an exclusive OS lock on it,
+ * so the acquisitions of the instances are serialized. The fencing token is kept when the lease is released, so it never decreases.
+ */
+@Component
+public class FileRunLock implements RunLock {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileRunLock.class);
+	private static final String LOCK_EXTENSION = ".lock";
+
+	private record State(long fencingToken, long expiresAt, String owner) {}
+
+	private final Path lockDir;
+
+	public FileRunLock(@Value("${billing.scheduler.run_lock.lock_dir}") String lockDir) {
+		this.lockDir = Paths.get(lockDir);
+	}
+
+	@Override
+	public RunLease tryAcquire(@NotNull String lockName, @NotNull String owner, @NotNull Duration ttl) {
+		State state = update(lockName, current -> {
+			long now = System.currentTimeMillis();
+			if (current.owner() != null && !current.owner().equals(owner) && current.expiresAt() > now)
+				return null;
+			return new State(current.fencingToken() + 1, now + ttl.toMillis(), owner);
+		});
+		return state == null ? null : new RunLease(lockName, owner, state.fencingToken(), state.expiresAt());
+	}
+
+	@Override
+	public RunLease renew(@NotNull RunLease lease, @NotNull Duration ttl) {
+		State state = update(lease.lockName(), current -> {
+			if (current.fencingToken() != lease.fencingToken() || !lease.owner().equals(current.owner()))
+				return null;
+			return new State(current.fencingToken(), System.currentTimeMillis() + ttl.toMillis(), lease.owner());
+		});
+		return state == null ? null : new RunLease(lease.lockName(), lease.owner(), state.fencingToken(), state.expiresAt());
+	}
+
+	@Override
+	public void release(@NotNull RunLease lease) {
+		update(lease.lockName(), current -> {
+			if (current.fencingToken() != lease.fencingToken())
+				return null;
+			return new State(current.fencingToken(), 0, null);
+		});
+	}
+
+	/*
+	 * Reads the state of a lock and replaces it with the result of the function (unless null) holding the OS lock on the file.
+	 * Returns the new state, or null if not replaced. The method is synchronized since the OS lock is held per process, not per thread.
+	 */
+	private synchronized State update(String lockName, UnaryOperator<State> function) {
+		Path lockFile = lockDir.resolve(lockName + LOCK_EXTENSION);
+		try {
+			Files.createDirectories(lockDir);
+			try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+					FileLock fileLock = channel.lock()) {
+
+				State next = function.apply(read(channel));
+				if (next != null) {
+					ByteBuffer buffer = ByteBuffer.wrap((next.fencingToken() + "\t" + next.expiresAt() + "\t" + (next.owner() != null ? next.owner() : ""))
+							.getBytes(StandardCharsets.UTF_8));
+					channel.truncate(0);
+					channel.position(0);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					channel.force(true);
+				}
+				return next;
+			}
+		} catch (IOException e) {
+			logger.error("Error accessing the run lock {}: {}", lockFile.toAbsolutePath(), e.getMessage());
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private State read(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+		channel.position(0);
+		while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			// reads the whole file
+		}
+
+		String[] fields = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).split("\t", 3);
+		if (fields.length < 3) {
+			return new State(0, 0, null);
+		}
+		return new State(Long.parseLong(fields[0].trim()), Long.parseLong(fields[1].trim()), fields[2].isBlank() ? null : fields[2].trim());
+	}
+
+}
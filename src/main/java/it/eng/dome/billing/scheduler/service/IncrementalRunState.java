@@ -0,0 +1,188 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.OffsetDateTime;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.eng.dome.billing.scheduler.model.ProductBillingState;
+import it.eng.dome.tmforum.tmf637.v4.model.Product;
+import it.eng.dome.tmforum.tmf678.v4.model.TimePeriod;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * State of the incremental runs ('billing.scheduler.incremental' properties). For each Product it remembers the end of the last closed billingPeriod billed 
+ * and the hash of the Product content ({@link ProductBillingState}), so that an incremental run processes only the Products that are new, 
+ * have been modified in TMF637 or have a billingPeriod ended since the last run.
+ * Every 'full_sweep_every' runs all the Products are processed (full sweep). The state is saved in 'product-state.json' under 'data_dir' at the end of each run.
+ */
+@Component
+public class IncrementalRunState {
+	
+	private static final Logger logger = LoggerFactory.getLogger(IncrementalRunState.class);
+	private static final String STATE_FILE = "product-state.json";
+	
+	private record Snapshot(long runsSinceFullSweep, Map<String, ProductBillingState> products) {}
+	
+	private final ObjectMapper objectMapper;
+	private final boolean enabled;
+	private final int fullSweepEvery;
+	private final Path stateFile;
+	
+	private final Map<String, ProductBillingState> products = new ConcurrentHashMap<String, ProductBillingState>();
+	private final Set<String> seen = ConcurrentHashMap.newKeySet();
+	private long runsSinceFullSweep;
+	private volatile boolean fullSweep = true;
+	private boolean partial;
+	
+	public IncrementalRunState(ObjectMapper objectMapper, @Value("${billing.scheduler.incremental.enabled}") boolean enabled,
+			@Value("${billing.scheduler.incremental.full_sweep_every}") int fullSweepEvery,
+			@Value("${billing.scheduler.incremental.data_dir}") String dataDir) {
+		
+		this.objectMapper = objectMapper;
+		this.enabled = enabled;
+		this.fullSweepEvery = Math.max(1, fullSweepEvery);
+		this.stateFile = Paths.get(dataDir, STATE_FILE);
+		
+		if (enabled) {
+			load();
+		}
+	}
+	
+	/**
+	 * Begins a run, deciding if it is a full sweep. Only the runs that see all the Products count for the cadence of the full sweeps:
+	 * a partial run is never a scheduled full sweep, so it does not postpone the next one.
+	 * 
+	 * @param partial true if the run does not see all the Products (e.g., a resumed run or a run of the due Products only)
+	 * @return true if all the Products must be processed by the run
+	 */
+	public synchronized boolean startRun(boolean partial) {
+		this.partial = partial;
+		seen.clear();
+		if (partial) {
+			fullSweep = !enabled || products.isEmpty();
+		} else {
+			fullSweep = !enabled || products.isEmpty() || runsSinceFullSweep + 1 >= fullSweepEvery;
+			runsSinceFullSweep = fullSweep ? 0 : runsSinceFullSweep + 1;
+		}
+		
+		if (enabled)
+			logger.info("{} run: {} Products known", fullSweep ? "Full sweep" : "Incremental", products.size());
+		return fullSweep;
+	}
+	
+	/**
+	 * Checks if a Product must be processed by the current run
+	 * 
+	 * @param product the {@link Product}
+	 * @param billingPeriods the billingPeriods of the Product in the window of the run
+	 * @param limitDate the limit date of the run
+	 * @return true if the run is a full sweep, the Product is new or modified, or one of its billingPeriods ended since the last run
+	 */
+	public boolean isDue(@NotNull Product product, @NotNull List<TimePeriod> billingPeriods, @NotNull OffsetDateTime limitDate) {
+		seen.add(product.getId());
+		if (fullSweep)
+			return true;
+		
+		ProductBillingState state = products.get(product.getId());
+		if (state == null || !contentHash(product).equals(state.contentHash()))
+			return true;
+		
+		return lastClosedPeriodEnd(billingPeriods, limitDate) > state.lastPeriodEnd();
+	}
+	
+	/**
+	 * Records a Product processed successfully by the current run, i.e., with all its invoices persisted
+	 * 
+	 * @param product the {@link Product}
+	 * @param billingPeriods the billingPeriods of the Product billed by the run
+	 * @param limitDate the limit date of the run
+	 */
+	public void recordProcessed(@NotNull Product product, @NotNull List<TimePeriod> billingPeriods, @NotNull OffsetDateTime limitDate) {
+		if (!enabled)
+			return;
+		
+		products.put(product.getId(), new ProductBillingState(lastClosedPeriodEnd(billingPeriods, limitDate), contentHash(product)));
+	}
+	
+	/**
+	 * Ends a run saving the state. At the end of a full sweep (not partial) the Products not found anymore (e.g., not active) are forgotten.
+	 */
+	public synchronized void endRun() {
+		if (!enabled)
+			return;
+		
+		if (fullSweep && !partial) {
+			products.keySet().retainAll(seen);
+		}
+		save();
+	}
+	
+	/*
+	 * End (epoch seconds) of the last billingPeriod closed at the limit date, or 0 if none
+	 */
+	private static long lastClosedPeriodEnd(List<TimePeriod> billingPeriods, OffsetDateTime limitDate) {
+		long last = 0;
+		for (TimePeriod billingPeriod : billingPeriods) {
+			if (billingPeriod.getEndDateTime() != null && !billingPeriod.getEndDateTime().isAfter(limitDate))
+				last = Math.max(last, billingPeriod.getEndDateTime().toEpochSecond());
+		}
+		return last;
+	}
+	
+	/*
+	 * SHA-256 (hex) of the Product content: any change of the Product in TMF637 (e.g., its ProductPrices, status or lastUpdate) changes the hash
+	 */
+	private static String contentHash(Product product) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(product.toJson().getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+	
+	private void load() {
+		if (!Files.exists(stateFile))
+			return;
+		
+		try {
+			Snapshot snapshot = objectMapper.readValue(stateFile.toFile(), Snapshot.class);
+			runsSinceFullSweep = snapshot.runsSinceFullSweep();
+			if (snapshot.products() != null)
+				products.putAll(snapshot.products());
+			logger.info("Incremental state {} loaded: {} Products", stateFile.toAbsolutePath(), products.size());
+		} catch (IOException e) {
+			logger.warn("Incremental state {} not readable, the next run will be a full sweep: {}", stateFile.toAbsolutePath(), e.getMessage());
+		}
+	}
+	
+	private void save() {
+		Path tmp = stateFile.resolveSibling(STATE_FILE + ".tmp");
+		try {
+			Files.createDirectories(stateFile.toAbsolutePath().getParent());
+			objectMapper.writeValue(tmp.toFile(), new Snapshot(runsSinceFullSweep, products));
+			Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Error saving the incremental state {}: {}", stateFile.toAbsolutePath(), e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,228 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import it.eng.dome.billing.scheduler.utils.InvoiceKeys;
+import jakarta.annotation.PreDestroy;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Local ledger of the invoices already persisted in TMF, stored in an append-only file ('invoice-ledger.log') under the directory 'ledger.data_dir'.
+ * Each line records the fingerprint of a CustomerBill (see {@link InvoiceKeys}) and the end of its billingPeriod (epoch seconds).
+ * The {@link TmfPersistenceService} consults the ledger before any TMF lookup, so that the invoices re-calculated at each run for the 'persistence.monthsBack' 
+ * window cost no TMF678 call when they have been persisted by a previous run.
+ * On a cold start (no ledger file), the ledger is rebuilt at the first run from the CustomerBills and ACBRs in TMF; at each run the entries whose billingPeriod 
+ * ends before the window are compacted out of the file.
+ */
+@Component
+public class InvoiceLedger {
+	
+	private static final Logger logger = LoggerFactory.getLogger(InvoiceLedger.class);
+	private static final String LEDGER_FILE = "invoice-ledger.log";
+	private static final int PAGE_SIZE = 100;
+	
+	private final TmfDataRetriever tmfDataRetriever;
+	private final Path ledgerFile;
+	
+	// fingerprint -> end of the billingPeriod (epoch seconds)
+	private final Map<String, Long> entries = new ConcurrentHashMap<String, Long>();
+	
+	private volatile boolean enabled;
+	private boolean reconciled;
+	private BufferedWriter writer;
+	
+	public InvoiceLedger(TmfDataRetriever tmfDataRetriever, @Value("${ledger.enabled}") boolean enabled, @Value("${ledger.data_dir}") String dataDir) {
+		this.tmfDataRetriever = tmfDataRetriever;
+		this.ledgerFile = Paths.get(dataDir, LEDGER_FILE);
+		this.enabled = enabled;
+		
+		if (enabled) {
+			try {
+				Files.createDirectories(ledgerFile.getParent() != null ? ledgerFile.getParent() : Paths.get("."));
+				load();
+				writer = Files.newBufferedWriter(ledgerFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				logger.info("Invoice ledger {} loaded with {} entries", ledgerFile.toAbsolutePath(), entries.size());
+			} catch (IOException e) {
+				this.enabled = false;
+				logger.warn("Invoice ledger {} not available, the invoices will be searched in TMF: {}", ledgerFile.toAbsolutePath(), e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * @return true if the ledger is in use
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Prepares the ledger for a BillCycle run: on a cold start the ledger is reconciled with the bills in TMF, 
+	 * then the entries whose billingPeriod ends before the window of the run are removed
+	 * 
+	 * @param from the beginning of the window of the run (i.e., limitDate - monthsBack)
+	 */
+	public synchronized void startRun(@NotNull OffsetDateTime from) {
+		if (!enabled)
+			return;
+		
+		if (!reconciled) {
+			reconcile(from);
+			reconciled = true;
+		}
+		
+		long threshold = from.toEpochSecond();
+		int before = entries.size();
+		entries.values().removeIf(end -> end <= threshold);
+		if (entries.size() < before) {
+			compact();
+		}
+	}
+	
+	/**
+	 * Checks if an invoice has already been persisted
+	 * 
+	 * @param fingerprint the fingerprint of the CustomerBill of the invoice
+	 * @return true if the invoice is in the ledger
+	 */
+	public boolean contains(String fingerprint) {
+		return enabled && fingerprint != null && entries.containsKey(fingerprint);
+	}
+	
+	/**
+	 * Records an invoice persisted in TMF (or found in TMF)
+	 * 
+	 * @param fingerprint the fingerprint of the CustomerBill of the invoice
+	 * @param billingPeriodEnd the end of the billingPeriod of the CustomerBill
+	 */
+	public void record(String fingerprint, OffsetDateTime billingPeriodEnd) {
+		if (!enabled || fingerprint == null || billingPeriodEnd == null)
+			return;
+		
+		if (entries.putIfAbsent(fingerprint, billingPeriodEnd.toEpochSecond()) == null) {
+			append(fingerprint, billingPeriodEnd.toEpochSecond());
+		}
+	}
+	
+	@PreDestroy
+	public synchronized void close() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				logger.warn("Error closing the invoice ledger: {}", e.getMessage());
+			}
+		}
+	}
+	
+	/*
+	 * Loads the entries of the ledger file, if any (a truncated last line is ignored)
+	 */
+	private void load() throws IOException {
+		if (!Files.exists(ledgerFile))
+			return;
+		
+		List<String> lines = Files.readAllLines(ledgerFile, StandardCharsets.UTF_8);
+		for (String line : lines) {
+			String[] fields = line.split(" ");
+			if (fields.length == 2) {
+				try {
+					entries.put(fields[0], Long.parseLong(fields[1]));
+				} catch (NumberFormatException e) {
+					logger.debug("Invalid line in the invoice ledger: {}", line);
+				}
+			}
+		}
+		// A ledger file already in place means this is not a cold start
+		reconciled = true;
+	}
+	
+	/*
+	 * Rebuilds the ledger from the CustomerBills in TMF whose billingPeriod ends in the window, with the Products of their ACBRs
+	 */
+	private void reconcile(OffsetDateTime from) {
+		long start = System.currentTimeMillis();
+		try {
+			Map<String, Set<String>> productsByBill = new ConcurrentHashMap<String, Set<String>>();
+			// only the window is paged from TMF; the check on the client covers the servers ignoring the filter
+			tmfDataRetriever.fetchAppliedCustomerBillRates(null, TmfDataRetriever.acbrsEndingAfter(from), PAGE_SIZE, acbr -> {
+				if (acbr.getBill() != null && acbr.getBill().getId() != null && acbr.getProduct() != null && acbr.getProduct().getId() != null
+						&& acbr.getPeriodCoverage() != null && acbr.getPeriodCoverage().getEndDateTime() != null
+						&& acbr.getPeriodCoverage().getEndDateTime().isAfter(from))
+					productsByBill.computeIfAbsent(acbr.getBill().getId(), id -> ConcurrentHashMap.newKeySet()).add(acbr.getProduct().getId());
+			});
+			
+			int before = entries.size();
+			tmfDataRetriever.fetchCustomerBills(null, TmfDataRetriever.customerBillsEndingAfter(from), PAGE_SIZE, cb -> {
+				if (cb.getBillingPeriod() == null || cb.getBillingPeriod().getEndDateTime() == null || !cb.getBillingPeriod().getEndDateTime().isAfter(from))
+					return;
+				
+				for (String productId : productsByBill.getOrDefault(cb.getId(), Set.of())) {
+					record(InvoiceKeys.customerBillFingerprint(cb, productId), cb.getBillingPeriod().getEndDateTime());
+				}
+			});
+			
+			logger.info("Invoice ledger reconciled with TMF in {} ms: {} entries added", System.currentTimeMillis() - start, entries.size() - before);
+		} catch (Exception e) {
+			logger.warn("Invoice ledger not reconciled with TMF, it will be filled by the next runs: {}", e.getMessage());
+		}
+	}
+	
+	/*
+	 * Appends an entry to the ledger file. The entry is flushed, so that it survives a crash of the process.
+	 */
+	private synchronized void append(String fingerprint, long billingPeriodEnd) {
+		try {
+			writer.write(fingerprint + " " + billingPeriodEnd);
+			writer.newLine();
+			writer.flush();
+		} catch (IOException e) {
+			logger.warn("Error writing the invoice ledger: {}", e.getMessage());
+		}
+	}
+	
+	/*
+	 * Rewrites the ledger file with the current entries only (atomic replacement of the file)
+	 */
+	private synchronized void compact() {
+		Path tmp = ledgerFile.resolveSibling(LEDGER_FILE + ".tmp");
+		try {
+			writer.close();
+			try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				for (Map.Entry<String, Long> entry : entries.entrySet()) {
+					out.write(entry.getKey() + " " + entry.getValue());
+					out.newLine();
+				}
+			}
+			Files.move(tmp, ledgerFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.debug("Invoice ledger compacted to {} entries", entries.size());
+		} catch (IOException e) {
+			logger.warn("Error compacting the invoice ledger: {}", e.getMessage());
+		} finally {
+			try {
+				writer = Files.newBufferedWriter(ledgerFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			} catch (IOException e) {
+				enabled = false;
+				logger.warn("Invoice ledger disabled, it cannot be written: {}", e.getMessage());
+			}
+		}
+	}
+
+}
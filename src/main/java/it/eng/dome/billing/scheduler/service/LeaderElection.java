@@ -0,0 +1,211 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import it.eng.dome.billing.scheduler.exception.BillingSchedulerException;
+import it.eng.dome.billing.scheduler.model.RunLease;
+import it.eng.dome.billing.scheduler.model.Shard;
+import it.eng.dome.billing.scheduler.service.RunCoordinator.BillCycleRun;
+import jakarta.annotation.PreDestroy;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Elects, for each BillCycle run, the single instance that executes it ('billing.scheduler.run_lock' properties): every run (scheduled, submitted by the REST API
+ * or executed as follow-up) is wrapped by {@link #lead(BillCycleRun)}, which acquires the {@link RunLock} when the run starts and releases it when the run ends.
+ * The instance acquiring the {@link RunLock} is the leader of the run and renews its lease every 'lease_ttl_seconds' / 3 until the end of the run,
+ * so the lock of a crashed leader is free after at most 'lease_ttl_seconds'. At the end of the run the lock is held until 'min_hold_seconds' after its acquisition
+ * (as lockAtLeastFor of ShedLock), so that the instances whose cron fires a bit later do not run the same tick again.
+ * With the static sharding there is one lock per shard ('name'-'shard_index'): the replicas of a shard elect their leader, the shards run in parallel.
+ * The run lock cannot be used with the dynamic sharding, whose instances already process distinct shards.
+ * If the lease is lost (e.g., the leader was paused longer than its lease and another instance acquired the lock), the run is paused and
+ * {@link #checkFencing()} stops the persistence of further invoices, so that a stale leader never writes concurrently with the new one.
+ * With the run lock enabled, no invoice is persisted without a lease.
+ */
+@Component
+public class LeaderElection {
+
+	private static final Logger logger = LoggerFactory.getLogger(LeaderElection.class);
+
+	private final RunLock runLock;
+	private final RunRegistry runRegistry;
+	private final String instanceId;
+	private final boolean enabled;
+	private final Duration leaseTtl;
+	private final Duration minHold;
+	private final String lockName;
+
+	private final ScheduledExecutorService renewer;
+	private ScheduledFuture<?> renewal;
+	private volatile RunLease lease;
+	private long acquiredAt;
+	private volatile boolean leaseLost;
+
+	public LeaderElection(RunLock runLock, RunRegistry runRegistry, ShardAssignment shardAssignment,
+			@Value("${billing.scheduler.run_lock.enabled}") boolean enabled,
+			@Value("${billing.scheduler.run_lock.lease_ttl_seconds}") long leaseTtlSeconds,
+			@Value("${billing.scheduler.run_lock.min_hold_seconds}") long minHoldSeconds,
+			@Value("${billing.scheduler.run_lock.name}") String lockName) {
+
+		Shard shard = shardAssignment.getConfiguredShard();
+		if (enabled && shard == null) {
+			throw new IllegalArgumentException("billing.scheduler.run_lock.enabled cannot be used with the dynamic sharding (billing.scheduler.sharding.shard_index < 0): "
+					+ "the instances already process distinct shards");
+		}
+
+		this.runLock = runLock;
+		this.runRegistry = runRegistry;
+		this.instanceId = shardAssignment.getInstanceId();
+		this.enabled = enabled;
+		this.leaseTtl = Duration.ofSeconds(Math.max(3, leaseTtlSeconds));
+		this.minHold = Duration.ofSeconds(Math.max(0, minHoldSeconds));
+		this.lockName = shard == null || shard.count() <= 1 ? lockName : lockName + "-" + shard.index();
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("run-lease-");
+		threadFactory.setDaemon(true);
+		this.renewer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+	}
+
+	/**
+	 * Wraps a run so that it is executed only by the leader: the returned run acquires the run lock when it starts and releases it when it ends.
+	 * If the lock is held by another instance, the run is skipped.
+	 *
+	 * @param run the run
+	 * @return the run executed holding the run lock
+	 */
+	public BillCycleRun lead(@NotNull BillCycleRun run) {
+		return () -> {
+			if (!acquire()) {
+				logger.info("BillCycle run skipped: the run lock '{}' is held by another instance", lockName);
+				runRegistry.skipActive("Run lock '" + lockName + "' held by another instance");
+				return;
+			}
+			try {
+				run.run();
+			} finally {
+				release();
+			}
+		};
+	}
+
+	/**
+	 * Tries to become the leader of a run
+	 *
+	 * @return true if this instance has to execute the run (always true if the run lock is not enabled)
+	 */
+	public synchronized boolean acquire() {
+		if (!enabled)
+			return true;
+
+		RunLease acquired;
+		try {
+			acquired = runLock.tryAcquire(lockName, instanceId, leaseTtl);
+		} catch (RuntimeException e) {
+			logger.error("Run lock '{}' not available: {}", lockName, e.getMessage());
+			return false;
+		}
+		if (acquired == null)
+			return false;
+
+		lease = acquired;
+		acquiredAt = System.currentTimeMillis();
+		leaseLost = false;
+		long period = leaseTtl.toMillis() / 3;
+		renewal = renewer.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+		logger.info("Instance '{}' leader of the run with fencing token {}", instanceId, acquired.fencingToken());
+		return true;
+	}
+
+	/**
+	 * Releases the leadership at the end of a run. If the run ends before 'min_hold_seconds' since the acquisition of the lock,
+	 * the lease is extended up to that time instead of being released.
+	 */
+	public synchronized void release() {
+		if (renewal != null) {
+			renewal.cancel(false);
+			renewal = null;
+		}
+		if (lease != null) {
+			long remaining = acquiredAt + minHold.toMillis() - System.currentTimeMillis();
+			try {
+				if (remaining > 0 && !leaseLost) {
+					runLock.renew(lease, Duration.ofMillis(remaining));
+					logger.info("Run lock '{}' held for {} more seconds", lockName, Duration.ofMillis(remaining).toSeconds());
+				} else {
+					runLock.release(lease);
+				}
+			} catch (RuntimeException e) {
+				logger.warn("Error releasing the run lock '{}': {}", lockName, e.getMessage());
+			}
+			lease = null;
+		}
+	}
+
+	/**
+	 * Checks, before a write to TMF, that this instance is still the leader of the run
+	 *
+	 * @throws BillingSchedulerException if the run lock is enabled and its lease is not held, has been lost or is expired
+	 */
+	public void checkFencing() throws BillingSchedulerException {
+		if (!enabled)
+			return;
+		
+		RunLease current = lease;
+		if (current == null) {
+			throw new BillingSchedulerException("Run lock '" + lockName + "' not held: the invoice is not persisted");
+		}
+		if (leaseLost || current.isExpired()) {
+			throw new BillingSchedulerException("Lease of the run lock '" + lockName + "' with fencing token " + current.fencingToken()
+					+ " lost: the invoice is not persisted");
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		release();
+		renewer.shutdownNow();
+	}
+
+	/*
+	 * Renews the lease of the run. If the lease has been lost the run is cancelled.
+	 */
+	private synchronized void renew() {
+		if (lease == null || leaseLost)
+			return;
+
+		RunLease renewed;
+		try {
+			renewed = runLock.renew(lease, leaseTtl);
+		} catch (RuntimeException e) {
+			// the lease is still valid until its expiry: the renewal is attempted again
+			logger.warn("Error renewing the run lock '{}': {}", lockName, e.getMessage());
+			return;
+		}
+
+		if (renewed == null) {
+			leaseLost = true;
+			logger.error("Lease of the run lock '{}' with fencing token {} lost: the run is cancelled", lockName, lease.fencingToken());
+			// the run is paused, not abandoned: its checkpoint is resumed by the new leader (no-op if no run is active)
+			runRegistry.pauseActive();
+			return;
+		}
+		lease = renewed;
+	}
+
+	/**
+	 * @return the current lease, null if this instance is not the leader of a run
+	 */
+	public RunLease getLease() {
+		return lease;
+	}
+
+}
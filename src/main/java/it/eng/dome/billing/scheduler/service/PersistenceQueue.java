@@ -0,0 +1,479 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.eng.dome.brokerage.model.Invoice;
+import jakarta.annotation.PreDestroy;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Write-behind queue between the calculation of the invoices and their persistence in TMF678 ('persistence.write_behind' properties).
+ * The invoices are persisted by 'workers' dedicated threads, so that a slow TMF678 does not stall the invocations of the BillingProxy.
+ * Each Product is assigned to a single worker (by hash of its id), so the invoices of a Product are persisted in order. When the queue of a worker is full
+ * ('queue_capacity' / 'workers' invoices), {@link ProductBatch#add(Invoice)} blocks the producer (backpressure).
+ * The invoices of a Product are queued in a {@link ProductBatch}, whose listener is notified when all of them have been processed, telling if they have all been persisted.
+ * Each queued invoice is appended to a spill file ('persistence-queue.log' under 'spill_dir') and marked as done once persisted: 
+ * the invoices still queued when the process stops, or not persisted because of an error, are persisted at the next start by the workers, before any new invoice.
+ * With the run lock enabled ('billing.scheduler.run_lock.enabled') the invoices are persisted only holding its lease, so those left by a previous execution 
+ * wait for the next run of this instance ({@link #startRun()}).
+ */
+@Component
+public class PersistenceQueue {
+	
+	private static final Logger logger = LoggerFactory.getLogger(PersistenceQueue.class);
+	private static final String SPILL_FILE = "persistence-queue.log";
+	private static final String QUEUED = "Q";
+	private static final String DONE = "D";
+	
+	private record QueuedInvoice(long seq, String productId, Invoice invoice, ProductBatch batch) {}
+	
+	private record FailedInvoice(String productId, String line) {}
+	
+	/**
+	 * Listener of the persistence of the invoices of a Product
+	 */
+	@FunctionalInterface
+	public interface PersistenceListener {
+		/**
+		 * @param persisted true if all the invoices of the Product have been persisted (or were already in TMF)
+		 */
+		void completed(boolean persisted);
+	}
+	
+	/**
+	 * Invoices of a Product queued together. The listener is notified once, when the batch is closed and all its invoices have been processed.
+	 */
+	public final class ProductBatch {
+		
+		private final String productId;
+		private final PersistenceListener listener;
+		// the batch still open counts as one, so that the listener is not notified before the last invoice is added
+		private final AtomicInteger outstanding = new AtomicInteger(1);
+		private volatile boolean failed;
+		
+		private ProductBatch(String productId, PersistenceListener listener) {
+			this.productId = productId;
+			this.listener = listener;
+		}
+		
+		/**
+		 * Queues an invoice of the Product for the persistence, waiting if the queue is full
+		 * 
+		 * @param invoice the invoice to persist
+		 * @throws InterruptedException if the caller is interrupted while waiting
+		 */
+		public void add(@NotNull Invoice invoice) throws InterruptedException {
+			outstanding.incrementAndGet();
+			try {
+				enqueue(productId, invoice, this);
+			} catch (InterruptedException | RuntimeException e) {
+				done(false);
+				throw e;
+			}
+		}
+		
+		/**
+		 * Closes the batch after all the invoices of the Product have been added
+		 */
+		public void close() {
+			done(true);
+		}
+		
+		/**
+		 * Closes the batch after an error in the calculation of the invoices of the Product: the listener is notified of a failure
+		 */
+		public void abort() {
+			done(false);
+		}
+		
+		private void done(boolean persisted) {
+			if (!persisted)
+				failed = true;
+			if (outstanding.decrementAndGet() > 0)
+				return;
+			
+			if (!failed)
+				forgetFailed(productId);
+			try {
+				listener.completed(!failed);
+			} catch (RuntimeException e) {
+				logger.error("Error notifying the persistence of the invoices of Product '{}': {}", productId, e.getMessage());
+			}
+		}
+	}
+	
+	private final TmfPersistenceService tmfPersistenceService;
+	private final ObjectMapper objectMapper;
+	private final boolean enabled;
+	private final boolean runLockEnabled;
+	private final int workers;
+	// one queue per worker
+	private final List<BlockingQueue<QueuedInvoice>> queues;
+	private final Path spillFile;
+	
+	private final AtomicLong sequence = new AtomicLong();
+	// Lock of the number of pending invoices, always taken before the one of the spill file
+	private final Object idle = new Object();
+	private final Object spillLock = new Object();
+	private long pending = 0;
+	// invoices not persisted because of an error, kept in the spill file until persisted by the next start or billed again
+	private final Map<Long, FailedInvoice> failed = new LinkedHashMap<Long, FailedInvoice>();
+	
+	private BufferedWriter spillWriter;
+	private final List<Thread> workerThreads = new ArrayList<Thread>();
+	// invoices left by a previous execution, waiting for a run holding the run lock (already in the spill file and counted as pending)
+	private List<QueuedInvoice> deferredLeftovers = new ArrayList<QueuedInvoice>();
+	
+	public PersistenceQueue(TmfPersistenceService tmfPersistenceService, ObjectMapper objectMapper, 
+			@Value("${persistence.write_behind.enabled}") boolean enabled,
+			@Value("${persistence.write_behind.queue_capacity}") int queueCapacity,
+			@Value("${persistence.write_behind.workers}") int workers,
+			@Value("${persistence.write_behind.spill_dir}") String spillDir,
+			@Value("${billing.scheduler.run_lock.enabled}") boolean runLockEnabled) {
+		
+		this.tmfPersistenceService = tmfPersistenceService;
+		this.objectMapper = objectMapper;
+		this.enabled = enabled;
+		this.runLockEnabled = runLockEnabled;
+		this.workers = Math.max(1, workers);
+		this.queues = new ArrayList<BlockingQueue<QueuedInvoice>>(this.workers);
+		for (int i = 0; i < this.workers; i++) {
+			this.queues.add(new ArrayBlockingQueue<QueuedInvoice>(Math.max(1, queueCapacity / this.workers)));
+		}
+		this.spillFile = Paths.get(spillDir, SPILL_FILE);
+	}
+	
+	/**
+	 * @return true if the invoices are persisted by the write-behind queue
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Starts the workers, which persist first the invoices left in the spill file by a previous execution
+	 */
+	@EventListener(ContextRefreshedEvent.class)
+	public synchronized void start() throws IOException {
+		if (!enabled || !workerThreads.isEmpty())
+			return;
+		
+		Files.createDirectories(spillFile.toAbsolutePath().getParent());
+		List<QueuedInvoice> leftovers = readSpillFile();
+		
+		// The spill file is replaced by one with the leftovers only (same sequence numbers), so that a crash at this point loses none of them
+		List<List<QueuedInvoice>> leftoversByWorker = new ArrayList<List<QueuedInvoice>>(workers);
+		for (int i = 0; i < workers; i++) {
+			leftoversByWorker.add(new ArrayList<QueuedInvoice>());
+		}
+		List<String> lines = new ArrayList<String>(leftovers.size());
+		for (QueuedInvoice leftover : leftovers) {
+			if (runLockEnabled)
+				deferredLeftovers.add(leftover);
+			else
+				leftoversByWorker.get(workerOf(leftover.productId())).add(leftover);
+			lines.add(queuedLine(leftover));
+			sequence.accumulateAndGet(leftover.seq(), Math::max);
+		}
+		synchronized (idle) {
+			synchronized (spillLock) {
+				rewriteSpillFile(lines);
+			}
+			pending += leftovers.size();
+		}
+		
+		// The leftovers are persisted by the workers themselves: the caller (i.e., the thread refreshing the context) never waits for a full queue
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("persistence-worker-");
+		threadFactory.setDaemon(true);
+		for (int i = 0; i < workers; i++) {
+			BlockingQueue<QueuedInvoice> queue = queues.get(i);
+			List<QueuedInvoice> workerLeftovers = leftoversByWorker.get(i);
+			Thread worker = threadFactory.newThread(() -> work(queue, workerLeftovers));
+			workerThreads.add(worker);
+			worker.start();
+		}
+		logger.info("Write-behind persistence started with {} workers, spill file {}", workers, spillFile.toAbsolutePath());
+		if (!leftovers.isEmpty())
+			logger.info("{} invoice(s) not persisted by the previous execution: persisted {}", leftovers.size(), 
+					runLockEnabled ? "by the next run holding the run lock" : "now");
+	}
+	
+	/**
+	 * Hands to the workers the invoices left by a previous execution that wait for a run holding the run lock. 
+	 * To be invoked by the run holding the lock, before queuing its own invoices: it waits if the queues are full.
+	 * 
+	 * @throws InterruptedException if the caller is interrupted while waiting
+	 */
+	public void startRun() throws InterruptedException {
+		List<QueuedInvoice> leftovers;
+		synchronized (this) {
+			leftovers = deferredLeftovers;
+			deferredLeftovers = new ArrayList<QueuedInvoice>();
+		}
+		if (leftovers.isEmpty())
+			return;
+		
+		logger.info("Persisting {} invoice(s) not persisted by the previous execution", leftovers.size());
+		for (int i = 0; i < leftovers.size(); i++) {
+			QueuedInvoice leftover = leftovers.get(i);
+			try {
+				queues.get(workerOf(leftover.productId())).put(leftover);
+			} catch (InterruptedException e) {
+				// the leftovers not handed wait for the next run
+				synchronized (this) {
+					deferredLeftovers.addAll(0, leftovers.subList(i, leftovers.size()));
+				}
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Opens a batch to queue the invoices of a Product. The caller must close (or abort) the batch.
+	 * 
+	 * @param productId the identifier of the Product of the invoices
+	 * @param listener the {@link PersistenceListener} notified when all the invoices of the batch have been processed
+	 * @return the {@link ProductBatch}
+	 */
+	public ProductBatch openBatch(@NotNull String productId, @NotNull PersistenceListener listener) {
+		return new ProductBatch(productId, listener);
+	}
+	
+	/*
+	 * Queues an invoice of a Product in the queue of the worker of the Product, waiting if the queue is full
+	 */
+	private void enqueue(String productId, Invoice invoice, ProductBatch batch) throws InterruptedException {
+		QueuedInvoice queued = new QueuedInvoice(sequence.incrementAndGet(), productId, invoice, batch);
+		
+		String line = queuedLine(queued);
+		synchronized (idle) {
+			pending++;
+			spill(line);
+		}
+		queues.get(workerOf(productId)).put(queued);
+	}
+	
+	/*
+	 * Index of the worker (and of its queue) of a Product
+	 */
+	private int workerOf(String productId) {
+		return Math.floorMod(productId.hashCode(), workers);
+	}
+	
+	/**
+	 * Waits until all the queued invoices have been processed
+	 * 
+	 * @throws InterruptedException if the caller is interrupted while waiting
+	 */
+	public void awaitIdle() throws InterruptedException {
+		synchronized (idle) {
+			while (pending > 0) {
+				idle.wait();
+			}
+		}
+	}
+	
+	/**
+	 * Stops the workers. The invoices still queued are left in the spill file.
+	 */
+	@PreDestroy
+	public synchronized void stop() {
+		workerThreads.forEach(Thread::interrupt);
+		synchronized (spillLock) {
+			if (spillWriter != null) {
+				try {
+					spillWriter.close();
+				} catch (IOException e) {
+					logger.warn("Error closing the spill file of the persistence queue: {}", e.getMessage());
+				}
+				spillWriter = null;
+			}
+		}
+	}
+	
+	/*
+	 * Persists the leftovers of the worker (already in the spill file and counted as pending), then the invoices of its queue
+	 */
+	private void work(BlockingQueue<QueuedInvoice> queue, List<QueuedInvoice> leftovers) {
+		for (QueuedInvoice leftover : leftovers) {
+			process(leftover);
+		}
+		
+		while (!Thread.currentThread().isInterrupted()) {
+			QueuedInvoice queued;
+			try {
+				queued = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			process(queued);
+		}
+	}
+	
+	private void process(QueuedInvoice queued) {
+		boolean persisted = false;
+		try {
+			tmfPersistenceService.persistInvoice(queued.invoice(), queued.productId());
+			persisted = true;
+		} catch (Exception e) {
+			logger.error("Invoice of Product '{}' not persisted, it is kept in the spill file: {}", queued.productId(), e.getMessage());
+		}
+		
+		synchronized (idle) {
+			if (persisted)
+				spill(DONE + "\t" + queued.seq());
+			else
+				failed.put(queued.seq(), new FailedInvoice(queued.productId(), queuedLine(queued)));
+		}
+		
+		// the listener is notified before the invoice stops being pending, so awaitIdle() waits for it
+		if (queued.batch() != null)
+			queued.batch().done(persisted);
+		
+		synchronized (idle) {
+			pending--;
+			if (pending == 0) {
+				compact();
+				idle.notifyAll();
+			}
+		}
+	}
+	
+	/*
+	 * Marks as done the invoices of a Product not persisted before, once the Product has been billed and persisted again
+	 */
+	private void forgetFailed(String productId) {
+		synchronized (idle) {
+			failed.entrySet().removeIf(entry -> {
+				if (!entry.getValue().productId().equals(productId))
+					return false;
+				spill(DONE + "\t" + entry.getKey());
+				return true;
+			});
+		}
+	}
+	
+	/*
+	 * Appends a line to the spill file. The line is flushed, so that it survives a crash of the process.
+	 */
+	private void spill(String line) {
+		synchronized (spillLock) {
+			if (spillWriter == null)
+				return;
+			
+			try {
+				spillWriter.write(line);
+				spillWriter.newLine();
+				spillWriter.flush();
+			} catch (IOException e) {
+				logger.warn("Error writing the spill file of the persistence queue: {}", e.getMessage());
+			}
+		}
+	}
+	
+	/*
+	 * Truncates the spill file when no invoice is queued, keeping the invoices not persisted because of an error. Must be invoked holding the 'idle' lock.
+	 */
+	private void compact() {
+		synchronized (spillLock) {
+			if (spillWriter == null)
+				return;
+			
+			try {
+				spillWriter.close();
+				spillWriter = null;
+				List<String> lines = new ArrayList<String>(failed.size());
+				for (FailedInvoice failedInvoice : failed.values()) {
+					lines.add(failedInvoice.line());
+				}
+				rewriteSpillFile(lines);
+			} catch (IOException e) {
+				spillWriter = null;
+				logger.warn("Error truncating the spill file of the persistence queue, the queued invoices will not be spilled: {}", e.getMessage());
+			}
+		}
+	}
+	
+	/*
+	 * Writes the lines in a temporary file, forces it to the disk and replaces the spill file, then opens the spill file for appending.
+	 * Must be invoked holding the 'spillLock' lock.
+	 */
+	private void rewriteSpillFile(List<String> lines) throws IOException {
+		Path tmp = spillFile.resolveSibling(SPILL_FILE + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			BufferedWriter out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+			for (String line : lines) {
+				out.write(line);
+				out.newLine();
+			}
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(tmp, spillFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		spillWriter = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+	
+	/*
+	 * Reads the invoices queued and not done in the spill file (a truncated last line is ignored)
+	 */
+	private List<QueuedInvoice> readSpillFile() throws IOException {
+		Map<Long, QueuedInvoice> queued = new LinkedHashMap<Long, QueuedInvoice>();
+		if (!Files.exists(spillFile))
+			return new ArrayList<QueuedInvoice>();
+		
+		for (String line : Files.readAllLines(spillFile, StandardCharsets.UTF_8)) {
+			String[] fields = line.split("\t", 4);
+			try {
+				if (fields.length == 4 && QUEUED.equals(fields[0])) {
+					long seq = Long.parseLong(fields[1]);
+					queued.put(seq, new QueuedInvoice(seq, fields[2], objectMapper.readValue(fields[3], Invoice.class), null));
+				} else if (fields.length == 2 && DONE.equals(fields[0])) {
+					queued.remove(Long.parseLong(fields[1]));
+				}
+			} catch (Exception e) {
+				logger.debug("Invalid line in the spill file of the persistence queue: {}", e.getMessage());
+			}
+		}
+		return new ArrayList<QueuedInvoice>(queued.values());
+	}
+	
+	private String queuedLine(QueuedInvoice queued) {
+		return QUEUED + "\t" + queued.seq() + "\t" + queued.productId() + "\t" + toJson(queued.invoice());
+	}
+	
+	private String toJson(Invoice invoice) {
+		try {
+			return objectMapper.writeValueAsString(invoice);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invoice cannot be serialized: " + e.getMessage(), e);
+		}
+	}
+
+}
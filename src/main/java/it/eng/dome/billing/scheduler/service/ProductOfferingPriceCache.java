@@ -0,0 +1,363 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.eng.dome.billing.scheduler.exception.BadTmfDataException;
+import it.eng.dome.billing.scheduler.model.DownstreamService;
+import it.eng.dome.brokerage.api.ProductCatalogManagementApis;
+import it.eng.dome.brokerage.billing.utils.ProductOfferingPriceUtils;
+import it.eng.dome.tmforum.tmf620.v4.ApiException;
+import it.eng.dome.tmforum.tmf620.v4.model.ProductOfferingPrice;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Process-wide cache of the {@link ProductOfferingPrice} retrieved from TMF620, keyed by POP id.
+ * The cache is bounded in size (least recently used entries are evicted first) and each entry expires after a TTL.
+ * The POPs not found in TMF620 (404) are cached too (negative caching) with their own TTL.
+ * Concurrent requests of the same missing POP are coalesced, so that only one GET per POP is sent to TMF620.
+ * If 'pop_cache.run_scoped' is true, the cache is cleared at the beginning of each BillCycle run.
+ * The POPs of a page of Products can be retrieved in bulk, ahead of their use, with {@link #prefetch(Collection, Executor)}.
+ */
+@Component
+public class ProductOfferingPriceCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(ProductOfferingPriceCache.class);
+	private static final String METRIC_PREFIX = "billing.scheduler.pop.cache";
+
+	private final ProductCatalogManagementApis productCatalogManagementApis;
+	private final DownstreamLimiter downstreamLimiter;
+
+	private final boolean enabled;
+	private final int maxSize;
+	private final long ttlNanos;
+	private final long negativeTtlNanos;
+	private final boolean runScoped;
+	private final boolean prefetchEnabled;
+	private final int prefetchBatchSize;
+
+	private final Map<String, CacheEntry> entries;
+	private final ConcurrentHashMap<String, CompletableFuture<CacheEntry>> loading = new ConcurrentHashMap<String, CompletableFuture<CacheEntry>>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong negativeHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong prefetched = new AtomicLong();
+
+	/*
+	 * An entry of the cache: a null pop means that the POP has not been found in TMF620
+	 */
+	private record CacheEntry(ProductOfferingPrice pop, long expiresAt) {
+
+		boolean isExpired(long now) {
+			return now - expiresAt >= 0;
+		}
+	}
+
+	@Autowired
+	public ProductOfferingPriceCache(ProductCatalogManagementApis productCatalogManagementApis, DownstreamLimiter downstreamLimiter,
+			MeterRegistry meterRegistry,
+			@Value("${pop_cache.enabled}") boolean enabled,
+			@Value("${pop_cache.max_size}") int maxSize,
+			@Value("${pop_cache.ttl_minutes}") long ttlMinutes,
+			@Value("${pop_cache.negative_ttl_minutes}") long negativeTtlMinutes,
+			@Value("${pop_cache.run_scoped}") boolean runScoped,
+			@Value("${pop_cache.prefetch_enabled}") boolean prefetchEnabled,
+			@Value("${pop_cache.prefetch_batch_size}") int prefetchBatchSize) {
+
+		this.productCatalogManagementApis = productCatalogManagementApis;
+		this.downstreamLimiter = downstreamLimiter;
+		this.enabled = enabled;
+		this.maxSize = Math.max(1, maxSize);
+		this.ttlNanos = TimeUnit.MINUTES.toNanos(ttlMinutes);
+		this.negativeTtlNanos = TimeUnit.MINUTES.toNanos(negativeTtlMinutes);
+		this.runScoped = runScoped;
+		this.prefetchEnabled = prefetchEnabled;
+		this.prefetchBatchSize = Math.max(1, prefetchBatchSize);
+
+		// access-ordered map: the eldest entry is the least recently used one
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				if (size() > ProductOfferingPriceCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+
+		FunctionCounter.builder(METRIC_PREFIX + ".requests", hits, AtomicLong::get).tag("result", "hit").register(meterRegistry);
+		FunctionCounter.builder(METRIC_PREFIX + ".requests", negativeHits, AtomicLong::get).tag("result", "negative_hit").register(meterRegistry);
+		FunctionCounter.builder(METRIC_PREFIX + ".requests", misses, AtomicLong::get).tag("result", "miss").register(meterRegistry);
+		FunctionCounter.builder(METRIC_PREFIX + ".evictions", evictions, AtomicLong::get).register(meterRegistry);
+		FunctionCounter.builder(METRIC_PREFIX + ".prefetched", prefetched, AtomicLong::get).register(meterRegistry);
+		Gauge.builder(METRIC_PREFIX + ".size", this, ProductOfferingPriceCache::size).register(meterRegistry);
+
+		logger.info("ProductOfferingPrice cache enabled: {} (max size {}, TTL {} minutes, negative TTL {} minutes, run scoped {}, prefetch {})",
+				enabled, this.maxSize, ttlMinutes, negativeTtlMinutes, runScoped, prefetchEnabled);
+	}
+
+	/**
+	 * Gets a {@link ProductOfferingPrice} from the cache, retrieving it from TMF620 if missing or expired
+	 *
+	 * @param popId the identifier of the ProductOfferingPrice
+	 * @return the {@link ProductOfferingPrice}
+	 * @throws BadTmfDataException if the ProductOfferingPrice does not exist in TMF620
+	 * @throws ApiException if an error occurs invoking TMF620
+	 */
+	public ProductOfferingPrice get(@NotNull String popId) throws BadTmfDataException, ApiException {
+		if (!enabled) {
+			return toProductOfferingPrice(popId, load(popId));
+		}
+
+		CacheEntry entry = getIfPresent(popId);
+		if (entry != null) {
+			if (entry.pop() != null) {
+				hits.incrementAndGet();
+			} else {
+				negativeHits.incrementAndGet();
+			}
+			return toProductOfferingPrice(popId, entry);
+		}
+
+		// Only the first thread requesting a missing POP loads it, the others wait for its result
+		CompletableFuture<CacheEntry> future = new CompletableFuture<CacheEntry>();
+		CompletableFuture<CacheEntry> inProgress = loading.putIfAbsent(popId, future);
+		if (inProgress != null) {
+			hits.incrementAndGet();
+			return toProductOfferingPrice(popId, join(inProgress));
+		}
+
+		misses.incrementAndGet();
+		try {
+			CacheEntry loaded = load(popId);
+			put(popId, loaded);
+			future.complete(loaded);
+			return toProductOfferingPrice(popId, loaded);
+		} catch (ApiException | RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(popId, future);
+		}
+	}
+
+	/**
+	 * Starts the bulk retrieval from TMF620 of the ProductOfferingPrices not yet cached. The POPs are requested in batches 
+	 * of 'pop_cache.prefetch_batch_size' ids (listProductOfferingPrices with an 'id' filter) by the given executor.
+	 * The ids are registered as loading before returning, so a concurrent {@link #get(String)} of one of them waits for the bulk 
+	 * request instead of sending its own GET. The POPs not returned by the bulk request are retrieved one by one.
+	 *
+	 * @param popIds the identifiers of the ProductOfferingPrices
+	 * @param executor the {@link Executor} running the bulk requests
+	 */
+	public void prefetch(@NotNull Collection<String> popIds, @NotNull Executor executor) {
+		if (!enabled || !prefetchEnabled) {
+			return;
+		}
+
+		Map<String, CompletableFuture<CacheEntry>> owned = new LinkedHashMap<String, CompletableFuture<CacheEntry>>();
+		for (String popId : popIds) {
+			if (getIfPresent(popId) == null) {
+				CompletableFuture<CacheEntry> future = new CompletableFuture<CacheEntry>();
+				if (loading.putIfAbsent(popId, future) == null) {
+					owned.put(popId, future);
+				}
+			}
+		}
+
+		if (owned.isEmpty()) {
+			return;
+		}
+
+		logger.debug("Prefetch of {} ProductOfferingPrice(s) from TMF620", owned.size());
+		try {
+			executor.execute(() -> bulkLoad(owned));
+		} catch (RejectedExecutionException e) {
+			logger.warn("Prefetch of ProductOfferingPrice(s) rejected: {}", e.getMessage());
+			owned.forEach((popId, future) -> {
+				loading.remove(popId, future);
+				future.completeExceptionally(e);
+			});
+		}
+	}
+
+	/**
+	 * Adds to the cache a {@link ProductOfferingPrice} already retrieved from TMF620 (e.g., by a bulk request)
+	 *
+	 * @param pop the {@link ProductOfferingPrice} to cache
+	 */
+	public void put(@NotNull ProductOfferingPrice pop) {
+		if (enabled && pop.getId() != null) {
+			put(pop.getId(), new CacheEntry(pop, System.nanoTime() + ttlNanos));
+		}
+	}
+
+	/**
+	 * Checks if a not expired entry for the ProductOfferingPrice is present in the cache
+	 *
+	 * @param popId the identifier of the ProductOfferingPrice
+	 * @return true if present, false otherwise
+	 */
+	public boolean contains(@NotNull String popId) {
+		return enabled && getIfPresent(popId) != null;
+	}
+
+	/**
+	 * Notifies the beginning of a BillCycle run: if the cache is run scoped, all the entries are removed
+	 */
+	public void startRun() {
+		if (runScoped) {
+			synchronized (entries) {
+				entries.clear();
+			}
+			logger.debug("ProductOfferingPrice cache cleared for the new run");
+		}
+	}
+
+	/**
+	 * Logs the statistics of the cache
+	 */
+	public void logStatistics() {
+		if (enabled) {
+			logger.info("ProductOfferingPrice cache: size {}, hits {}, negative hits {}, misses {}, evictions {}, prefetched {}", size(), hits.get(),
+					negativeHits.get(), misses.get(), evictions.get(), prefetched.get());
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	private CacheEntry getIfPresent(String popId) {
+		synchronized (entries) {
+			CacheEntry entry = entries.get(popId);
+			if (entry != null && entry.isExpired(System.nanoTime())) {
+				entries.remove(popId);
+				return null;
+			}
+			return entry;
+		}
+	}
+
+	private void put(String popId, CacheEntry entry) {
+		synchronized (entries) {
+			entries.put(popId, entry);
+		}
+	}
+
+	/*
+	 * Retrieves in batches a set of POPs and completes the related futures. Each batch is a single page of as many POPs as the ids: a TMF620 ignoring
+	 * the 'id' filter returns a page of the catalog instead of the whole catalog. The POPs not returned by the bulk requests (or all of them, 
+	 * if a bulk request fails) are retrieved one by one. Each future is always completed and removed from the loading ones.
+	 */
+	private void bulkLoad(Map<String, CompletableFuture<CacheEntry>> owned) {
+		List<String> popIds = new ArrayList<String>(owned.keySet());
+
+		try {
+			for (int from = 0; from < popIds.size(); from += prefetchBatchSize) {
+				List<String> batch = popIds.subList(from, Math.min(from + prefetchBatchSize, popIds.size()));
+
+				List<ProductOfferingPrice> pops = downstreamLimiter.call(DownstreamService.TMF620_CATALOG, 
+						() -> productCatalogManagementApis.listProductOfferingPrices(null, Map.of("id", String.join(",", batch)), batch.size(), 0));
+				if (pops == null)
+					continue;
+				
+				for (ProductOfferingPrice pop : pops) {
+					CompletableFuture<CacheEntry> future = pop.getId() != null ? owned.get(pop.getId()) : null;
+					if (future != null && !future.isDone()) {
+						CacheEntry entry = new CacheEntry(pop, System.nanoTime() + ttlNanos);
+						put(pop.getId(), entry);
+						prefetched.incrementAndGet();
+						future.complete(entry);
+					}
+				}
+			}
+		} catch (Exception e) {
+			logger.warn("Bulk retrieval of ProductOfferingPrice(s) failed, they will be retrieved one by one: {}", e.getMessage());
+		}
+
+		owned.forEach((popId, future) -> {
+			try {
+				if (!future.isDone()) {
+					misses.incrementAndGet();
+					CacheEntry entry = load(popId);
+					put(popId, entry);
+					future.complete(entry);
+				}
+			} catch (Exception e) {
+				future.completeExceptionally(e);
+			} finally {
+				loading.remove(popId, future);
+			}
+		});
+	}
+
+	/*
+	 * Retrieves the POP from TMF620: a 404 is converted in a negative entry
+	 */
+	private CacheEntry load(String popId) throws ApiException {
+		try {
+			ProductOfferingPrice pop = downstreamLimiter.call(DownstreamService.TMF620_CATALOG,
+					() -> ProductOfferingPriceUtils.getProductOfferingPrice(popId, productCatalogManagementApis));
+			if (pop != null) {
+				return new CacheEntry(pop, System.nanoTime() + ttlNanos);
+			}
+		} catch (ApiException e) {
+			if (e.getCode() != 404) {
+				throw e;
+			}
+		}
+
+		logger.warn("ProductOfferingPrice '{}' not found in TMF620", popId);
+		return new CacheEntry(null, System.nanoTime() + negativeTtlNanos);
+	}
+
+	private CacheEntry join(CompletableFuture<CacheEntry> future) throws ApiException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof ApiException apiException) {
+				throw apiException;
+			}
+			if (e.getCause() instanceof RuntimeException runtimeException) {
+				throw runtimeException;
+			}
+			throw e;
+		}
+	}
+
+	private ProductOfferingPrice toProductOfferingPrice(String popId, CacheEntry entry) throws BadTmfDataException {
+		if (entry.pop() == null) {
+			throw new BadTmfDataException("ProductOfferingPrice", popId, "not found in TMF620");
+		}
+		return entry.pop();
+	}
+
+}
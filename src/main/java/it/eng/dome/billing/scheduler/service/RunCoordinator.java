@@ -0,0 +1,135 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.time.OffsetDateTime;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import it.eng.dome.billing.scheduler.model.RunState;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Guarantees that a single BillCycle run is active in this instance, whatever its trigger (the scheduled task or the REST API): 
+ * two concurrent runs would duplicate the load on TMF and the BillingProxy and could both persist the same invoice.
+ * A trigger received while a run is active is coalesced into it or, if 'billing.scheduler.coordinator.follow_up' is true, 
+ * queued as the single follow-up run, executed by the thread of the active run as soon as it completes (a later trigger replaces the queued one).
+ */
+@Component
+public class RunCoordinator {
+	
+	private static final Logger logger = LoggerFactory.getLogger(RunCoordinator.class);
+	
+	public static final String SCHEDULED_TRIGGER = "scheduled";
+	public static final String API_TRIGGER = "api";
+	
+	/**
+	 * Outcome of a trigger
+	 */
+	public enum Outcome {
+		/** the run has been executed by the caller */
+		EXECUTED,
+		/** a run was active: the trigger has been coalesced into it */
+		COALESCED,
+		/** a run was active: the run has been queued as follow-up */
+		QUEUED
+	}
+	
+	/**
+	 * A BillCycle run
+	 */
+	@FunctionalInterface
+	public interface BillCycleRun {
+		void run() throws Exception;
+	}
+	
+	private record Trigger(String name, OffsetDateTime limitDate, BillCycleRun run) {}
+	
+	private final boolean followUpEnabled;
+	
+	private Trigger active;
+	private OffsetDateTime activeSince;
+	private Trigger followUp;
+	private long completedRuns;
+	private long coalescedTriggers;
+	
+	public RunCoordinator(@Value("${billing.scheduler.coordinator.follow_up}") boolean followUpEnabled) {
+		this.followUpEnabled = followUpEnabled;
+	}
+	
+	/**
+	 * Executes a run in the caller thread if no run is active, otherwise coalesces or queues it. 
+	 * If a follow-up run is queued meanwhile, it is executed by the caller thread too, after the run.
+	 * 
+	 * @param trigger the name of the trigger (e.g., {@link #SCHEDULED_TRIGGER})
+	 * @param limitDate the limit date of the run
+	 * @param run the run
+	 * @return the {@link Outcome} of the trigger
+	 * @throws Exception the exception thrown by the run (the exceptions of the follow-up runs are only logged)
+	 */
+	public Outcome execute(@NotNull String trigger, @NotNull OffsetDateTime limitDate, @NotNull BillCycleRun run) throws Exception {
+		Trigger current = new Trigger(trigger, limitDate, run);
+		
+		synchronized (this) {
+			if (active != null) {
+				if (followUpEnabled) {
+					if (followUp != null)
+						coalescedTriggers++;
+					followUp = current;
+					logger.info("BillCycle run ({}) active since {}: the run ({}) at {} is queued", active.name(), activeSince, trigger, limitDate);
+					return Outcome.QUEUED;
+				}
+				
+				coalescedTriggers++;
+				logger.info("BillCycle run ({}) active since {}: the run ({}) at {} is coalesced into it", active.name(), activeSince, trigger, limitDate);
+				return Outcome.COALESCED;
+			}
+			activate(current);
+		}
+		
+		Exception failure = null;
+		boolean followUpRun = false;
+		while (current != null) {
+			try {
+				current.run().run();
+			} catch (Exception e) {
+				if (!followUpRun)
+					failure = e;
+				else
+					logger.error("Follow-up BillCycle run ({}) at {} failed: {}", current.name(), current.limitDate(), e.getMessage());
+			} finally {
+				followUpRun = true;
+				synchronized (this) {
+					completedRuns++;
+					current = followUp;
+					followUp = null;
+					activate(current);
+				}
+			}
+		}
+		
+		if (failure != null)
+			throw failure;
+		return Outcome.EXECUTED;
+	}
+	
+	/**
+	 * Gets the state of the runs
+	 * 
+	 * @return the {@link RunState}
+	 */
+	public synchronized RunState getState() {
+		return new RunState(active != null, active != null ? active.name() : null, active != null ? active.limitDate() : null, activeSince, 
+				followUp != null, completedRuns, coalescedTriggers);
+	}
+	
+	/*
+	 * Sets the active run (null if no run is active). Must be called holding the lock.
+	 */
+	private void activate(Trigger trigger) {
+		active = trigger;
+		activeSince = trigger != null ? OffsetDateTime.now() : null;
+	}
+	
+}
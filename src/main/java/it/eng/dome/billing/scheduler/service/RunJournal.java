@@ -0,0 +1,190 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.eng.dome.billing.scheduler.model.RunCheckpoint;
+import it.eng.dome.billing.scheduler.model.Shard;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Crash-safe journal of the BillCycle runs ('run-journal.json' under 'billing.scheduler.journal.data_dir').
+ * It records the {@link RunCheckpoint} of the current run: run id, limitDate and the number of Products fully processed, counted by pages of Products.
+ * The checkpoint is written (and fsync'd) at most every 'checkpoint_interval_seconds' and when the run begins and completes, so that a run 
+ * interrupted by a restart can be resumed from the last checkpoint instead of from the first Product.
+ */
+@Component
+public class RunJournal {
+	
+	private static final Logger logger = LoggerFactory.getLogger(RunJournal.class);
+	private static final String JOURNAL_FILE = "run-journal.json";
+	
+	private final ObjectMapper objectMapper;
+	private final boolean enabled;
+	private final long checkpointIntervalMillis;
+	private final Path journalFile;
+	
+	// State of the current run
+	private String runId;
+	private OffsetDateTime limitDate;
+	private long processedProducts;
+	private String lastProductId;
+	private Shard shard;
+	private long nextPage;
+	private final Map<Long, Integer> completedPageSizes = new HashMap<Long, Integer>();
+	private final Map<Long, String> completedPageLastIds = new HashMap<Long, String>();
+	private long lastWrite;
+	
+	public RunJournal(ObjectMapper objectMapper, @Value("${billing.scheduler.journal.enabled}") boolean enabled,
+			@Value("${billing.scheduler.journal.checkpoint_interval_seconds}") long checkpointIntervalSeconds,
+			@Value("${billing.scheduler.journal.data_dir}") String dataDir) {
+		
+		this.objectMapper = objectMapper;
+		this.enabled = enabled;
+		this.checkpointIntervalMillis = Math.max(0, checkpointIntervalSeconds) * 1000;
+		this.journalFile = Paths.get(dataDir, JOURNAL_FILE);
+	}
+	
+	/**
+	 * @return true if the runs are journaled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Reads the checkpoint of the last run, if it has not been completed
+	 * 
+	 * @return the {@link RunCheckpoint} of the interrupted run, or null if there is no run to resume
+	 */
+	public synchronized RunCheckpoint getInterruptedRun() {
+		if (!enabled || !Files.exists(journalFile))
+			return null;
+		
+		try {
+			RunCheckpoint checkpoint = objectMapper.readValue(journalFile.toFile(), RunCheckpoint.class);
+			return checkpoint.completed() ? null : checkpoint;
+		} catch (IOException e) {
+			logger.warn("Run journal {} not readable, the run cannot be resumed: {}", journalFile.toAbsolutePath(), e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Begins the journal of a run
+	 * 
+	 * @param runId the identifier of the run
+	 * @param limitDate the limit date of the run
+	 * @param processedProducts the number of Products already processed (greater than 0 when the run is resumed)
+	 * @param lastProductId the identifier of the last Product already processed, if any
+	 * @param shard the {@link Shard} processed by the run
+	 */
+	public synchronized void begin(@NotNull String runId, @NotNull OffsetDateTime limitDate, long processedProducts, String lastProductId, @NotNull Shard shard) {
+		this.runId = runId;
+		this.limitDate = limitDate;
+		this.processedProducts = processedProducts;
+		this.lastProductId = lastProductId;
+		this.shard = shard;
+		this.nextPage = 0;
+		this.completedPageSizes.clear();
+		this.completedPageLastIds.clear();
+		write(false);
+	}
+	
+	/**
+	 * Records that all the Products of a page have been processed. The pages can complete in any order: 
+	 * the checkpoint advances only over the pages completed without gaps. The pages of a run not journaled (i.e., not begun) are ignored.
+	 * 
+	 * @param runId the identifier of the run
+	 * @param pageIndex the index of the page in the run (0 is the first page processed by the run)
+	 * @param pageSize the number of Products of the page
+	 * @param pageLastProductId the identifier of the last Product of the page
+	 */
+	public synchronized void pageCompleted(@NotNull String runId, long pageIndex, int pageSize, String pageLastProductId) {
+		if (!enabled || !runId.equals(this.runId))
+			return;
+		
+		completedPageSizes.put(pageIndex, pageSize);
+		completedPageLastIds.put(pageIndex, pageLastProductId);
+		while (completedPageSizes.containsKey(nextPage)) {
+			processedProducts += completedPageSizes.remove(nextPage);
+			lastProductId = completedPageLastIds.remove(nextPage);
+			nextPage++;
+		}
+		
+		if (System.currentTimeMillis() - lastWrite >= checkpointIntervalMillis) {
+			write(false);
+		}
+	}
+	
+	/**
+	 * Records the completion of the run. The completion of a run not journaled is ignored.
+	 * 
+	 * @param runId the identifier of the run
+	 */
+	public synchronized void complete(@NotNull String runId) {
+		if (!runId.equals(this.runId))
+			return;
+		
+		write(true);
+		logger.info("Run {} completed: {} Products processed", runId, processedProducts);
+		this.runId = null;
+	}
+	
+	/**
+	 * Records that the run has been cancelled and must not be resumed. The abandon of a run not journaled is ignored.
+	 * 
+	 * @param runId the identifier of the run
+	 */
+	public synchronized void abandon(@NotNull String runId) {
+		if (!runId.equals(this.runId))
+			return;
+		
+		write(true);
+		logger.info("Run {} abandoned after {} Products processed", runId, processedProducts);
+		this.runId = null;
+	}
+	
+	/*
+	 * Writes the checkpoint in a temporary file, forces it to the disk and replaces the journal
+	 */
+	private void write(boolean completed) {
+		if (!enabled)
+			return;
+		
+		Path tmp = journalFile.resolveSibling(JOURNAL_FILE + ".tmp");
+		try {
+			Files.createDirectories(journalFile.toAbsolutePath().getParent());
+			byte[] json = objectMapper.writeValueAsBytes(new RunCheckpoint(runId, limitDate, processedProducts, lastProductId, shard, completed));
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.wrap(json);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			}
+			Files.move(tmp, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			lastWrite = System.currentTimeMillis();
+			logger.debug("Checkpoint of run {}: {} Products processed", runId, processedProducts);
+		} catch (IOException e) {
+			logger.warn("Error writing the run journal {}: {}", journalFile.toAbsolutePath(), e.getMessage());
+		}
+	}
+
+}
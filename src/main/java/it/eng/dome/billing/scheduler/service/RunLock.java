@@ -0,0 +1,40 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.time.Duration;
+
+import it.eng.dome.billing.scheduler.model.RunLease;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * A lock shared by the instances of the Billing Scheduler, held through leases with an expiry time (so the lock of a crashed instance is released 
+ * when its lease expires) and fencing tokens. Implementations must be safe among processes, e.g., on a shared file system or a database.
+ */
+public interface RunLock {
+	
+	/**
+	 * Tries to acquire the lock. The lock is acquired if it is free, its lease is expired or it is already held by the owner.
+	 * 
+	 * @param lockName the name of the lock
+	 * @param owner the identifier of the instance acquiring the lock
+	 * @param ttl the duration of the lease
+	 * @return the {@link RunLease}, with a new fencing token, or null if the lock is held by another instance
+	 */
+	RunLease tryAcquire(@NotNull String lockName, @NotNull String owner, @NotNull Duration ttl);
+	
+	/**
+	 * Extends a lease
+	 * 
+	 * @param lease the {@link RunLease} to extend
+	 * @param ttl the new duration of the lease
+	 * @return the extended {@link RunLease}, or null if the lease has been lost (i.e., it expired and the lock has been acquired by another instance)
+	 */
+	RunLease renew(@NotNull RunLease lease, @NotNull Duration ttl);
+	
+	/**
+	 * Releases a lease, if it is still the current one
+	 * 
+	 * @param lease the {@link RunLease} to release
+	 */
+	void release(@NotNull RunLease lease);
+	
+}
@@ -0,0 +1,226 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import it.eng.dome.billing.scheduler.model.RunProgress;
+import it.eng.dome.billing.scheduler.model.RunProgress.Status;
+import it.eng.dome.billing.scheduler.service.RunCoordinator.BillCycleRun;
+import it.eng.dome.billing.scheduler.service.RunCoordinator.Outcome;
+import jakarta.annotation.PreDestroy;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Registry of the BillCycle runs (jobs): each run, started by the REST API (asynchronously) or by the scheduled task, gets an identifier and a {@link RunProgress}
+ * updated live by the workers. The runs are executed through the {@link RunCoordinator}, so a single run is active at time.
+ * The last 'billing.scheduler.runs.history' runs are kept in memory.
+ */
+@Component
+public class RunRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(RunRegistry.class);
+
+	// progress updated when no run is active (e.g., by the persistence of the invoices spilled by a previous process)
+	private static final RunProgress DETACHED = new RunProgress(null, null, null);
+
+	private final RunCoordinator runCoordinator;
+	private final Map<String, RunProgress> runs;
+	private final ExecutorService runExecutor = Executors.newCachedThreadPool(new CustomizableThreadFactory("bill-cycle-run-"));
+
+	private volatile RunProgress current;
+	private RunProgress queued;
+
+	public RunRegistry(RunCoordinator runCoordinator, @Value("${billing.scheduler.runs.history}") int history) {
+		this.runCoordinator = runCoordinator;
+		int maxRuns = Math.max(1, history);
+		this.runs = new LinkedHashMap<String, RunProgress>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, RunProgress> eldest) {
+				return size() > maxRuns;
+			}
+		};
+	}
+
+	/**
+	 * Submits a run to be executed asynchronously
+	 *
+	 * @param trigger the name of the trigger (e.g., {@link RunCoordinator#API_TRIGGER})
+	 * @param limitDate the limit date of the run
+	 * @param run the run
+	 * @return the {@link RunProgress} of the run, with its identifier
+	 */
+	public RunProgress submit(@NotNull String trigger, @NotNull OffsetDateTime limitDate, @NotNull BillCycleRun run) {
+		RunProgress progress = register(trigger, limitDate);
+		runExecutor.execute(() -> {
+			try {
+				execute(progress, run);
+			} catch (Exception e) {
+				logger.error("BillCycle run {} failed: {}", progress.getId(), e.getMessage(), e);
+			}
+		});
+		return progress;
+	}
+
+	/**
+	 * Executes a run in the caller thread
+	 *
+	 * @param trigger the name of the trigger (e.g., {@link RunCoordinator#SCHEDULED_TRIGGER})
+	 * @param limitDate the limit date of the run
+	 * @param run the run
+	 * @return the {@link RunProgress} of the run
+	 * @throws Exception the exception thrown by the run
+	 */
+	public RunProgress execute(@NotNull String trigger, @NotNull OffsetDateTime limitDate, @NotNull BillCycleRun run) throws Exception {
+		RunProgress progress = register(trigger, limitDate);
+		execute(progress, run);
+		return progress;
+	}
+
+	/**
+	 * Gets a run
+	 *
+	 * @param runId the identifier of the run
+	 * @return the {@link RunProgress} of the run, null if not found
+	 */
+	public synchronized RunProgress get(@NotNull String runId) {
+		return runs.get(runId);
+	}
+
+	/**
+	 * @return the {@link RunProgress} of the last runs, the most recent first
+	 */
+	public synchronized List<RunProgress> list() {
+		List<RunProgress> list = new ArrayList<RunProgress>(runs.values());
+		Collections.reverse(list);
+		return list;
+	}
+
+	/**
+	 * Gets the progress of the active run, updated by the workers of the run
+	 *
+	 * @return the {@link RunProgress} of the active run, or a detached progress if no run is active
+	 */
+	public RunProgress current() {
+		RunProgress progress = current;
+		return progress != null ? progress : DETACHED;
+	}
+
+	/**
+	 * Requests the cancellation of a run. A queued run is cancelled immediately, an active run stops cooperatively before processing its next Products.
+	 *
+	 * @param runId the identifier of the run
+	 * @param resumable true to pause the run, i.e. to keep its journal checkpoint so that it is resumed by the next run, false to abandon it
+	 * @return the {@link RunProgress} of the run, null if not found
+	 */
+	public synchronized RunProgress cancel(@NotNull String runId, boolean resumable) {
+		RunProgress progress = runs.get(runId);
+		if (progress == null || progress.isEnded())
+			return progress;
+
+		if (resumable)
+			progress.requestPause();
+		else
+			progress.requestCancel();
+		if (progress.getStatus() == Status.QUEUED) {
+			progress.ended(Status.CANCELLED, "Cancelled before the start");
+		}
+		logger.info("{} of the BillCycle run {} requested", resumable ? "Pause" : "Cancellation", runId);
+		return progress;
+	}
+
+	/**
+	 * Requests the pause of the active run, if any (e.g., when the lease of the run lock is lost): the run can be resumed from its journal checkpoint
+	 */
+	public synchronized void pauseActive() {
+		if (current != null) {
+			current.requestPause();
+			logger.info("Pause of the BillCycle run {} requested", current.getId());
+		}
+	}
+
+	/**
+	 * Ends the active run without executing it, if any (e.g., when the run lock is held by another instance)
+	 *
+	 * @param message the reason why the run is skipped
+	 */
+	public synchronized void skipActive(@NotNull String message) {
+		if (current != null) {
+			current.ended(Status.SKIPPED, message);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		// the run interrupted by the shutdown is resumed after the restart
+		pauseActive();
+		runExecutor.shutdown();
+	}
+
+	private synchronized RunProgress register(String trigger, OffsetDateTime limitDate) {
+		RunProgress progress = new RunProgress(UUID.randomUUID().toString(), trigger, limitDate);
+		runs.put(progress.getId(), progress);
+		return progress;
+	}
+
+	/*
+	 * Executes a run through the RunCoordinator, recording the outcome of the trigger in its progress
+	 */
+	private void execute(RunProgress progress, BillCycleRun run) throws Exception {
+		Outcome outcome = runCoordinator.execute(progress.getTrigger(), progress.getLimitDate(), () -> track(progress, run));
+
+		synchronized (this) {
+			if (outcome == Outcome.COALESCED && !progress.isEnded()) {
+				progress.ended(Status.COALESCED, "Coalesced into the active run " + (current != null ? current.getId() : ""));
+			} else if (outcome == Outcome.QUEUED && progress.getStatus() == Status.QUEUED) {
+				// the follow-up run queued before is replaced by this one
+				if (queued != null && queued.getStatus() == Status.QUEUED) {
+					queued.ended(Status.COALESCED, "Replaced by the queued run " + progress.getId());
+				}
+				queued = progress;
+			}
+		}
+	}
+
+	/*
+	 * Runs a BillCycle as the active run, updating its status
+	 */
+	private void track(RunProgress progress, BillCycleRun run) throws Exception {
+		synchronized (this) {
+			if (queued == progress)
+				queued = null;
+			if (progress.isCancelRequested())
+				return;
+			current = progress;
+			progress.started();
+		}
+
+		try {
+			run.run();
+			if (!progress.isEnded())
+				progress.ended(progress.isCancelRequested() ? Status.CANCELLED : Status.COMPLETED, null);
+		} catch (Exception e) {
+			progress.ended(Status.FAILED, e.getMessage());
+			throw e;
+		} finally {
+			synchronized (this) {
+				current = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,271 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import it.eng.dome.billing.scheduler.model.Shard;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Assigns to this instance the {@link Shard} of the Product space it processes ('billing.scheduler.sharding' properties),
+ * so that several replicas share the BillCycle instead of each processing all the Products. Two modes are supported:
+ * <ul>
+ * <li><b>static</b> ('shard_index' &gt;= 0): the shard index and count are configured for each instance</li>
+ * <li><b>dynamic</b> ('shard_index' &lt; 0): each instance renews a lease file ('&lt;instance_id&gt;.lease', with its expiry time) in the shared 'lease_dir'
+ * every 'lease_ttl_seconds' / 3. At the start of each run the live instances (with a lease not expired) are sorted by id: the position of this instance is its
+ * shard index and their number the shard count, so the shards are rebalanced as soon as the lease of a missing instance expires</li>
+ * </ul>
+ * In the dynamic mode the live instances are recorded in a single versioned record ('membership' in 'lease_dir'), updated under a file lock when the set of the
+ * live instances changes: the instances assigning their shard with the same version of the record agree on the shard count, and the version is logged by each run.
+ * The shard is fixed at the start of a run: the Products of an instance that stops during a run are billed by the next run of the remaining instances.
+ */
+@Component
+public class ShardAssignment {
+
+	private static final Logger logger = LoggerFactory.getLogger(ShardAssignment.class);
+	private static final String LEASE_EXTENSION = ".lease";
+	private static final String MEMBERSHIP_FILE = "membership";
+
+	/*
+	 * Version of the set of the live instances (-1 if the membership record cannot be written) and the live instances, sorted
+	 */
+	private record Membership(long version, List<String> instances) {}
+
+	private final boolean enabled;
+	private final int shardIndex;
+	private final int shardCount;
+	private final Path leaseDir;
+	private final long leaseTtlMillis;
+	private final String instanceId;
+
+	private ScheduledExecutorService heartbeat;
+	private Shard lastShard;
+
+	public ShardAssignment(@Value("${billing.scheduler.sharding.enabled}") boolean enabled,
+			@Value("${billing.scheduler.sharding.shard_index}") int shardIndex,
+			@Value("${billing.scheduler.sharding.shard_count}") int shardCount,
+			@Value("${billing.scheduler.sharding.lease_dir}") String leaseDir,
+			@Value("${billing.scheduler.sharding.lease_ttl_seconds}") long leaseTtlSeconds,
+			@Value("${billing.scheduler.sharding.instance_id}") String instanceId) {
+
+		if (enabled && shardIndex >= 0 && shardIndex >= shardCount) {
+			throw new IllegalArgumentException("Unexpected value " + shardIndex + " for billing.scheduler.sharding.shard_index: it must be lower than shard_count (" + shardCount + ")");
+		}
+
+		this.enabled = enabled;
+		this.shardIndex = shardIndex;
+		this.shardCount = shardCount;
+		this.leaseDir = Paths.get(leaseDir);
+		this.leaseTtlMillis = Math.max(3, leaseTtlSeconds) * 1000;
+		this.instanceId = instanceId == null || instanceId.isBlank() ? defaultInstanceId() : instanceId;
+	}
+
+	/**
+	 * @return true if the shards are assigned dynamically through the lease files
+	 */
+	public boolean isDynamic() {
+		return enabled && shardIndex < 0;
+	}
+
+	/**
+	 * @return the {@link Shard} configured for this instance: {@link Shard#ALL} if the sharding is not enabled, null if the shards are assigned dynamically
+	 */
+	public Shard getConfiguredShard() {
+		if (!enabled)
+			return Shard.ALL;
+		return isDynamic() ? null : new Shard(shardIndex, Math.max(1, shardCount));
+	}
+
+	/**
+	 * @return the identifier of this instance
+	 */
+	public String getInstanceId() {
+		return instanceId;
+	}
+
+	/**
+	 * Starts the renewal of the lease of this instance
+	 */
+	@EventListener(ContextRefreshedEvent.class)
+	public synchronized void start() {
+		if (!isDynamic() || heartbeat != null)
+			return;
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("shard-lease-");
+		threadFactory.setDaemon(true);
+		heartbeat = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		heartbeat.scheduleWithFixedDelay(this::renewLease, 0, leaseTtlMillis / 3, TimeUnit.MILLISECONDS);
+		logger.info("Dynamic sharding: instance '{}' with leases in {}", instanceId, leaseDir.toAbsolutePath());
+	}
+
+	/**
+	 * Releases the lease of this instance, so that the other instances take over its shard at their next run
+	 */
+	@PreDestroy
+	public synchronized void stop() {
+		if (heartbeat == null)
+			return;
+
+		heartbeat.shutdownNow();
+		heartbeat = null;
+		try {
+			Files.deleteIfExists(leaseFile(instanceId));
+		} catch (IOException e) {
+			logger.warn("Error releasing the lease of instance '{}': {}", instanceId, e.getMessage());
+		}
+	}
+
+	/**
+	 * Assigns the shard processed by a run
+	 *
+	 * @return the {@link Shard} of this instance ({@link Shard#ALL} if the sharding is not enabled)
+	 */
+	public synchronized Shard assignRun() {
+		Shard shard;
+		if (!isDynamic()) {
+			shard = getConfiguredShard();
+		} else {
+			renewLease();
+			Membership membership = updateMembership();
+			int index = membership.instances().indexOf(instanceId);
+			// the lease cannot be written: all the Products are processed, rather than none
+			shard = index < 0 ? Shard.ALL : new Shard(index, membership.instances().size());
+			logger.info("Instance '{}' assigned to shard {} by membership version {}: {} live instances {}", 
+					instanceId, shard, membership.version(), membership.instances().size(), membership.instances());
+		}
+
+		if (lastShard != null && !lastShard.equals(shard)) {
+			logger.info("Shards rebalanced: instance '{}' moved from shard {} to shard {}", instanceId, lastShard, shard);
+		}
+		lastShard = shard;
+		return shard;
+	}
+
+	/**
+	 * @return the {@link Shard} assigned to the last run, null if no run has been assigned yet
+	 */
+	public synchronized Shard getLastShard() {
+		return lastShard;
+	}
+
+	/*
+	 * Gets the membership record, updating it (with a new version) if the live instances have changed. The record is read and written holding 
+	 * an exclusive lock on 'membership.lock', so the instances never record different sets with the same version.
+	 */
+	private Membership updateMembership() {
+		Path membershipFile = leaseDir.resolve(MEMBERSHIP_FILE);
+		try (FileChannel lockChannel = FileChannel.open(leaseDir.resolve(MEMBERSHIP_FILE + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock lock = lockChannel.lock()) {
+			
+			Membership recorded = readMembership(membershipFile);
+			List<String> liveInstances = getLiveInstances();
+			if (recorded != null && recorded.instances().equals(liveInstances))
+				return recorded;
+			
+			Membership membership = new Membership(recorded == null ? 1 : recorded.version() + 1, liveInstances);
+			Path tmp = membershipFile.resolveSibling(MEMBERSHIP_FILE + ".tmp");
+			Files.writeString(tmp, membership.version() + "\t" + String.join(",", membership.instances()), StandardCharsets.UTF_8);
+			Files.move(tmp, membershipFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			if (recorded != null)
+				logger.info("Membership version {}: live instances changed from {} to {}", membership.version(), recorded.instances(), liveInstances);
+			return membership;
+		} catch (IOException e) {
+			logger.warn("Error updating the membership record in {}, the live instances are read from the leases: {}", leaseDir.toAbsolutePath(), e.getMessage());
+			return new Membership(-1, getLiveInstances());
+		}
+	}
+
+	/*
+	 * Reads the membership record ('<version>\t<instance>,<instance>,...'), null if missing or not valid
+	 */
+	private Membership readMembership(Path membershipFile) throws IOException {
+		if (!Files.exists(membershipFile))
+			return null;
+		
+		String[] fields = Files.readString(membershipFile, StandardCharsets.UTF_8).trim().split("\t", 2);
+		try {
+			List<String> instances = fields.length < 2 || fields[1].isEmpty() ? new ArrayList<String>() : Arrays.asList(fields[1].split(","));
+			return new Membership(Long.parseLong(fields[0]), instances);
+		} catch (NumberFormatException e) {
+			logger.warn("Membership record {} not valid, it is rewritten: {}", membershipFile.toAbsolutePath(), e.getMessage());
+			return null;
+		}
+	}
+
+	/*
+	 * Gets the identifiers of the instances with a lease not expired, sorted
+	 */
+	private List<String> getLiveInstances() {
+		List<String> liveInstances = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+
+		try (DirectoryStream<Path> leases = Files.newDirectoryStream(leaseDir, "*" + LEASE_EXTENSION)) {
+			for (Path lease : leases) {
+				String fileName = lease.getFileName().toString();
+				try {
+					long expiry = Long.parseLong(Files.readString(lease, StandardCharsets.UTF_8).trim());
+					if (expiry > now)
+						liveInstances.add(fileName.substring(0, fileName.length() - LEASE_EXTENSION.length()));
+				} catch (IOException | NumberFormatException e) {
+					// lease being replaced or corrupted: the instance is considered missing
+					logger.debug("Lease {} not readable: {}", fileName, e.getMessage());
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Error reading the leases in {}: {}", leaseDir.toAbsolutePath(), e.getMessage());
+		}
+
+		Collections.sort(liveInstances);
+		return liveInstances;
+	}
+
+	/*
+	 * Writes the expiry time of the lease of this instance in a temporary file, then replaces the lease file
+	 */
+	private void renewLease() {
+		Path lease = leaseFile(instanceId);
+		Path tmp = lease.resolveSibling(instanceId + LEASE_EXTENSION + ".tmp");
+		try {
+			Files.createDirectories(leaseDir);
+			Files.writeString(tmp, Long.toString(System.currentTimeMillis() + leaseTtlMillis), StandardCharsets.UTF_8);
+			Files.move(tmp, lease, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Error renewing the lease of instance '{}': {}", instanceId, e.getMessage());
+		}
+	}
+
+	private Path leaseFile(String id) {
+		return leaseDir.resolve(id + LEASE_EXTENSION);
+	}
+
+	private static String defaultInstanceId() {
+		// e.g., 12345@hostname, with a random suffix since the pid is often 1 in the containers
+		return ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+	}
+
+}
@@ -1,5 +1,6 @@
 package it.eng.dome.billing.scheduler.service;
 
+import java.time.OffsetDateTime;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,6 +13,7 @@ import org.springframework.stereotype.Service;
 
 import it.eng.dome.billing.scheduler.exception.BadTmfDataException;
 import it.eng.dome.billing.scheduler.exception.ExternalServiceException;
+import it.eng.dome.billing.scheduler.model.DownstreamService;
 import it.eng.dome.brokerage.api.AppliedCustomerBillRateApis;
 import it.eng.dome.brokerage.api.CustomerBillApis;
 import it.eng.dome.brokerage.api.fetch.FetchUtils;
@@ -28,6 +30,33 @@ public class TmfDataRetriever {
     
     @Autowired
     private AppliedCustomerBillRateApis appliedCustomerBillRateApis;
+    
+    @Autowired
+    private DownstreamLimiter downstreamLimiter;
+    
+    /**
+     * Builds the filter of the CustomerBills whose billingPeriod ends after a date, to page only a window of the TMF678 history
+     * 
+     * @param from the date
+     * @return the filter for {@link #fetchCustomerBills(String, Map, int, Consumer)}
+     */
+    public static Map<String, String> customerBillsEndingAfter(OffsetDateTime from) {
+    	Map<String, String> filter = new HashMap<>();
+    	filter.put("billingPeriod.endDateTime.gt", from.toString());
+    	return filter;
+    }
+    
+    /**
+     * Builds the filter of the AppliedCustomerBillingRates whose periodCoverage ends after a date, to page only a window of the TMF678 history
+     * 
+     * @param from the date
+     * @return the filter for {@link #fetchAppliedCustomerBillRates(String, Map, int, Consumer)}
+     */
+    public static Map<String, String> acbrsEndingAfter(OffsetDateTime from) {
+    	Map<String, String> filter = new HashMap<>();
+    	filter.put("periodCoverage.endDateTime.gt", from.toString());
+    	return filter;
+    }
 
     /**
      * Fetches customer bills in batches from the TMF API based on the provided fields and filter.
@@ -42,7 +71,7 @@ public class TmfDataRetriever {
         try {
             FetchUtils.fetchByBatch(
                     (FetchUtils.ListedFetcher<CustomerBill>) (f, flt, size, offset) ->
-                            customerBillApis.listCustomerBills(f, flt, size, offset),
+                            downstreamLimiter.call(DownstreamService.TMF678_BILLING, () -> customerBillApis.listCustomerBills(f, flt, size, offset)),
                     fields,
                     filter,
                     batchSize,
@@ -73,7 +102,7 @@ public class TmfDataRetriever {
         }
 
         try {
-            CustomerBill cb = this.customerBillApis.getCustomerBill(customerBillId, null);
+            CustomerBill cb = downstreamLimiter.call(DownstreamService.TMF678_BILLING, () -> this.customerBillApis.getCustomerBill(customerBillId, null));
 
             if (cb == null) {
                 logger.info("No Customer Bill found for Customer Bill with id {}: ", customerBillId);
@@ -105,7 +134,7 @@ public class TmfDataRetriever {
         }
 
         try {
-            AppliedCustomerBillingRate acbr = this.appliedCustomerBillRateApis.getAppliedCustomerBillingRate(acbrId, null);
+            AppliedCustomerBillingRate acbr = downstreamLimiter.call(DownstreamService.TMF678_BILLING, () -> this.appliedCustomerBillRateApis.getAppliedCustomerBillingRate(acbrId, null));
 
             if (acbr == null) {
                 logger.info("No AppliedCustomerBillingRate found for AppliedCustomerBillingRate with id {}: ", acbrId);
@@ -119,6 +148,15 @@ public class TmfDataRetriever {
         }
 	}
 	
+	/**
+	 * Checks if at least one AppliedCustomerBillingRate of a CustomerBill refers to a Product, with a single query (limit=1) to the TMF API.
+	 *
+	 * @param customerBillId The ID of the CustomerBill
+	 * @param productId The ID of the Product
+	 * @return true if at least one AppliedCustomerBillingRate is found, false otherwise
+	 * @throws BadTmfDataException If one of the provided IDs is null.
+	 * @throws ExternalServiceException If an error occurs while retrieving the AppliedCustomerBillingRates.
+	 */
 	public boolean existACBRsForCbAndProduct(String customerBillId,String productId)
             throws BadTmfDataException, ExternalServiceException {
 	 
@@ -137,12 +175,9 @@ public class TmfDataRetriever {
             filter.put("bill.id", customerBillId);
             filter.put("product.id", productId);
 
-            List<AppliedCustomerBillingRate> acbrs = FetchUtils.streamAll(
-            		appliedCustomerBillRateApis::listAppliedCustomerBillingRates,    // method reference
-                    null,                       		   // fields
-                    filter,            					   // filter
-                    100                         	       // pageSize
-            ).toList();
+            // One ACBR is enough to answer: a single page with limit=1
+            List<AppliedCustomerBillingRate> acbrs = downstreamLimiter.call(DownstreamService.TMF678_BILLING, 
+            		() -> appliedCustomerBillRateApis.listAppliedCustomerBillingRates(null, filter, 1, 0));
 
             if (acbrs == null || acbrs.isEmpty()) {
                 logger.info("No AppliedCustomerBillingRate found for Customer Bill with id {} and Product with id {}", customerBillId, productId);
@@ -156,6 +191,29 @@ public class TmfDataRetriever {
         }
     }
 	
+	/**
+	 * Searches an AppliedCustomerBillingRate having a characteristic with a given value, with a single query (limit=1) to the TMF API.
+	 *
+	 * @param characteristicValue the value of the characteristic (e.g., a fingerprint)
+	 * @return the first AppliedCustomerBillingRate found, null otherwise
+	 * @throws ExternalServiceException If an error occurs while retrieving the AppliedCustomerBillingRates.
+	 */
+	public AppliedCustomerBillingRate findACBRByCharacteristicValue(String characteristicValue) throws ExternalServiceException {
+		
+		try {
+			Map<String, String> filter = new HashMap<>();
+			filter.put("characteristic.value", characteristicValue);
+			
+			List<AppliedCustomerBillingRate> acbrs = downstreamLimiter.call(DownstreamService.TMF678_BILLING, 
+            		() -> appliedCustomerBillRateApis.listAppliedCustomerBillingRates(null, filter, 1, 0));
+			
+			return (acbrs == null || acbrs.isEmpty()) ? null : acbrs.get(0);
+		} catch (Exception e) {
+			logger.error("Error retrieving ACBRs with characteristic value {}: {}", characteristicValue, e.getMessage(), e);
+			throw new ExternalServiceException("Failed to retrieve ACBRs with characteristic value: " + characteristicValue, e);
+		}
+	}
+	
 	/**
      * Fetches appliedCustomerBillingRates in batches from the TMF API based on the provided fields and filter.
      * 
@@ -170,7 +228,7 @@ public class TmfDataRetriever {
         try {
             FetchUtils.fetchByBatch(
                     (FetchUtils.ListedFetcher<AppliedCustomerBillingRate>) (f, flt, size, offset) ->
-                            appliedCustomerBillRateApis.listAppliedCustomerBillingRates(f, flt, size, offset),
+                            downstreamLimiter.call(DownstreamService.TMF678_BILLING, () -> appliedCustomerBillRateApis.listAppliedCustomerBillingRates(f, flt, size, offset)),
                     fields,
                     filter,
                     batchSize,
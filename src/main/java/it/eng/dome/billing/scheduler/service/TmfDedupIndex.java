@@ -0,0 +1,163 @@
+package it.eng.dome.billing.scheduler.service;
+
+import java.time.OffsetDateTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import it.eng.dome.billing.scheduler.utils.InvoiceKeys;
+import it.eng.dome.tmforum.tmf678.v4.model.AppliedCustomerBillingRate;
+import it.eng.dome.tmforum.tmf678.v4.model.CustomerBill;
+import it.eng.dome.tmforum.tmf678.v4.model.TimePeriod;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Run-scoped in-memory index of the CustomerBills and AppliedCustomerBillingRates already in TMF, used by the {@link TmfPersistenceService} to detect
+ * the bills already persisted with a hash lookup instead of TMF678 queries.
+ * At the beginning of a BillCycle run, the CustomerBills and ACBRs whose billingPeriod ends after the beginning of the 'persistence.monthsBack' window 
+ * are read from TMF with one sequential scan (filtered on the end of the billingPeriod) and indexed by their {@link InvoiceKeys}; the bills persisted during the run are added to the index.
+ * If the index cannot be built, or it is disabled ('persistence.dedup_index.enabled'), the {@link TmfPersistenceService} queries TMF for each bill.
+ */
+@Component
+public class TmfDedupIndex {
+	
+	private static final Logger logger = LoggerFactory.getLogger(TmfDedupIndex.class);
+	private static final int PAGE_SIZE = 100;
+	
+	private final TmfDataRetriever tmfDataRetriever;
+	private final boolean enabled;
+	
+	private final Map<String, CustomerBill> customerBills = new ConcurrentHashMap<String, CustomerBill>();
+	private final Map<String, AppliedCustomerBillingRate> acbrs = new ConcurrentHashMap<String, AppliedCustomerBillingRate>();
+	
+	private volatile boolean ready = false;
+	
+	public TmfDedupIndex(TmfDataRetriever tmfDataRetriever, @Value("${persistence.dedup_index.enabled}") boolean enabled) {
+		this.tmfDataRetriever = tmfDataRetriever;
+		this.enabled = enabled;
+	}
+	
+	/**
+	 * Builds the index for a BillCycle run, reading from TMF the CustomerBills and ACBRs whose billingPeriod ends after a date
+	 * 
+	 * @param from the beginning of the window of the run (i.e., limitDate - monthsBack)
+	 */
+	public synchronized void startRun(@NotNull OffsetDateTime from) {
+		clear();
+		if (!enabled)
+			return;
+		
+		long start = System.currentTimeMillis();
+		try {
+			// Products billed by each CustomerBill, from its ACBRs
+			Map<String, Set<String>> productsByBill = new ConcurrentHashMap<String, Set<String>>();
+			
+			// only the window is paged from TMF; the check on the client covers the servers ignoring the filter
+			tmfDataRetriever.fetchAppliedCustomerBillRates(null, TmfDataRetriever.acbrsEndingAfter(from), PAGE_SIZE, acbr -> {
+				if (!endsAfter(acbr.getPeriodCoverage(), from))
+					return;
+				
+				String key = InvoiceKeys.acbrKey(acbr);
+				if (key != null)
+					acbrs.putIfAbsent(key, acbr);
+				
+				if (acbr.getBill() != null && acbr.getBill().getId() != null && acbr.getProduct() != null && acbr.getProduct().getId() != null)
+					productsByBill.computeIfAbsent(acbr.getBill().getId(), id -> ConcurrentHashMap.newKeySet()).add(acbr.getProduct().getId());
+			});
+			
+			tmfDataRetriever.fetchCustomerBills(null, TmfDataRetriever.customerBillsEndingAfter(from), PAGE_SIZE, cb -> {
+				if (!endsAfter(cb.getBillingPeriod(), from))
+					return;
+				
+				for (String productId : productsByBill.getOrDefault(cb.getId(), Set.of())) {
+					String key = InvoiceKeys.customerBillKey(cb, productId);
+					if (key != null)
+						customerBills.putIfAbsent(key, cb);
+				}
+			});
+			
+			ready = true;
+			logger.info("Dedup index built in {} ms: {} CustomerBill key(s), {} AppliedCustomerBillingRate key(s)", 
+					System.currentTimeMillis() - start, customerBills.size(), acbrs.size());
+		} catch (Exception e) {
+			clear();
+			logger.warn("Dedup index not available, the bills will be searched in TMF one by one: {}", e.getMessage());
+		}
+	}
+	
+	/**
+	 * Releases the index at the end of a BillCycle run
+	 */
+	public synchronized void endRun() {
+		clear();
+	}
+	
+	/**
+	 * @return true if the index has been built for the current run
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+	
+	/**
+	 * Searches a CustomerBill in the index
+	 * 
+	 * @param cb the local CustomerBill
+	 * @param productId the identifier of the Product associated to the CustomerBill
+	 * @return the matched CustomerBill in TMF, or null if none found
+	 */
+	public CustomerBill findCustomerBill(@NotNull CustomerBill cb, @NotNull String productId) {
+		String key = InvoiceKeys.customerBillKey(cb, productId);
+		return key == null ? null : customerBills.get(key);
+	}
+	
+	/**
+	 * Searches an AppliedCustomerBillingRate in the index
+	 * 
+	 * @param acbr the local AppliedCustomerBillingRate
+	 * @return the matched AppliedCustomerBillingRate in TMF, or null if none found
+	 */
+	public AppliedCustomerBillingRate findAcbr(@NotNull AppliedCustomerBillingRate acbr) {
+		String key = InvoiceKeys.acbrKey(acbr);
+		return key == null ? null : acbrs.get(key);
+	}
+	
+	/**
+	 * Adds to the index a CustomerBill persisted during the run
+	 * 
+	 * @param cb the persisted CustomerBill
+	 * @param productId the identifier of the Product associated to the CustomerBill
+	 */
+	public void addCustomerBill(@NotNull CustomerBill cb, @NotNull String productId) {
+		String key = InvoiceKeys.customerBillKey(cb, productId);
+		if (ready && key != null)
+			customerBills.putIfAbsent(key, cb);
+	}
+	
+	/**
+	 * Adds to the index an AppliedCustomerBillingRate persisted during the run
+	 * 
+	 * @param acbr the persisted AppliedCustomerBillingRate
+	 */
+	public void addAcbr(@NotNull AppliedCustomerBillingRate acbr) {
+		String key = InvoiceKeys.acbrKey(acbr);
+		if (ready && key != null)
+			acbrs.putIfAbsent(key, acbr);
+	}
+	
+	private void clear() {
+		ready = false;
+		customerBills.clear();
+		acbrs.clear();
+	}
+	
+	private static boolean endsAfter(TimePeriod period, OffsetDateTime date) {
+		return period != null && period.getEndDateTime() != null && period.getEndDateTime().isAfter(date);
+	}
+
+}
@@ -1,21 +1,32 @@
 package it.eng.dome.billing.scheduler.service;
 
+import java.time.OffsetDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import it.eng.dome.billing.scheduler.exception.BillingSchedulerException;
 import it.eng.dome.billing.scheduler.exception.ExternalServiceException;
+import it.eng.dome.billing.scheduler.model.DownstreamService;
 import it.eng.dome.billing.scheduler.model.Role;
+import it.eng.dome.billing.scheduler.utils.InvoiceKeys;
 import it.eng.dome.brokerage.api.AppliedCustomerBillRateApis;
 import it.eng.dome.brokerage.api.CustomerBillApis;
 import it.eng.dome.brokerage.model.Invoice;
+import it.eng.dome.tmforum.tmf678.v4.model.AppliedBillingRateCharacteristic;
 import it.eng.dome.tmforum.tmf678.v4.model.AppliedCustomerBillingRate;
 import it.eng.dome.tmforum.tmf678.v4.model.AppliedCustomerBillingRateCreate;
 import it.eng.dome.tmforum.tmf678.v4.model.BillRef;
@@ -40,6 +51,45 @@ public class TmfPersistenceService {
     @Autowired
     private TmfDataRetriever tmfDataRetriever;
     
+    @Autowired
+    private DownstreamLimiter downstreamLimiter;
+    
+    @Autowired
+    private TmfDedupIndex tmfDedupIndex;
+    
+    @Autowired
+    private InvoiceLedger invoiceLedger;
+    
+    @Autowired
+    private RunRegistry runRegistry;
+    
+    @Autowired
+    private LeaderElection leaderElection;
+    
+    @Value("${persistence.fingerprint.enabled}")
+    private boolean fingerprintEnabled;
+    
+    // true => the bills not found by fingerprint are also searched field by field (bills persisted before the fingerprints)
+    @Value("${persistence.fingerprint.legacy_fallback}")
+    private boolean fingerprintLegacyFallback;
+    
+    @Value("${persistence.verify_writes}")
+    private boolean verifyWrites;
+    
+    private final int acbrParallelism;
+    
+    // Shared by all the invoices being persisted: max number of ACBRs persisted at time
+    private final Semaphore acbrPermits;
+    
+    public TmfPersistenceService(@Value("${persistence.acbr_parallelism}") int acbrParallelism) {
+    	this.acbrParallelism = Math.max(1, acbrParallelism);
+    	this.acbrPermits = new Semaphore(this.acbrParallelism, true);
+    }
+    
+    // Names of the ACBR characteristics storing the fingerprints
+    public static final String ACBR_FINGERPRINT = "billingSchedulerFingerprint";
+    public static final String BILL_FINGERPRINT = "billingSchedulerBillFingerprint";
+    
     /**
      * Persists in TMF a list of Invoice related to a product
      * 
@@ -75,31 +125,106 @@ public class TmfPersistenceService {
      */
     public Invoice persistInvoice(@NotNull Invoice invoice,  @NotNull String productId) throws Exception {
     	
-    	CustomerBill persistedCB=this.persistCustomerBill(invoice.getCustomerBill(), productId);
+    	String billFingerprint = InvoiceKeys.customerBillFingerprint(invoice.getCustomerBill(), productId);
+    	// not null if the fingerprint is not null
+    	OffsetDateTime billingPeriodEnd = billFingerprint == null ? null : invoice.getCustomerBill().getBillingPeriod().getEndDateTime();
+    	
+    	// A run whose lease has been lost does not write anymore
+    	leaderElection.checkFencing();
+    	
+    	// Invoice persisted by a previous run: no TMF lookup
+    	if (invoiceLedger.contains(billFingerprint)) {
+    		logger.info("Local Invoice is already on TMF (invoice ledger)");
+    		runRegistry.current().invoiceDeduplicated();
+    		return null;
+    	}
+    	
+    	// The fingerprint of the CustomerBill is stored on its ACBRs: a CustomerBill without ACBRs is searched field by field
+    	boolean withAcbrs = invoice.getAcbrs() != null && !invoice.getAcbrs().isEmpty();
+    	CustomerBill persistedCB=this.persistCustomerBill(invoice.getCustomerBill(), productId, withAcbrs);
     	
 		if(persistedCB!=null) {
 			List<AppliedCustomerBillingRate> acbrs=invoice.getAcbrs();
-			List<AppliedCustomerBillingRate> persistedAcbrs=new ArrayList<AppliedCustomerBillingRate>();
 		
 			for (AppliedCustomerBillingRate acbr : acbrs) {
                 BillRef billRef = new BillRef();
                 billRef.setId(persistedCB.getId());
                 acbr.setBill(billRef);
                 acbr.setIsBilled(true);
-                AppliedCustomerBillingRate persistedAcbr= persistAppliedCustomerBillingRate(acbr);
-                persistedAcbrs.add(persistedAcbr);
+                if (fingerprintEnabled) {
+                	// The fingerprint of the CustomerBill is stored on its ACBRs (the CustomerBill has no characteristics)
+                	addCharacteristic(acbr, BILL_FINGERPRINT, billFingerprint);
+                }
             }
 			
+			List<AppliedCustomerBillingRate> persistedAcbrs=persistAppliedCustomerBillingRates(acbrs, persistedCB.getId());
+			
+			invoiceLedger.record(billFingerprint, billingPeriodEnd);
+			runRegistry.current().invoicePersisted();
 			return new Invoice(persistedCB, persistedAcbrs);
 		}
     	else {
+    		invoiceLedger.record(billFingerprint, billingPeriodEnd);
     		logger.info("Local Invoice is already on TMF");
+    		runRegistry.current().invoiceDeduplicated();
             return null;
     	}
     	
 	}
     
 
+    /*
+     * Persists the ACBRs of a CustomerBill, concurrently if 'persistence.acbr_parallelism' is greater than 1 (at most 'acbr_parallelism' ACBRs at time 
+     * among all the invoices being persisted). All the ACBRs are attempted: the failures are collected and reported together.
+     */
+    private List<AppliedCustomerBillingRate> persistAppliedCustomerBillingRates(@NotNull List<AppliedCustomerBillingRate> acbrs, String customerBillId) throws BillingSchedulerException {
+    	AppliedCustomerBillingRate[] persistedAcbrs = new AppliedCustomerBillingRate[acbrs.size()];
+    	Map<Integer, String> failures = new ConcurrentSkipListMap<Integer, String>();
+    	
+    	if (acbrParallelism <= 1 || acbrs.size() <= 1) {
+    		for (int i = 0; i < acbrs.size(); i++) {
+    			try {
+    				persistedAcbrs[i] = persistAppliedCustomerBillingRate(acbrs.get(i));
+    			} catch (Exception e) {
+    				failures.put(i, e.getMessage());
+    			}
+    		}
+    	} else {
+    		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+    			for (int i = 0; i < acbrs.size(); i++) {
+    				int index = i;
+    				executor.execute(() -> {
+    					try {
+    						acbrPermits.acquire();
+    						try {
+    							persistedAcbrs[index] = persistAppliedCustomerBillingRate(acbrs.get(index));
+    						} finally {
+    							acbrPermits.release();
+    						}
+    					} catch (InterruptedException e) {
+    						Thread.currentThread().interrupt();
+    						failures.put(index, "interrupted");
+    					} catch (Exception e) {
+    						failures.put(index, e.getMessage());
+    					}
+    				});
+    			}
+    		}
+    	}
+    	
+    	if (!failures.isEmpty()) {
+    		failures.forEach((index, message) -> {
+    			AppliedCustomerBillingRate acbr = acbrs.get(index);
+    			logger.error("ACBR {} ({}, periodCoverage {}) of CustomerBill {} not persisted: {}", index, acbr.getType(), 
+    					acbr.getPeriodCoverage() != null ? acbr.getPeriodCoverage().getStartDateTime() + " - " + acbr.getPeriodCoverage().getEndDateTime() : null, 
+    					customerBillId, message);
+    		});
+    		throw new BillingSchedulerException(failures.size() + " of " + acbrs.size() + " ACBR(s) of CustomerBill " + customerBillId + " not persisted");
+    	}
+    	
+    	return new ArrayList<AppliedCustomerBillingRate>(Arrays.asList(persistedAcbrs));
+    }
+
     /**
      * Persist a CustomerBill if not already present on TMF. 
      * 
@@ -108,13 +233,30 @@ public class TmfPersistenceService {
      * @return the persisted CustomerBill, or null if already present
      */
     public CustomerBill persistCustomerBill(@NotNull CustomerBill cb, @NotNull String productId) throws Exception {
-        CustomerBill existingCustomerBill = isCbAlreadyInTMF(cb, productId);
+    	return persistCustomerBill(cb, productId, true);
+    }
+    
+    /*
+     * Persists a CustomerBill if not already present on TMF: withAcbrs false if the CustomerBill has no ACBRs storing its fingerprint
+     */
+    private CustomerBill persistCustomerBill(@NotNull CustomerBill cb, @NotNull String productId, boolean withAcbrs) throws Exception {
+        CustomerBill existingCustomerBill = isCbAlreadyInTMF(cb, productId, withAcbrs);
         
         if (existingCustomerBill == null) {
             CustomerBill cbToPersist = watermark(cb);
-            String id = customerBillApis.createCustomerBill(CustomerBillCreate.fromJson(cbToPersist.toJson()));
+            CustomerBillCreate cbc = CustomerBillCreate.fromJson(cbToPersist.toJson());
+            String id = downstreamLimiter.call(DownstreamService.TMF678_BILLING, () -> customerBillApis.createCustomerBill(cbc));
             logger.info("PERSISTENCE: created CB with id {}", id);
-            return tmfDataRetriever.getCustomerBill(id);
+            CustomerBill persistedCB;
+            if (verifyWrites) {
+            	persistedCB = tmfDataRetriever.getCustomerBill(id);
+            } else {
+            	// The persisted CB is the local one with the id assigned by TMF (no read-after-write)
+            	cbToPersist.setId(id);
+            	persistedCB = cbToPersist;
+            }
+            tmfDedupIndex.addCustomerBill(persistedCB, productId);
+            return persistedCB;
         } else {
             logger.info("Local CB is already on TMF with id {}", existingCustomerBill.getId());
             return null;
@@ -132,12 +274,24 @@ public class TmfPersistenceService {
         AppliedCustomerBillingRate existingACBR = isAcbrAlreadyInTMF(acbr);
 
         if (existingACBR == null) {
+            if (fingerprintEnabled) {
+            	addCharacteristic(acbr, ACBR_FINGERPRINT, InvoiceKeys.acbrFingerprint(acbr));
+            }
             AppliedCustomerBillingRate acbrToPersist = watermark(acbr);
             AppliedCustomerBillingRateCreate acbrc = AppliedCustomerBillingRateCreate.fromJson(acbrToPersist.toJson());
-            String createdId = appliedCustomerBillRateApis.createAppliedCustomerBillingRate(acbrc);
+            String createdId = downstreamLimiter.call(DownstreamService.TMF678_BILLING, () -> appliedCustomerBillRateApis.createAppliedCustomerBillingRate(acbrc));
             logger.info("PERSISTENCE: created ACBR with id {}", createdId);
             
-            return tmfDataRetriever.getACBR(createdId);
+            AppliedCustomerBillingRate persistedAcbr;
+            if (verifyWrites) {
+            	persistedAcbr = tmfDataRetriever.getACBR(createdId);
+            } else {
+            	// The persisted ACBR is the local one with the id assigned by TMF (no read-after-write)
+            	acbrToPersist.setId(createdId);
+            	persistedAcbr = acbrToPersist;
+            }
+            tmfDedupIndex.addAcbr(persistedAcbr);
+            return persistedAcbr;
         } else {
             logger.info("Local ACBR is already on TMF with id {}", existingACBR.getId());
             return existingACBR;
@@ -147,6 +301,8 @@ public class TmfPersistenceService {
     /**
      * Checks if a given CustomerBill already exists in TMF.
      * Uses early-stop fetching: stops as soon as a match is found.
+     * The Product of a candidate is checked on TMF only if its related parties and amount match the local CustomerBill.
+     * If the {@link TmfDedupIndex} of the run is available, the CustomerBill is searched in the index without any TMF query.
      *
      * @param cb the local CustomerBill to check
      * @param productId the identifier of the Product associated to the CB
@@ -155,6 +311,32 @@ public class TmfPersistenceService {
      */
     public CustomerBill isCbAlreadyInTMF(@NotNull CustomerBill cb, @NotNull String productId)
             throws Exception {
+    	return isCbAlreadyInTMF(cb, productId, true);
+    }
+    
+    /*
+     * Checks if a given CustomerBill already exists in TMF. The fingerprint of a CustomerBill is stored on its ACBRs, so a CustomerBill 
+     * without ACBRs (withAcbrs false) cannot be found by fingerprint and is always searched field by field.
+     */
+    private CustomerBill isCbAlreadyInTMF(@NotNull CustomerBill cb, @NotNull String productId, boolean withAcbrs)
+            throws Exception {
+    	
+    	// Lookup in the dedup index of the run, if available
+    	if (tmfDedupIndex.isReady() && InvoiceKeys.customerBillKey(cb, productId) != null) {
+    		return tmfDedupIndex.findCustomerBill(cb, productId);
+    	}
+    	
+    	// Lookup of the fingerprint stored on the ACBRs of the CustomerBill (the bills persisted without fingerprint are searched below, if enabled)
+    	if (fingerprintEnabled && withAcbrs) {
+    		String fingerprint = InvoiceKeys.customerBillFingerprint(cb, productId);
+    		AppliedCustomerBillingRate acbr = findByFingerprint(BILL_FINGERPRINT, fingerprint);
+    		if (acbr != null && acbr.getBill() != null && acbr.getBill().getId() != null) {
+    			logger.debug("Matching CustomerBill found in TMF by fingerprint: {}", acbr.getBill().getId());
+    			return tmfDataRetriever.getCustomerBill(acbr.getBill().getId());
+    		}
+    		if (!fingerprintLegacyFallback)
+    			return null;
+    	}
 
         // Prepare containers for result & loop control ---
         final CustomerBill[] found = {null};
@@ -172,9 +354,6 @@ public class TmfPersistenceService {
 
                 try {
                 	
-                	// Check Product id
-                	boolean productMatch=tmfDataRetriever.existACBRsForCbAndProduct(candidate.getId(), productId);
-                	
                     // Compare related parties ---
                     boolean relatedPartyMatchBuyer = relatedPartyMatchBuyer(cb.getRelatedParty(), candidate.getRelatedParty());
                     boolean relatedPartyMatchSeller = relatedPartyMatchSeller(cb.getRelatedParty(), candidate.getRelatedParty());
@@ -182,7 +361,11 @@ public class TmfPersistenceService {
                     // Compare taxIncludedAmount
                     boolean taxIncludedAmountMatch=this.moneyEquals(cb.getTaxIncludedAmount(), candidate.getTaxIncludedAmount());
                     
-                    if (productMatch && relatedPartyMatchBuyer && relatedPartyMatchSeller && taxIncludedAmountMatch) {
+                    // Check Product id (TMF query) only for the candidates matching the in-memory checks
+                    boolean productMatch=relatedPartyMatchBuyer && relatedPartyMatchSeller && taxIncludedAmountMatch 
+                    		&& tmfDataRetriever.existACBRsForCbAndProduct(candidate.getId(), productId);
+                    
+                    if (productMatch) {
                         found[0] = candidate;
                         stop.set(true);
                         logger.debug("Matching CustomerBill found in TMF: {}", candidate.getId());
@@ -210,6 +393,22 @@ public class TmfPersistenceService {
      * @throws Exception exception in case of error
 	 */
     public AppliedCustomerBillingRate isAcbrAlreadyInTMF(@NotNull AppliedCustomerBillingRate acbr) throws Exception {
+    	
+    	// Lookup in the dedup index of the run, if available
+    	if (tmfDedupIndex.isReady() && InvoiceKeys.acbrKey(acbr) != null) {
+    		return tmfDedupIndex.findAcbr(acbr);
+    	}
+    	
+    	// Lookup of the fingerprint stored on the ACBR (the ACBRs persisted without fingerprint are searched below, if enabled)
+    	if (fingerprintEnabled) {
+    		AppliedCustomerBillingRate found = findByFingerprint(ACBR_FINGERPRINT, InvoiceKeys.acbrFingerprint(acbr));
+    		if (found != null) {
+    			logger.debug("Matching AppliedCustomerBillingRate found in TMF by fingerprint: {}", found.getId());
+    			return found;
+    		}
+    		if (!fingerprintLegacyFallback)
+    			return null;
+    	}
      	
      	// Prepare containers for result & loop control ---     	
      	final AppliedCustomerBillingRate[] found = {null};
@@ -311,6 +510,50 @@ public class TmfPersistenceService {
     }*/
 
 
+    /*
+     * Searches the ACBR with a fingerprint characteristic. The characteristic of the result is checked again, so that a TMF API 
+     * not supporting the filter on 'characteristic.value' never gives a wrong match. An error of TMF is rethrown: it must not be taken
+     * for a bill not in TMF, which would be created again.
+     */
+    private AppliedCustomerBillingRate findByFingerprint(String name, String fingerprint) throws ExternalServiceException {
+    	if (fingerprint == null)
+    		return null;
+    	
+    	AppliedCustomerBillingRate candidate;
+    	try {
+    		candidate = tmfDataRetriever.findACBRByCharacteristicValue(fingerprint);
+    	} catch (ExternalServiceException e) {
+    		throw e;
+    	} catch (Exception e) {
+    		throw new ExternalServiceException("Failed to search by fingerprint " + fingerprint + " in TMF", e);
+    	}
+    	
+    	if (candidate != null && candidate.getCharacteristic() != null) {
+    		for (AppliedBillingRateCharacteristic characteristic : candidate.getCharacteristic()) {
+    			if (characteristic != null && name.equals(characteristic.getName()) && fingerprint.equals(String.valueOf(characteristic.getValue())))
+    				return candidate;
+    		}
+    	}
+    	return null;
+    }
+    
+    /*
+     * Adds (or replaces) a characteristic of an ACBR
+     */
+    private static void addCharacteristic(@NotNull AppliedCustomerBillingRate acbr, @NotNull String name, String value) {
+    	if (value == null)
+    		return;
+    	
+    	if (acbr.getCharacteristic() != null)
+    		acbr.getCharacteristic().removeIf(c -> c != null && name.equals(c.getName()));
+    	
+    	AppliedBillingRateCharacteristic characteristic = new AppliedBillingRateCharacteristic();
+    	characteristic.setName(name);
+    	characteristic.setValueType("string");
+    	characteristic.setValue(value);
+    	acbr.addCharacteristicItem(characteristic);
+    }
+
     private static AppliedCustomerBillingRate watermark(@NotNull AppliedCustomerBillingRate acbr) {
         // FIXME: marking ACBR for dev, remove before flight
 
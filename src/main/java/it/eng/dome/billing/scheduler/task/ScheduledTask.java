@@ -8,11 +8,15 @@ import java.time.OffsetDateTime;
 import java.util.Date;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import it.eng.dome.billing.scheduler.service.BillingSchedulerService;
+import it.eng.dome.billing.scheduler.service.LeaderElection;
+import it.eng.dome.billing.scheduler.service.RunCoordinator;
+import it.eng.dome.billing.scheduler.service.RunRegistry;
 
 @Component
 @EnableScheduling
@@ -23,12 +27,24 @@ public class ScheduledTask {
 
 	@Autowired
 	protected BillingSchedulerService billingService;
+	
+	@Autowired
+	private RunRegistry runRegistry;
+	
+	@Autowired
+	private LeaderElection leaderElection;
+	
+	// true => a run interrupted by a restart is resumed from its last checkpoint
+	@Value("${billing.scheduler.journal.resume}")
+	private boolean resume;
 
 	@Scheduled(cron = "${scheduling.cron}")
 	public void billingCycleTask() throws Exception {
 		logger.info("Scheduling the billing cycle process at {}", dateformat.format(new Date()));
 
-		billingService.manageBillCycle(OffsetDateTime.now(), false);
+		// Only the instance holding the run lock executes the run (also when it is executed later, as follow-up of the active run)
+		OffsetDateTime now = OffsetDateTime.now();
+		runRegistry.execute(RunCoordinator.SCHEDULED_TRIGGER, now, leaderElection.lead(() -> billingService.manageScheduledBillCycle(now, resume)));
 	}
 
 }
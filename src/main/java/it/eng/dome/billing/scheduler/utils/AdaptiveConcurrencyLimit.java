@@ -0,0 +1,194 @@
+package it.eng.dome.billing.scheduler.utils;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limit of the concurrent calls to a downstream service adapted to its latency (gradient of the latency, as in TCP Vegas, with a multiplicative backoff):
+ * <ul>
+ * <li>each successful call compares its round-trip time with the long-term average one: while the latency is stable (up to {@link #TOLERANCE} times the average)
+ * the limit grows by about sqrt(limit), when the latency rises the limit shrinks in proportion (at most by half at each sample)</li>
+ * <li>each call failed because of an overload of the service (see {@link #onDropped()}) reduces the limit by {@link #BACKOFF_RATIO}</li>
+ * </ul>
+ * The limit does not grow while less than half of it is used, and stays between a min and a max value. With min equal to max the limit is fixed,
+ * i.e., it works as a fair semaphore.
+ */
+public class AdaptiveConcurrencyLimit {
+
+	// latency considered stable, compared with the long-term average one
+	private static final double TOLERANCE = 1.5;
+	private static final double SMOOTHING = 0.2;
+	private static final double BACKOFF_RATIO = 0.9;
+	// samples of the long-term average latency
+	private static final int LONG_WINDOW = 600;
+
+	private final int minLimit;
+	private final int maxLimit;
+
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private final Condition available = lock.newCondition();
+
+	private double limit;
+	private int inFlight;
+	private double longRtt;
+
+	/**
+	 * Constructor
+	 *
+	 * @param initialLimit the initial number of concurrent calls
+	 * @param minLimit the min number of concurrent calls
+	 * @param maxLimit the max number of concurrent calls
+	 */
+	public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+	}
+
+	/**
+	 * Creates a fixed limit
+	 *
+	 * @param limit the number of concurrent calls
+	 * @return the {@link AdaptiveConcurrencyLimit} that never changes
+	 */
+	public static AdaptiveConcurrencyLimit fixed(int limit) {
+		return new AdaptiveConcurrencyLimit(limit, limit, limit);
+	}
+
+	/**
+	 * Starts a call, waiting while the number of calls in progress is equal to the limit. The caller must end the call with
+	 * {@link #onSuccess(long)}, {@link #onDropped()} or {@link #onIgnored()}.
+	 *
+	 * @throws InterruptedException if the caller is interrupted while waiting
+	 */
+	public void acquire() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (inFlight >= (int) limit) {
+				available.await();
+			}
+			inFlight++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Ends a successful call, adapting the limit to its latency
+	 *
+	 * @param rttNanos the round-trip time of the call, in nanoseconds
+	 */
+	public void onSuccess(long rttNanos) {
+		lock.lock();
+		try {
+			int used = inFlight--;
+			if (minLimit < maxLimit && rttNanos > 0) {
+				double previous = limit;
+				limit = nextLimit(rttNanos, used);
+				if ((int) limit > (int) previous) {
+					available.signalAll();
+				}
+			}
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Ends a call failed because the service is overloaded (e.g., 5xx, 429 or timeout), backing off the limit
+	 */
+	public void onDropped() {
+		lock.lock();
+		try {
+			inFlight--;
+			if (minLimit < maxLimit) {
+				limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+			}
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Ends a call failed for a reason not related to the load of the service (e.g., 404), without changing the limit
+	 */
+	public void onIgnored() {
+		lock.lock();
+		try {
+			inFlight--;
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the current max number of concurrent calls
+	 */
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of calls in progress
+	 */
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of calls that can be started without waiting
+	 */
+	public int getAvailable() {
+		lock.lock();
+		try {
+			return Math.max(0, (int) limit - inFlight);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return minLimit < maxLimit ? "adaptive [" + minLimit + ", " + maxLimit + "] limit " + getLimit() : "fixed limit " + maxLimit;
+	}
+
+	/*
+	 * Calculates the limit from the gradient between the long-term average latency and the latency of the last call.
+	 * Must be invoked holding the lock.
+	 */
+	private double nextLimit(long rttNanos, int used) {
+		if (longRtt == 0) {
+			longRtt = rttNanos;
+		} else {
+			longRtt += (rttNanos - longRtt) / LONG_WINDOW;
+		}
+		// the average recovers quickly when the latency returns low after a slow period, otherwise it would keep the limit high
+		if (longRtt > 2 * rttNanos) {
+			longRtt *= 0.95;
+		}
+
+		double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / rttNanos));
+		double newLimit = limit * gradient + Math.sqrt(limit);
+		// the limit does not grow if not used (the callers, not the service, are limiting the calls)
+		if (used < limit / 2) {
+			newLimit = Math.min(newLimit, limit);
+		}
+
+		newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+		return Math.max(minLimit, Math.min(maxLimit, newLimit));
+	}
+
+}
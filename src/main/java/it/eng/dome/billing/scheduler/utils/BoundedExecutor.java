@@ -0,0 +1,78 @@
+package it.eng.dome.billing.scheduler.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Wrapper of an {@link ExecutorService} that limits the number of tasks submitted and not yet completed.
+ * When the limit is reached, the {@link #submit(Runnable)} blocks the caller until a running task completes,
+ * so that a producer (e.g., the paging of the Products from TMF) never gets too far ahead of the workers.
+ */
+public class BoundedExecutor implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(BoundedExecutor.class);
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+
+	/**
+	 * Constructor
+	 *
+	 * @param executor the {@link ExecutorService} running the tasks
+	 * @param maxInFlight the max number of tasks submitted and not yet completed
+	 */
+	public BoundedExecutor(@NotNull ExecutorService executor, int maxInFlight) {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("maxInFlight must be greater than 0");
+		}
+		this.executor = executor;
+		this.permits = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Submits a task, waiting if the max number of in-flight tasks has been reached
+	 *
+	 * @param task the task to run
+	 * @throws InterruptedException if the caller is interrupted while waiting
+	 */
+	public void submit(@NotNull Runnable task) throws InterruptedException {
+		permits.acquire();
+		try {
+			executor.execute(() -> {
+				try {
+					task.run();
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops accepting new tasks and waits for the completion of the submitted ones
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				logger.debug("Waiting for the completion of the submitted tasks...");
+			}
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while waiting for the completion of the submitted tasks");
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
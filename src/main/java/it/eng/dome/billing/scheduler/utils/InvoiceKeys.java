@@ -0,0 +1,146 @@
+package it.eng.dome.billing.scheduler.utils;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.OffsetDateTime;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+
+import it.eng.dome.billing.scheduler.model.Role;
+import it.eng.dome.tmforum.tmf678.v4.model.AppliedCustomerBillingRate;
+import it.eng.dome.tmforum.tmf678.v4.model.CustomerBill;
+import it.eng.dome.tmforum.tmf678.v4.model.Money;
+import it.eng.dome.tmforum.tmf678.v4.model.RelatedParty;
+import it.eng.dome.tmforum.tmf678.v4.model.TimePeriod;
+
+/**
+ * Canonical keys of the CustomerBills and AppliedCustomerBillingRates, built from the same fields compared by the TmfPersistenceService to detect 
+ * the bills already persisted in TMF. Two bills have the same key if and only if they are considered the same bill:
+ * <ul>
+ * <li>CustomerBill: Product id, BUYER (or Customer) id, SELLER id, billDate, billingPeriod and taxIncludedAmount</li>
+ * <li>AppliedCustomerBillingRate: Product id, billingAccount id, periodCoverage, type and taxIncludedAmount</li>
+ * </ul>
+ * The dates are normalized to UTC instants and the amounts are rounded to 4 decimals, so that equivalent representations give the same key.
+ * The fingerprints are the SHA-256 of the keys, short enough to be stored on the persisted entities and to be used in the TMF queries.
+ */
+public class InvoiceKeys {
+	
+	private static final String SEPARATOR = "|";
+	private static final int AMOUNT_SCALE = 4;
+	
+	/**
+	 * Builds the key of a CustomerBill
+	 * 
+	 * @param cb the CustomerBill
+	 * @param productId the identifier of the Product billed by the CustomerBill
+	 * @return the key, or null if a field of the key is missing
+	 */
+	public static String customerBillKey(CustomerBill cb, String productId) {
+		if (cb == null || productId == null || cb.getRelatedParty() == null)
+			return null;
+		
+		String buyerId = getRelatedPartyIdByRole(cb.getRelatedParty(), Role.BUYER.getValue());
+		if (buyerId == null)
+			buyerId = getRelatedPartyIdByRole(cb.getRelatedParty(), "Customer");
+		
+		return join(productId, buyerId, getRelatedPartyIdByRole(cb.getRelatedParty(), Role.SELLER.getValue()), 
+				instant(cb.getBillDate()), start(cb.getBillingPeriod()), end(cb.getBillingPeriod()), amount(cb.getTaxIncludedAmount()));
+	}
+	
+	/**
+	 * Builds the key of an AppliedCustomerBillingRate
+	 * 
+	 * @param acbr the AppliedCustomerBillingRate
+	 * @return the key, or null if a field of the key is missing
+	 */
+	public static String acbrKey(AppliedCustomerBillingRate acbr) {
+		if (acbr == null || acbr.getProduct() == null || acbr.getBillingAccount() == null)
+			return null;
+		
+		return join(acbr.getProduct().getId(), acbr.getBillingAccount().getId(), start(acbr.getPeriodCoverage()), end(acbr.getPeriodCoverage()), 
+				acbr.getType() == null ? null : acbr.getType().toLowerCase(Locale.ROOT), amount(acbr.getTaxIncludedAmount()));
+	}
+	
+	/**
+	 * Builds the fingerprint of a CustomerBill
+	 * 
+	 * @param cb the CustomerBill
+	 * @param productId the identifier of the Product billed by the CustomerBill
+	 * @return the fingerprint, or null if a field of the key is missing
+	 */
+	public static String customerBillFingerprint(CustomerBill cb, String productId) {
+		return fingerprint("CustomerBill", customerBillKey(cb, productId));
+	}
+	
+	/**
+	 * Builds the fingerprint of an AppliedCustomerBillingRate
+	 * 
+	 * @param acbr the AppliedCustomerBillingRate
+	 * @return the fingerprint, or null if a field of the key is missing
+	 */
+	public static String acbrFingerprint(AppliedCustomerBillingRate acbr) {
+		return fingerprint("AppliedCustomerBillingRate", acbrKey(acbr));
+	}
+	
+	/*
+	 * SHA-256 (hex) of the type and the key of an entity
+	 */
+	private static String fingerprint(String type, String key) {
+		if (key == null)
+			return null;
+		
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest((type + SEPARATOR + key).getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+	
+	/*
+	 * Joins the fields of a key, or returns null if one of them is null
+	 */
+	private static String join(String... fields) {
+		for (String field : fields) {
+			if (field == null)
+				return null;
+		}
+		return String.join(SEPARATOR, fields);
+	}
+	
+	private static String start(TimePeriod period) {
+		return period == null ? null : instant(period.getStartDateTime());
+	}
+	
+	private static String end(TimePeriod period) {
+		return period == null ? null : instant(period.getEndDateTime());
+	}
+	
+	private static String instant(OffsetDateTime date) {
+		return date == null ? null : date.toInstant().toString();
+	}
+	
+	/*
+	 * Canonical representation of a Money: unit (upper case) and value rounded to AMOUNT_SCALE decimals
+	 */
+	private static String amount(Money money) {
+		if (money == null || money.getUnit() == null || money.getValue() == null)
+			return null;
+		
+		BigDecimal value = new BigDecimal(Float.toString(money.getValue())).setScale(AMOUNT_SCALE, RoundingMode.HALF_UP);
+		return money.getUnit().trim().toUpperCase(Locale.ROOT) + " " + value.toPlainString();
+	}
+	
+	private static String getRelatedPartyIdByRole(List<RelatedParty> relatedParties, String role) {
+		for (RelatedParty rp : relatedParties) {
+			if (rp != null && rp.getRole() != null && role.equalsIgnoreCase(rp.getRole()))
+				return rp.getId();
+		}
+		return null;
+	}
+
+}
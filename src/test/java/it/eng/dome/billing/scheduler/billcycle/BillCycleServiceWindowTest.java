@@ -0,0 +1,156 @@
+package it.eng.dome.billing.scheduler.billcycle;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import it.eng.dome.billing.scheduler.service.BillCycleService;
+import it.eng.dome.brokerage.model.RecurringChargePeriod;
+import it.eng.dome.brokerage.model.RecurringPeriod;
+
+public class BillCycleServiceWindowTest {
+
+	private final BillCycleService billCycleService = new BillCycleService();
+
+	private final OffsetDateTime[] activationDates = {
+			OffsetDateTime.parse("2022-01-31T10:15:30Z"),
+			OffsetDateTime.parse("2023-02-28T00:00:00Z"),
+			OffsetDateTime.parse("2024-02-29T23:59:59+02:00"),
+			OffsetDateTime.parse("2025-09-01T00:00:00Z")
+	};
+
+	private final RecurringChargePeriod[] recurringChargePeriods = {
+			new RecurringChargePeriod(RecurringPeriod.DAY, 1),
+			new RecurringChargePeriod(RecurringPeriod.DAY, 5),
+			new RecurringChargePeriod(RecurringPeriod.WEEK, 1),
+			new RecurringChargePeriod(RecurringPeriod.WEEK, 2),
+			new RecurringChargePeriod(RecurringPeriod.MONTH, 1),
+			new RecurringChargePeriod(RecurringPeriod.MONTH, 3),
+			new RecurringChargePeriod(RecurringPeriod.YEAR, 1)
+	};
+
+	@Test
+	public void windowedEndDatesMatchIteratedEndDates() {
+		OffsetDateTime to = OffsetDateTime.parse("2026-10-17T12:00:00Z");
+
+		for (OffsetDateTime activationDate : activationDates) {
+			for (RecurringChargePeriod rcp : recurringChargePeriods) {
+				for (int monthsBack = 0; monthsBack <= 14; monthsBack++) {
+					OffsetDateTime from = to.minusMonths(monthsBack);
+
+					List<OffsetDateTime> expected = iterateEndDates(rcp, activationDate, to).stream()
+							.filter(d -> d.isAfter(from))
+							.toList();
+
+					assertEquals(expected, billCycleService.calculateBillingPeriodEndDates(rcp, activationDate, from, to),
+							rcp.getRecurringChargePeriodLenght() + " " + rcp.getRecurringChargePeriodType() + " from " + activationDate + " in (" + from + ", " + to + "]");
+				}
+			}
+		}
+	}
+
+	@Test
+	public void allEndDatesMatchIteratedEndDates() {
+		OffsetDateTime limitDate = OffsetDateTime.parse("2026-10-17T12:00:00Z");
+
+		for (OffsetDateTime activationDate : activationDates) {
+			for (RecurringChargePeriod rcp : recurringChargePeriods) {
+				assertEquals(iterateEndDates(rcp, activationDate, limitDate), billCycleService.calculateBillingPeriodEndDates(rcp, activationDate, limitDate));
+			}
+		}
+	}
+
+	@Test
+	public void windowedBillingPeriodsMatchFilteredBillingPeriods() {
+		OffsetDateTime limitDate = OffsetDateTime.parse("2026-10-17T12:00:00Z");
+		List<List<RecurringChargePeriod>> combinations = List.of(
+				List.of(recurringChargePeriods[4]),
+				List.of(recurringChargePeriods[2], recurringChargePeriods[4]),
+				List.of(recurringChargePeriods[1], recurringChargePeriods[3], recurringChargePeriods[5]),
+				List.of(recurringChargePeriods[0], recurringChargePeriods[6]),
+				List.of(recurringChargePeriods[4], recurringChargePeriods[4]));
+
+		for (OffsetDateTime activationDate : activationDates) {
+			for (List<RecurringChargePeriod> rcps : combinations) {
+				for (int monthsBack = 0; monthsBack <= 14; monthsBack++) {
+					OffsetDateTime threshold = limitDate.minusMonths(monthsBack);
+
+					// Reference: all the billingPeriods up to the limit date, then filtered on the interval
+					Set<OffsetDateTime> endDates = new HashSet<OffsetDateTime>();
+					for (RecurringChargePeriod rcp : rcps) {
+						endDates.addAll(iterateEndDates(rcp, activationDate, limitDate));
+					}
+					List<String> expected = billCycleService.calculateBillingPeriods(new ArrayList<OffsetDateTime>(endDates), activationDate).stream()
+							.filter(bp -> bp.getEndDateTime().isAfter(threshold) && bp.getStartDateTime().isBefore(limitDate))
+							.map(bp -> bp.getStartDateTime() + " - " + bp.getEndDateTime())
+							.toList();
+
+					List<String> actual = billCycleService.calculateBillingPeriods(rcps, activationDate, threshold, limitDate).stream()
+							.map(bp -> bp.getStartDateTime() + " - " + bp.getEndDateTime())
+							.toList();
+
+					assertEquals(expected, actual, "activation " + activationDate + ", monthsBack " + monthsBack);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void lastEndDateBeforeTheFirstPeriodIsNull() {
+		OffsetDateTime activationDate = OffsetDateTime.parse("2025-09-01T00:00:00Z");
+		RecurringChargePeriod rcp = new RecurringChargePeriod(RecurringPeriod.MONTH, 1);
+
+		assertNull(billCycleService.calculateLastBillingPeriodEndDate(rcp, activationDate, activationDate.plusDays(10)));
+		assertEquals(OffsetDateTime.parse("2025-09-30T00:00:00Z"),
+				billCycleService.calculateLastBillingPeriodEndDate(rcp, activationDate, OffsetDateTime.parse("2025-10-15T00:00:00Z")));
+	}
+
+	@Test
+	public void nextEndDateIsTheFirstIteratedEndDateAfterTheDate() {
+		OffsetDateTime date = OffsetDateTime.parse("2026-10-17T12:00:00Z");
+
+		for (OffsetDateTime activationDate : activationDates) {
+			for (RecurringChargePeriod rcp : recurringChargePeriods) {
+				List<OffsetDateTime> endDates = iterateEndDates(rcp, activationDate, date.plusYears(2));
+				OffsetDateTime expected = endDates.stream().filter(d -> d.isAfter(date)).findFirst().get();
+
+				assertEquals(expected, billCycleService.calculateNextBillingPeriodEndDate(List.of(rcp), activationDate, date));
+			}
+		}
+
+		OffsetDateTime activationDate = OffsetDateTime.parse("2025-09-01T00:00:00Z");
+		assertEquals(OffsetDateTime.parse("2026-10-25T00:00:00Z"), billCycleService.calculateNextBillingPeriodEndDate(
+				List.of(recurringChargePeriods[4], recurringChargePeriods[3]), activationDate, date));
+		assertNull(billCycleService.calculateNextBillingPeriodEndDate(List.of(), activationDate, date));
+	}
+
+	/*
+	 * Reference implementation: iterates all the billingPeriods from the activation date
+	 */
+	private List<OffsetDateTime> iterateEndDates(RecurringChargePeriod rcp, OffsetDateTime activationDate, OffsetDateTime limitDate) {
+		List<OffsetDateTime> endDates = new ArrayList<OffsetDateTime>();
+		int length = rcp.getRecurringChargePeriodLenght();
+
+		for (int i = 1;; i++) {
+			OffsetDateTime endDate = switch (rcp.getRecurringChargePeriodType()) {
+			case DAY -> activationDate.plusDays((long) i * length - 1);
+			case WEEK -> activationDate.plusDays((long) i * 7 * length - 1);
+			case MONTH -> activationDate.plusMonths((long) i * length).minusDays(1);
+			case YEAR -> activationDate.plusYears((long) i * length).minusDays(1);
+			default -> throw new IllegalArgumentException();
+			};
+			if (endDate.isAfter(limitDate)) {
+				return endDates;
+			}
+			endDates.add(endDate);
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+package it.eng.dome.billing.scheduler.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.client.RestClient;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.eng.dome.billing.scheduler.service.DownstreamLimiter;
+import it.eng.dome.brokerage.model.Invoice;
+import it.eng.dome.tmforum.tmf678.v4.model.TimePeriod;
+
+public class BillingProxyApiClientBatchTest {
+
+	private final DownstreamLimiter downstreamLimiter = new DownstreamLimiter(1, 1, 1, 4);
+
+	@Test
+	public void allTheBillingPeriodsAreSentInOneRequest() throws Exception {
+		try (StubBillingProxy proxy = new StubBillingProxy(true)) {
+			BillingProxyApiClient client = new BillingProxyApiClient(proxy.getUrl(), BillingProxyApiClient.BATCH_AUTO, RestClient.create(), downstreamLimiter, new ObjectMapper());
+
+			List<List<Invoice>> invoices = client.billingBills("urn:ngsi-ld:product:1", billingPeriods(9));
+
+			assertEquals(9, invoices.size());
+			assertEquals(1, proxy.getBatchRequests());
+			assertEquals(0, proxy.getBillRequests());
+			assertTrue(client.isBatchSupported());
+		}
+	}
+
+	@Test
+	public void batchNotSupportedFallsBackToOneRequestPerBillingPeriod() throws Exception {
+		try (StubBillingProxy proxy = new StubBillingProxy(false)) {
+			BillingProxyApiClient client = new BillingProxyApiClient(proxy.getUrl(), BillingProxyApiClient.BATCH_AUTO, RestClient.create(), downstreamLimiter, new ObjectMapper());
+
+			assertNull(client.billingBills("urn:ngsi-ld:product:1", billingPeriods(3)));
+			assertFalse(client.isBatchSupported());
+
+			// the batch API is not probed again
+			assertNull(client.billingBills("urn:ngsi-ld:product:2", billingPeriods(3)));
+			for (TimePeriod billingPeriod : billingPeriods(3)) {
+				client.billingBill("urn:ngsi-ld:product:2", billingPeriod);
+			}
+			assertEquals(0, proxy.getBatchRequests());
+			assertEquals(3, proxy.getBillRequests());
+		}
+	}
+
+	@Test
+	public void anErrorOfTheFirstBatchRequestFallsBackToOneRequestPerBillingPeriod() throws Exception {
+		try (StubBillingProxy proxy = new StubBillingProxy(403)) {
+			BillingProxyApiClient client = new BillingProxyApiClient(proxy.getUrl(), BillingProxyApiClient.BATCH_AUTO, RestClient.create(), downstreamLimiter, new ObjectMapper());
+
+			assertNull(client.billingBills("urn:ngsi-ld:product:1", billingPeriods(3)));
+			assertFalse(client.isBatchSupported());
+		}
+	}
+
+	@Test
+	public void batchDisabledNeverCallsTheBatchApi() throws Exception {
+		try (StubBillingProxy proxy = new StubBillingProxy(true)) {
+			BillingProxyApiClient client = new BillingProxyApiClient(proxy.getUrl(), BillingProxyApiClient.BATCH_DISABLED, RestClient.create(), downstreamLimiter, new ObjectMapper());
+
+			assertNull(client.billingBills("urn:ngsi-ld:product:1", billingPeriods(2)));
+			assertEquals(0, proxy.getBatchRequests());
+		}
+	}
+
+	private List<TimePeriod> billingPeriods(int count) {
+		List<TimePeriod> billingPeriods = new ArrayList<TimePeriod>();
+		OffsetDateTime start = OffsetDateTime.parse("2026-08-01T00:00:00Z");
+		for (int i = 0; i < count; i++) {
+			TimePeriod billingPeriod = new TimePeriod();
+			billingPeriod.setStartDateTime(start.plusWeeks(i));
+			billingPeriod.setEndDateTime(start.plusWeeks(i + 1).minusDays(1));
+			billingPeriods.add(billingPeriod);
+		}
+		return billingPeriods;
+	}
+
+}
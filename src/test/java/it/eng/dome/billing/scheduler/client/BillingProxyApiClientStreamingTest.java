@@ -0,0 +1,44 @@
+package it.eng.dome.billing.scheduler.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.OffsetDateTime;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.client.RestClientResponseException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.eng.dome.billing.scheduler.model.DownstreamService;
+import it.eng.dome.billing.scheduler.service.DownstreamLimiter;
+import it.eng.dome.tmforum.tmf678.v4.model.TimePeriod;
+
+public class BillingProxyApiClientStreamingTest {
+
+	@Test
+	public void anOverloadedBillingProxyBacksOffItsLimit() throws Exception {
+		DownstreamLimiter downstreamLimiter = new DownstreamLimiter(1, 1, 1, 10, true, 1, 20, null);
+
+		try (StubBillingProxy proxy = new StubBillingProxy(404, 503)) {
+			BillingProxyApiClient client = new BillingProxyApiClient(proxy.getUrl(), BillingProxyApiClient.BATCH_DISABLED, RestClient.create(), downstreamLimiter, new ObjectMapper());
+
+			RestClientResponseException e = assertThrows(RestClientResponseException.class,
+					() -> client.billingBill("urn:ngsi-ld:product:1", billingPeriod(), invoice -> {}));
+
+			assertEquals(503, e.getStatusCode().value());
+			assertEquals(9, downstreamLimiter.getLimit(DownstreamService.BILLING_PROXY));
+			// the permit has been released
+			assertEquals(9, downstreamLimiter.getAvailablePermits(DownstreamService.BILLING_PROXY));
+		}
+	}
+
+	private TimePeriod billingPeriod() {
+		TimePeriod billingPeriod = new TimePeriod();
+		billingPeriod.setStartDateTime(OffsetDateTime.parse("2026-08-01T00:00:00Z"));
+		billingPeriod.setEndDateTime(OffsetDateTime.parse("2026-08-31T00:00:00Z"));
+		return billingPeriod;
+	}
+
+}
@@ -0,0 +1,93 @@
+package it.eng.dome.billing.scheduler.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stub of the BillingProxy exposing /billing/bill and, optionally, /billing/bill/batch (otherwise answered with an error status).
+ * Each billing request is answered with an empty list of invoices.
+ */
+public class StubBillingProxy implements AutoCloseable {
+
+	private final HttpServer server;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private final AtomicInteger billRequests = new AtomicInteger();
+	private final AtomicInteger batchRequests = new AtomicInteger();
+
+	public StubBillingProxy(boolean batchSupported) throws IOException {
+		this(batchSupported ? 200 : 404);
+	}
+
+	/**
+	 * @param batchStatus the HTTP status of the answers to /billing/bill/batch (e.g., 403 for a gateway rejecting the path)
+	 */
+	public StubBillingProxy(int batchStatus) throws IOException {
+		this(batchStatus, 200);
+	}
+
+	/**
+	 * @param batchStatus the HTTP status of the answers to /billing/bill/batch
+	 * @param billStatus the HTTP status of the answers to /billing/bill (e.g., 503 for an overloaded BillingProxy)
+	 */
+	public StubBillingProxy(int batchStatus, int billStatus) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+
+		server.createContext("/billing/bill", exchange -> {
+			if (exchange.getRequestURI().getPath().equals("/billing/bill/batch")) {
+				if (batchStatus != 200) {
+					respond(exchange, batchStatus, "");
+					return;
+				}
+				batchRequests.incrementAndGet();
+				JsonNode requests = objectMapper.readTree(exchange.getRequestBody());
+				StringJoiner body = new StringJoiner(",", "[", "]");
+				for (int i = 0; i < requests.size(); i++) {
+					body.add("[]");
+				}
+				respond(exchange, 200, body.toString());
+			} else {
+				billRequests.incrementAndGet();
+				exchange.getRequestBody().readAllBytes();
+				respond(exchange, billStatus, billStatus == 200 ? "[]" : "");
+			}
+		});
+		server.start();
+	}
+
+	public String getUrl() {
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	public int getBillRequests() {
+		return billRequests.get();
+	}
+
+	public int getBatchRequests() {
+		return batchRequests.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	private void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package it.eng.dome.billing.scheduler.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.OffsetDateTime;
+
+import org.junit.jupiter.api.Test;
+
+import it.eng.dome.billing.scheduler.model.RunProgress.Status;
+
+public class RunProgressTest {
+
+	@Test
+	public void aRunIsEndedOnlyAfterQueuedAndRunning() {
+		RunProgress progress = new RunProgress("run-1", "api", OffsetDateTime.parse("2026-10-17T12:00:00Z"));
+		assertEquals(Status.QUEUED, progress.getStatus());
+		assertFalse(progress.isEnded());
+
+		progress.started();
+		assertEquals(Status.RUNNING, progress.getStatus());
+		assertFalse(progress.isEnded());
+		assertNotNull(progress.getStartedAt());
+
+		progress.ended(Status.COMPLETED, null);
+		assertTrue(progress.isEnded());
+		assertNotNull(progress.getEndedAt());
+	}
+
+	@Test
+	public void aCancelledRunIsNotResumable() {
+		RunProgress progress = new RunProgress("run-1", "api", OffsetDateTime.parse("2026-10-17T12:00:00Z"));
+		progress.requestCancel();
+		assertTrue(progress.isCancelRequested());
+		assertFalse(progress.isResumable());
+
+		RunProgress paused = new RunProgress("run-2", "api", OffsetDateTime.parse("2026-10-17T12:00:00Z"));
+		paused.requestPause();
+		assertTrue(paused.isCancelRequested());
+		assertTrue(paused.isResumable());
+	}
+
+	@Test
+	public void theEtaIsKnownOnlyForARunningRunWithATotal() {
+		RunProgress progress = new RunProgress("run-1", "scheduled", OffsetDateTime.parse("2026-10-17T12:00:00Z"));
+		progress.setProductsTotal(10);
+		assertNull(progress.getEta());
+
+		progress.started();
+		progress.productProcessed();
+		assertNotNull(progress.getEta());
+
+		progress.ended(Status.COMPLETED, null);
+		assertNull(progress.getEta());
+	}
+
+}
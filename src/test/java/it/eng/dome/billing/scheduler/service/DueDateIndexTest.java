@@ -0,0 +1,64 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+
+public class DueDateIndexTest {
+
+	private final OffsetDateTime limitDate = OffsetDateTime.parse("2026-10-17T12:00:00Z");
+
+	@Test
+	public void onlyTheDueProductsAreReturnedAfterARestart() throws Exception {
+		Path dataDir = Files.createTempDirectory("due-index");
+
+		DueDateIndex index = new DueDateIndex(true, 24, dataDir.toString());
+		assertFalse(index.isUsable(limitDate));
+
+		index.startRun(true);
+		index.update("p-3", OffsetDateTime.parse("2026-10-31T00:00:00Z"));
+		index.update("p-1", OffsetDateTime.parse("2026-10-18T00:00:00Z"));
+		index.update("p-2", OffsetDateTime.parse("2026-10-20T00:00:00+02:00"));
+		index.update("p-4", null);
+		index.endRun(limitDate);
+
+		DueDateIndex restarted = new DueDateIndex(true, 24, dataDir.toString());
+		assertTrue(restarted.isUsable(limitDate.plusHours(23)));
+		assertFalse(restarted.isUsable(limitDate.plusHours(24)));
+		assertEquals(List.of(), restarted.getDueProductIds(limitDate));
+		assertEquals(List.of("p-1"), restarted.getDueProductIds(limitDate.plusDays(1)));
+		assertEquals(List.of("p-1", "p-2"), restarted.getDueProductIds(OffsetDateTime.parse("2026-10-19T23:00:00Z")));
+		assertEquals(List.of("p-1", "p-2", "p-3"), restarted.getDueProductIds(limitDate.plusYears(10)));
+	}
+
+	@Test
+	public void aRunOfTheDueProductsUpdatesTheIndex() throws Exception {
+		Path dataDir = Files.createTempDirectory("due-index");
+
+		DueDateIndex index = new DueDateIndex(true, 24, dataDir.toString());
+		index.startRun(true);
+		index.update("p-1", OffsetDateTime.parse("2026-10-18T00:00:00Z"));
+		index.update("p-2", OffsetDateTime.parse("2026-10-18T00:00:00Z"));
+		index.update("p-3", OffsetDateTime.parse("2026-10-31T00:00:00Z"));
+		index.endRun(limitDate);
+
+		OffsetDateTime nextDay = limitDate.plusDays(1);
+		index.startRun(false);
+		index.update("p-1", OffsetDateTime.parse("2026-11-18T00:00:00Z"));
+		index.remove("p-2");
+		index.endRun(nextDay);
+
+		// a run of the due Products does not change the build time
+		assertFalse(index.isUsable(limitDate.plusHours(24)));
+		assertEquals(List.of("p-3", "p-1"), index.getDueProductIds(limitDate.plusYears(1)));
+	}
+
+}
@@ -0,0 +1,59 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+import it.eng.dome.billing.scheduler.model.RunLease;
+
+public class FileRunLockTest {
+
+	private final Duration ttl = Duration.ofSeconds(30);
+
+	@Test
+	public void onlyOneInstanceHoldsTheLock() throws Exception {
+		Path lockDir = Files.createTempDirectory("locks");
+		FileRunLock instanceA = new FileRunLock(lockDir.toString());
+		FileRunLock instanceB = new FileRunLock(lockDir.toString());
+
+		RunLease leaseA = instanceA.tryAcquire("billing-cycle", "a", ttl);
+		assertNotNull(leaseA);
+		assertNull(instanceB.tryAcquire("billing-cycle", "b", ttl));
+
+		RunLease renewed = instanceA.renew(leaseA, ttl);
+		assertNotNull(renewed);
+		assertEquals(leaseA.fencingToken(), renewed.fencingToken());
+
+		instanceA.release(renewed);
+		RunLease leaseB = instanceB.tryAcquire("billing-cycle", "b", ttl);
+		assertNotNull(leaseB);
+		assertTrue(leaseB.fencingToken() > leaseA.fencingToken());
+	}
+
+	@Test
+	public void anExpiredLeaseIsTakenOverAndCannotBeRenewed() throws Exception {
+		Path lockDir = Files.createTempDirectory("locks");
+		FileRunLock runLock = new FileRunLock(lockDir.toString());
+
+		RunLease leaseA = runLock.tryAcquire("billing-cycle", "a", Duration.ZERO);
+		assertNotNull(leaseA);
+		assertTrue(leaseA.isExpired());
+
+		RunLease leaseB = runLock.tryAcquire("billing-cycle", "b", ttl);
+		assertNotNull(leaseB);
+		assertEquals(leaseA.fencingToken() + 1, leaseB.fencingToken());
+
+		// the stale leader cannot renew nor release the lease of the new one
+		assertNull(runLock.renew(leaseA, ttl));
+		runLock.release(leaseA);
+		assertNull(runLock.tryAcquire("billing-cycle", "a", ttl));
+	}
+
+}
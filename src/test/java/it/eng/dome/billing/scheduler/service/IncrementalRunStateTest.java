@@ -0,0 +1,160 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.eng.dome.tmforum.tmf637.v4.model.Product;
+import it.eng.dome.tmforum.tmf678.v4.model.TimePeriod;
+
+public class IncrementalRunStateTest {
+
+	private static final OffsetDateTime OCTOBER = OffsetDateTime.parse("2026-10-01T00:00:00Z");
+	private static final OffsetDateTime NOVEMBER = OffsetDateTime.parse("2026-11-01T00:00:00Z");
+
+	private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+
+	@Test
+	public void anUnchangedProductIsDueOnlyWhenABillingPeriodEnds() throws Exception {
+		IncrementalRunState state = new IncrementalRunState(objectMapper, true, 10, Files.createTempDirectory("incremental").toString());
+		Product product = product("p-1", "Product 1");
+		List<TimePeriod> periods = periods("2026-09-30T00:00:00Z", "2026-10-31T00:00:00Z");
+
+		assertTrue(state.startRun(false));
+		assertTrue(process(state, product, periods, OCTOBER));
+		state.endRun();
+
+		assertFalse(state.startRun(false));
+		assertFalse(state.isDue(product("p-1", "Product 1"), periods, OCTOBER));
+		// the billingPeriod ending at 2026-10-31 is closed at the November limit date
+		assertTrue(state.isDue(product("p-1", "Product 1"), periods, NOVEMBER));
+	}
+
+	@Test
+	public void aNewOrModifiedProductIsDue() throws Exception {
+		IncrementalRunState state = new IncrementalRunState(objectMapper, true, 10, Files.createTempDirectory("incremental").toString());
+		List<TimePeriod> periods = periods("2026-09-30T00:00:00Z");
+
+		state.startRun(false);
+		process(state, product("p-1", "Product 1"), periods, OCTOBER);
+		state.endRun();
+
+		assertFalse(state.startRun(false));
+		assertTrue(state.isDue(product("p-1", "Product 1 renamed"), periods, OCTOBER));
+		assertTrue(state.isDue(product("p-2", "Product 2"), periods, OCTOBER));
+	}
+
+	@Test
+	public void aFullSweepRunsEveryFullSweepEveryRuns() throws Exception {
+		IncrementalRunState state = new IncrementalRunState(objectMapper, true, 3, Files.createTempDirectory("incremental").toString());
+		List<TimePeriod> periods = periods("2026-09-30T00:00:00Z");
+
+		// the first run is a full sweep: no Product known
+		assertTrue(state.startRun(false));
+		process(state, product("p-1", "Product 1"), periods, OCTOBER);
+		state.endRun();
+
+		assertFalse(state.startRun(false));
+		state.endRun();
+		// a partial run does not count for the cadence
+		assertFalse(state.startRun(true));
+		state.endRun();
+		assertFalse(state.startRun(false));
+		state.endRun();
+		assertTrue(state.startRun(false));
+		process(state, product("p-1", "Product 1"), periods, OCTOBER);
+		state.endRun();
+		assertFalse(state.startRun(false));
+	}
+
+	@Test
+	public void aFullSweepForgetsTheProductsNotSeen() throws Exception {
+		Path dataDir = Files.createTempDirectory("incremental");
+		IncrementalRunState state = new IncrementalRunState(objectMapper, true, 1, dataDir.toString());
+		List<TimePeriod> periods = periods("2026-09-30T00:00:00Z");
+
+		state.startRun(false);
+		process(state, product("p-1", "Product 1"), periods, OCTOBER);
+		process(state, product("p-2", "Product 2"), periods, OCTOBER);
+		state.endRun();
+
+		// p-2 is not active anymore
+		assertTrue(state.startRun(false));
+		state.isDue(product("p-1", "Product 1"), periods, OCTOBER);
+		state.endRun();
+
+		IncrementalRunState restarted = new IncrementalRunState(objectMapper, true, 10, dataDir.toString());
+		assertFalse(restarted.startRun(false));
+		assertFalse(restarted.isDue(product("p-1", "Product 1"), periods, OCTOBER));
+		assertTrue(restarted.isDue(product("p-2", "Product 2"), periods, OCTOBER));
+	}
+
+	@Test
+	public void theStateSurvivesARestart() throws Exception {
+		Path dataDir = Files.createTempDirectory("incremental");
+		List<TimePeriod> periods = periods("2026-09-30T00:00:00Z");
+
+		IncrementalRunState state = new IncrementalRunState(objectMapper, true, 10, dataDir.toString());
+		state.startRun(false);
+		process(state, product("p-1", "Product 1"), periods, OCTOBER);
+		state.endRun();
+
+		IncrementalRunState restarted = new IncrementalRunState(objectMapper, true, 10, dataDir.toString());
+		assertFalse(restarted.startRun(false));
+		assertFalse(restarted.isDue(product("p-1", "Product 1"), periods, OCTOBER));
+		assertEquals(1, Files.list(dataDir).count());
+	}
+
+	@Test
+	public void everyRunIsAFullSweepWhenDisabled() throws Exception {
+		IncrementalRunState state = new IncrementalRunState(objectMapper, false, 10, Files.createTempDirectory("incremental").toString());
+		List<TimePeriod> periods = periods("2026-09-30T00:00:00Z");
+
+		state.startRun(false);
+		process(state, product("p-1", "Product 1"), periods, OCTOBER);
+		state.endRun();
+
+		assertTrue(state.startRun(false));
+		assertTrue(state.isDue(product("p-1", "Product 1"), periods, OCTOBER));
+	}
+
+	/*
+	 * Processes a Product as the BillCycle does: checked if due, then recorded as processed
+	 */
+	private static boolean process(IncrementalRunState state, Product product, List<TimePeriod> periods, OffsetDateTime limitDate) {
+		boolean due = state.isDue(product, periods, limitDate);
+		state.recordProcessed(product, periods, limitDate);
+		return due;
+	}
+
+	private static Product product(String id, String name) {
+		Product product = new Product();
+		product.setId(id);
+		product.setName(name);
+		return product;
+	}
+
+	private static List<TimePeriod> periods(String... ends) {
+		List<TimePeriod> periods = new ArrayList<TimePeriod>();
+		OffsetDateTime start = OffsetDateTime.parse("2026-09-01T00:00:00Z");
+		for (String end : ends) {
+			TimePeriod period = new TimePeriod();
+			period.setStartDateTime(start);
+			period.setEndDateTime(OffsetDateTime.parse(end));
+			periods.add(period);
+			start = period.getEndDateTime();
+		}
+		return periods;
+	}
+
+}
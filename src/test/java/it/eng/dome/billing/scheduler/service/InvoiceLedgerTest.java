@@ -0,0 +1,49 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+
+import org.junit.jupiter.api.Test;
+
+
+public class InvoiceLedgerTest {
+
+	@Test
+	public void entriesSurviveARestart() throws Exception {
+		Path dataDir = Files.createTempDirectory("ledger");
+		Files.createFile(dataDir.resolve("invoice-ledger.log"));
+
+		InvoiceLedger ledger = new InvoiceLedger(null, true, dataDir.toString());
+		ledger.record("fp-1", OffsetDateTime.parse("2026-09-30T00:00:00Z"));
+		ledger.record("fp-2", OffsetDateTime.parse("2026-10-31T00:00:00Z"));
+		ledger.close();
+
+		InvoiceLedger restarted = new InvoiceLedger(null, true, dataDir.toString());
+		assertTrue(restarted.contains("fp-1"));
+		assertTrue(restarted.contains("fp-2"));
+		assertFalse(restarted.contains("fp-3"));
+		restarted.close();
+	}
+
+	@Test
+	public void entriesBeforeTheWindowAreCompacted() throws Exception {
+		Path dataDir = Files.createTempDirectory("ledger");
+		Files.createFile(dataDir.resolve("invoice-ledger.log"));
+
+		InvoiceLedger ledger = new InvoiceLedger(null, true, dataDir.toString());
+		ledger.record("fp-1", OffsetDateTime.parse("2026-07-31T00:00:00Z"));
+		ledger.record("fp-2", OffsetDateTime.parse("2026-09-30T00:00:00Z"));
+		ledger.startRun(OffsetDateTime.parse("2026-08-17T00:00:00Z"));
+		ledger.record("fp-3", OffsetDateTime.parse("2026-10-31T00:00:00Z"));
+		ledger.close();
+
+		assertFalse(ledger.contains("fp-1"));
+		assertEquals(2, Files.readAllLines(dataDir.resolve("invoice-ledger.log")).size());
+	}
+
+}
@@ -0,0 +1,65 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import it.eng.dome.billing.scheduler.exception.BillingSchedulerException;
+import it.eng.dome.billing.scheduler.model.RunProgress;
+import it.eng.dome.billing.scheduler.model.RunProgress.Status;
+
+public class LeaderElectionTest {
+
+	private final OffsetDateTime limitDate = OffsetDateTime.parse("2026-10-17T12:00:00Z");
+
+	@Test
+	public void writesAreRefusedWithoutALease() throws Exception {
+		Path lockDir = Files.createTempDirectory("locks");
+		RunRegistry runRegistry = new RunRegistry(new RunCoordinator(false), 10);
+		LeaderElection leaderElection = newLeaderElection(lockDir, runRegistry, "instance-a");
+
+		// e.g., the invoices left by a previous execution, persisted out of a run
+		assertThrows(BillingSchedulerException.class, leaderElection::checkFencing);
+
+		List<String> runs = new CopyOnWriteArrayList<String>();
+		runRegistry.execute(RunCoordinator.API_TRIGGER, limitDate, leaderElection.lead(() -> {
+			leaderElection.checkFencing();
+			runs.add("run");
+		}));
+		assertEquals(List.of("run"), runs);
+		leaderElection.stop();
+		runRegistry.stop();
+	}
+
+	@Test
+	public void aRunIsSkippedIfTheLockIsHeldByAnotherInstance() throws Exception {
+		Path lockDir = Files.createTempDirectory("locks");
+		new FileRunLock(lockDir.toString()).tryAcquire("billing-cycle", "instance-b", Duration.ofSeconds(30));
+
+		RunRegistry runRegistry = new RunRegistry(new RunCoordinator(false), 10);
+		LeaderElection leaderElection = newLeaderElection(lockDir, runRegistry, "instance-a");
+
+		List<String> runs = new CopyOnWriteArrayList<String>();
+		RunProgress progress = runRegistry.execute(RunCoordinator.API_TRIGGER, limitDate, leaderElection.lead(() -> runs.add("run")));
+
+		assertEquals(Status.SKIPPED, progress.getStatus());
+		assertTrue(runs.isEmpty());
+		leaderElection.stop();
+		runRegistry.stop();
+	}
+
+	private static LeaderElection newLeaderElection(Path lockDir, RunRegistry runRegistry, String instanceId) {
+		ShardAssignment shardAssignment = new ShardAssignment(false, 0, 1, lockDir.toString(), 30, instanceId);
+		return new LeaderElection(new FileRunLock(lockDir.toString()), runRegistry, shardAssignment, true, 30, 0, "billing-cycle");
+	}
+
+}
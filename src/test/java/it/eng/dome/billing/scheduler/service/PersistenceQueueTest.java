@@ -0,0 +1,161 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.eng.dome.billing.scheduler.service.PersistenceQueue.ProductBatch;
+import it.eng.dome.brokerage.model.Invoice;
+import it.eng.dome.tmforum.tmf678.v4.model.AppliedCustomerBillingRate;
+import it.eng.dome.tmforum.tmf678.v4.model.CustomerBill;
+
+public class PersistenceQueueTest {
+
+	private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+
+	@Test
+	public void theLeftoversOfACrashArePersistedOnceAtTheRestart() throws Exception {
+		Path spillDir = Files.createTempDirectory("persistence-queue");
+		List<String> lines = new ArrayList<String>();
+		lines.add(queuedLine(1, "product-1", "cb-1"));
+		lines.add(queuedLine(2, "product-2", "cb-2"));
+		lines.add(queuedLine(3, "product-1", "cb-3"));
+		lines.add("D\t2");
+		lines.add(queuedLine(4, "product-3", "cb-4"));
+		// the last line was being written by the crashed process
+		lines.add("Q\t5\tproduct-3\t{\"customerBill\":");
+		Files.write(spillDir.resolve("persistence-queue.log"), lines, StandardCharsets.UTF_8);
+
+		Map<String, Integer> persisted = new ConcurrentHashMap<String, Integer>();
+		PersistenceQueue queue = new PersistenceQueue(countingService(persisted), objectMapper, true, 4, 2, spillDir.toString(), false);
+		queue.start();
+		queue.awaitIdle();
+		queue.stop();
+
+		assertEquals(Map.of("cb-1", 1, "cb-3", 1, "cb-4", 1), persisted);
+
+		// the leftovers are done: a further restart persists nothing
+		PersistenceQueue restarted = new PersistenceQueue(countingService(persisted), objectMapper, true, 4, 2, spillDir.toString(), false);
+		restarted.start();
+		restarted.awaitIdle();
+		restarted.stop();
+
+		assertEquals(Map.of("cb-1", 1, "cb-3", 1, "cb-4", 1), persisted);
+		assertTrue(Files.notExists(spillDir.resolve("persistence-queue.log.tmp")));
+	}
+
+	@Test
+	public void withTheRunLockTheLeftoversWaitForARun() throws Exception {
+		Path spillDir = Files.createTempDirectory("persistence-queue");
+		Files.write(spillDir.resolve("persistence-queue.log"), List.of(queuedLine(1, "product-1", "cb-1")), StandardCharsets.UTF_8);
+
+		Map<String, Integer> persisted = new ConcurrentHashMap<String, Integer>();
+		PersistenceQueue queue = new PersistenceQueue(countingService(persisted), objectMapper, true, 4, 2, spillDir.toString(), true);
+		queue.start();
+		Thread.sleep(200);
+		assertTrue(persisted.isEmpty());
+
+		queue.startRun();
+		queue.awaitIdle();
+		queue.stop();
+		assertEquals(Map.of("cb-1", 1), persisted);
+	}
+
+	@Test
+	public void aBatchIsNotifiedOnlyWhenClosed() throws Exception {
+		Map<String, Integer> persisted = new ConcurrentHashMap<String, Integer>();
+		PersistenceQueue queue = new PersistenceQueue(countingService(persisted), objectMapper, true, 4, 1, Files.createTempDirectory("persistence-queue").toString(), false);
+		queue.start();
+
+		AtomicReference<Boolean> notified = new AtomicReference<Boolean>();
+		ProductBatch batch = queue.openBatch("product-1", notified::set);
+		batch.add(invoice("cb-1"));
+		batch.add(invoice("cb-2"));
+		queue.awaitIdle();
+		assertNull(notified.get());
+
+		batch.close();
+		assertEquals(Boolean.TRUE, notified.get());
+		assertEquals(2, persisted.size());
+		queue.stop();
+	}
+
+	@Test
+	public void anAbortedBatchIsNotifiedAsFailed() throws Exception {
+		Map<String, Integer> persisted = new ConcurrentHashMap<String, Integer>();
+		PersistenceQueue queue = new PersistenceQueue(countingService(persisted), objectMapper, true, 4, 1, Files.createTempDirectory("persistence-queue").toString(), false);
+		queue.start();
+
+		AtomicReference<Boolean> notified = new AtomicReference<Boolean>();
+		ProductBatch batch = queue.openBatch("product-1", notified::set);
+		batch.add(invoice("cb-1"));
+		batch.abort();
+		queue.awaitIdle();
+
+		assertEquals(Boolean.FALSE, notified.get());
+		queue.stop();
+	}
+
+	@Test
+	public void aBatchWithAnInvoiceNotPersistedIsNotifiedAsFailed() throws Exception {
+		TmfPersistenceService failingService = new TmfPersistenceService(1) {
+			@Override
+			public Invoice persistInvoice(Invoice invoice, String productId) throws Exception {
+				throw new Exception("TMF unavailable");
+			}
+		};
+		Path spillDir = Files.createTempDirectory("persistence-queue");
+		PersistenceQueue queue = new PersistenceQueue(failingService, objectMapper, true, 4, 1, spillDir.toString(), false);
+		queue.start();
+
+		AtomicReference<Boolean> notified = new AtomicReference<Boolean>();
+		ProductBatch batch = queue.openBatch("product-1", notified::set);
+		batch.add(invoice("cb-1"));
+		batch.close();
+		queue.awaitIdle();
+		queue.stop();
+
+		assertEquals(Boolean.FALSE, notified.get());
+		// the invoice is kept in the spill file for the next start
+		Map<String, Integer> persisted = new ConcurrentHashMap<String, Integer>();
+		PersistenceQueue restarted = new PersistenceQueue(countingService(persisted), objectMapper, true, 4, 1, spillDir.toString(), false);
+		restarted.start();
+		restarted.awaitIdle();
+		restarted.stop();
+		assertEquals(Map.of("cb-1", 1), persisted);
+	}
+
+	private static TmfPersistenceService countingService(Map<String, Integer> persisted) {
+		return new TmfPersistenceService(1) {
+			@Override
+			public Invoice persistInvoice(Invoice invoice, String productId) throws Exception {
+				persisted.merge(invoice.getCustomerBill().getId(), 1, Integer::sum);
+				return invoice;
+			}
+		};
+	}
+
+	private String queuedLine(long seq, String productId, String customerBillId) throws Exception {
+		return "Q\t" + seq + "\t" + productId + "\t" + objectMapper.writeValueAsString(invoice(customerBillId));
+	}
+
+	private static Invoice invoice(String customerBillId) {
+		CustomerBill cb = new CustomerBill();
+		cb.setId(customerBillId);
+		return new Invoice(cb, new ArrayList<AppliedCustomerBillingRate>());
+	}
+
+}
@@ -0,0 +1,69 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.eng.dome.brokerage.api.ProductCatalogManagementApis;
+import it.eng.dome.tmforum.tmf620.v4.model.ProductOfferingPrice;
+
+public class ProductOfferingPriceCacheTest {
+
+	@Test
+	public void eachBatchIsRetrievedWithASinglePage() throws Exception {
+		ProductCatalogManagementApis apis = mock(ProductCatalogManagementApis.class);
+		when(apis.listProductOfferingPrices(any(), any(), anyInt(), anyInt()))
+				.thenReturn(List.of(pop("pop-1"), pop("pop-2")))
+				.thenReturn(List.of(pop("pop-3")));
+
+		ProductOfferingPriceCache cache = newCache(apis);
+		cache.prefetch(List.of("pop-1", "pop-2", "pop-3"), Runnable::run);
+
+		verify(apis, times(1)).listProductOfferingPrices(isNull(), any(), eq(2), eq(0));
+		verify(apis, times(1)).listProductOfferingPrices(isNull(), any(), eq(1), eq(0));
+		assertTrue(cache.contains("pop-1"));
+		assertTrue(cache.contains("pop-2"));
+		assertTrue(cache.contains("pop-3"));
+	}
+
+	@Test
+	public void aCatalogIgnoringTheIdFilterIsNotScanned() throws Exception {
+		ProductCatalogManagementApis apis = mock(ProductCatalogManagementApis.class);
+		// every request returns the same page of the catalog, whatever the filter and the offset
+		when(apis.listProductOfferingPrices(any(), any(), anyInt(), anyInt()))
+				.thenReturn(List.of(pop("pop-x"), pop("pop-1"), pop("pop-y")));
+
+		ProductOfferingPriceCache cache = newCache(apis);
+		cache.prefetch(List.of("pop-1", "pop-2"), Runnable::run);
+
+		// one page only: the POP not returned is retrieved by id
+		verify(apis, times(1)).listProductOfferingPrices(any(), any(), anyInt(), anyInt());
+		assertTrue(cache.contains("pop-1"));
+		assertFalse(cache.contains("pop-x"));
+		assertFalse(cache.contains("pop-y"));
+	}
+
+	private static ProductOfferingPriceCache newCache(ProductCatalogManagementApis apis) {
+		return new ProductOfferingPriceCache(apis, new DownstreamLimiter(10, 10, 10, 10), new SimpleMeterRegistry(),
+				true, 100, 60, 5, false, true, 2);
+	}
+
+	private static ProductOfferingPrice pop(String id) {
+		ProductOfferingPrice pop = new ProductOfferingPrice();
+		pop.setId(id);
+		return pop;
+	}
+
+}
@@ -0,0 +1,80 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import it.eng.dome.billing.scheduler.service.RunCoordinator.Outcome;
+
+public class RunCoordinatorTest {
+
+	private final OffsetDateTime limitDate = OffsetDateTime.parse("2026-10-17T12:00:00Z");
+
+	@Test
+	public void triggersDuringARunAreCoalesced() throws Exception {
+		RunCoordinator coordinator = new RunCoordinator(false);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> runs = new CopyOnWriteArrayList<String>();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<Outcome> first = executor.submit(() -> coordinator.execute(RunCoordinator.SCHEDULED_TRIGGER, limitDate, () -> {
+			runs.add("first");
+			started.countDown();
+			release.await();
+		}));
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		assertTrue(coordinator.getState().running());
+		assertEquals(Outcome.COALESCED, coordinator.execute(RunCoordinator.API_TRIGGER, limitDate, () -> runs.add("second")));
+
+		release.countDown();
+		assertEquals(Outcome.EXECUTED, first.get(10, TimeUnit.SECONDS));
+		executor.shutdown();
+
+		assertEquals(List.of("first"), runs);
+		assertFalse(coordinator.getState().running());
+		assertEquals(1, coordinator.getState().completedRuns());
+		assertEquals(1, coordinator.getState().coalescedTriggers());
+	}
+
+	@Test
+	public void theLastTriggerDuringARunIsExecutedAsFollowUp() throws Exception {
+		RunCoordinator coordinator = new RunCoordinator(true);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> runs = new CopyOnWriteArrayList<String>();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<Outcome> first = executor.submit(() -> coordinator.execute(RunCoordinator.SCHEDULED_TRIGGER, limitDate, () -> {
+			runs.add("first");
+			started.countDown();
+			release.await();
+		}));
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		assertEquals(Outcome.QUEUED, coordinator.execute(RunCoordinator.API_TRIGGER, limitDate, () -> runs.add("second")));
+		assertEquals(Outcome.QUEUED, coordinator.execute(RunCoordinator.API_TRIGGER, limitDate, () -> runs.add("third")));
+		assertTrue(coordinator.getState().followUpQueued());
+
+		release.countDown();
+		assertEquals(Outcome.EXECUTED, first.get(10, TimeUnit.SECONDS));
+		executor.shutdown();
+
+		assertEquals(List.of("first", "third"), runs);
+		assertEquals(2, coordinator.getState().completedRuns());
+		assertEquals(1, coordinator.getState().coalescedTriggers());
+	}
+
+}
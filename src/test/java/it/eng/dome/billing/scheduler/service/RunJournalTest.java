@@ -0,0 +1,83 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.eng.dome.billing.scheduler.model.RunCheckpoint;
+import it.eng.dome.billing.scheduler.model.Shard;
+
+public class RunJournalTest {
+
+	private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+
+	@Test
+	public void checkpointAdvancesOnlyOverContiguousPages() throws Exception {
+		Path dataDir = Files.createTempDirectory("journal");
+		OffsetDateTime limitDate = OffsetDateTime.parse("2026-10-17T00:00:00Z");
+
+		RunJournal journal = new RunJournal(objectMapper, true, 0, dataDir.toString());
+		journal.begin("run-1", limitDate, 0, null, new Shard(1, 3));
+		journal.pageCompleted("run-1", 1, 100, "p-200");
+		journal.pageCompleted("run-1", 0, 100, "p-100");
+		journal.pageCompleted("run-1", 3, 100, "p-400");
+
+		// A restart: the run is read back from the journal
+		RunCheckpoint checkpoint = new RunJournal(objectMapper, true, 0, dataDir.toString()).getInterruptedRun();
+		assertEquals("run-1", checkpoint.runId());
+		assertEquals(limitDate.toInstant(), checkpoint.limitDate().toInstant());
+		assertEquals(200, checkpoint.processedProducts());
+		assertEquals("p-200", checkpoint.lastProductId());
+		assertEquals(new Shard(1, 3), checkpoint.shard());
+	}
+
+	@Test
+	public void completedRunIsNotResumed() throws Exception {
+		Path dataDir = Files.createTempDirectory("journal");
+
+		RunJournal journal = new RunJournal(objectMapper, true, 0, dataDir.toString());
+		journal.begin("run-1", OffsetDateTime.parse("2026-10-17T00:00:00Z"), 0, null, Shard.ALL);
+		journal.pageCompleted("run-1", 0, 42, "p-42");
+		journal.complete("run-1");
+
+		assertNull(journal.getInterruptedRun());
+	}
+
+	@Test
+	public void abandonedRunIsNotResumed() throws Exception {
+		Path dataDir = Files.createTempDirectory("journal");
+
+		RunJournal journal = new RunJournal(objectMapper, true, 0, dataDir.toString());
+		journal.begin("run-1", OffsetDateTime.parse("2026-10-17T00:00:00Z"), 0, null, Shard.ALL);
+		journal.pageCompleted("run-1", 0, 100, "p-100");
+		journal.abandon("run-1");
+
+		assertNull(new RunJournal(objectMapper, true, 0, dataDir.toString()).getInterruptedRun());
+	}
+
+	@Test
+	public void runsNotJournaledDoNotAdvanceTheCheckpoint() throws Exception {
+		Path dataDir = Files.createTempDirectory("journal");
+
+		RunJournal journal = new RunJournal(objectMapper, true, 0, dataDir.toString());
+		journal.begin("run-1", OffsetDateTime.parse("2026-10-17T00:00:00Z"), 0, null, Shard.ALL);
+		journal.pageCompleted("run-1", 0, 100, "p-100");
+
+		// run-1 has been cancelled, run-2 processes the due Products only (not journaled)
+		journal.pageCompleted("run-2", 0, 100, "p-due");
+		journal.complete("run-2");
+
+		RunCheckpoint checkpoint = journal.getInterruptedRun();
+		assertEquals("run-1", checkpoint.runId());
+		assertEquals(100, checkpoint.processedProducts());
+		assertEquals("p-100", checkpoint.lastProductId());
+	}
+
+}
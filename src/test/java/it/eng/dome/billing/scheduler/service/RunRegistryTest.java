@@ -0,0 +1,153 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import it.eng.dome.billing.scheduler.model.RunProgress;
+import it.eng.dome.billing.scheduler.model.RunProgress.Status;
+
+public class RunRegistryTest {
+
+	private final OffsetDateTime limitDate = OffsetDateTime.parse("2026-10-17T12:00:00Z");
+
+	@Test
+	public void aTriggerDuringARunIsCoalesced() throws Exception {
+		RunRegistry registry = new RunRegistry(new RunCoordinator(false), 10);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		RunProgress first = registry.submit(RunCoordinator.SCHEDULED_TRIGGER, limitDate, () -> {
+			started.countDown();
+			release.await();
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertEquals(Status.RUNNING, first.getStatus());
+		assertEquals(first, registry.current());
+
+		RunProgress second = registry.execute(RunCoordinator.API_TRIGGER, limitDate, () -> {});
+		assertEquals(Status.COALESCED, second.getStatus());
+
+		release.countDown();
+		awaitEnded(first);
+		assertEquals(Status.COMPLETED, first.getStatus());
+		assertEquals(List.of(second, first), registry.list());
+		registry.stop();
+	}
+
+	@Test
+	public void aQueuedRunIsReplacedByTheLastTrigger() throws Exception {
+		RunRegistry registry = new RunRegistry(new RunCoordinator(true), 10);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> runs = new CopyOnWriteArrayList<String>();
+
+		RunProgress first = registry.submit(RunCoordinator.SCHEDULED_TRIGGER, limitDate, () -> {
+			runs.add("first");
+			started.countDown();
+			release.await();
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		RunProgress second = registry.execute(RunCoordinator.API_TRIGGER, limitDate, () -> runs.add("second"));
+		assertEquals(Status.QUEUED, second.getStatus());
+		RunProgress third = registry.execute(RunCoordinator.API_TRIGGER, limitDate, () -> runs.add("third"));
+		assertEquals(Status.QUEUED, third.getStatus());
+		assertEquals(Status.COALESCED, second.getStatus());
+
+		release.countDown();
+		awaitEnded(first);
+		awaitEnded(third);
+		assertEquals(Status.COMPLETED, third.getStatus());
+		assertEquals(List.of("first", "third"), runs);
+		registry.stop();
+	}
+
+	@Test
+	public void aQueuedRunCancelledIsNeverStarted() throws Exception {
+		RunRegistry registry = new RunRegistry(new RunCoordinator(true), 10);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> runs = new CopyOnWriteArrayList<String>();
+
+		RunProgress first = registry.submit(RunCoordinator.SCHEDULED_TRIGGER, limitDate, () -> {
+			started.countDown();
+			release.await();
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		RunProgress second = registry.execute(RunCoordinator.API_TRIGGER, limitDate, () -> runs.add("second"));
+		registry.cancel(second.getId(), false);
+		assertEquals(Status.CANCELLED, second.getStatus());
+
+		release.countDown();
+		awaitEnded(first);
+		assertTrue(runs.isEmpty());
+		registry.stop();
+	}
+
+	@Test
+	public void anActiveRunIsCancelledOrPaused() throws Exception {
+		RunRegistry registry = new RunRegistry(new RunCoordinator(false), 10);
+
+		RunProgress cancelled = cancelActiveRun(registry, false);
+		assertEquals(Status.CANCELLED, cancelled.getStatus());
+		assertFalse(cancelled.isResumable());
+
+		RunProgress paused = cancelActiveRun(registry, true);
+		assertEquals(Status.CANCELLED, paused.getStatus());
+		assertTrue(paused.isResumable());
+		registry.stop();
+	}
+
+	@Test
+	public void pausingWithoutAnActiveRunDoesNotAffectTheDetachedProgress() throws Exception {
+		RunRegistry registry = new RunRegistry(new RunCoordinator(false), 10);
+
+		registry.pauseActive();
+		assertFalse(registry.current().isCancelRequested());
+
+		RunProgress next = registry.execute(RunCoordinator.SCHEDULED_TRIGGER, limitDate, () -> {});
+		assertEquals(Status.COMPLETED, next.getStatus());
+		assertFalse(next.isCancelRequested());
+		registry.stop();
+	}
+
+	/*
+	 * Submits a run waiting for its cancellation, then cancels it
+	 */
+	private RunProgress cancelActiveRun(RunRegistry registry, boolean resumable) throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		RunProgress[] active = new RunProgress[1];
+		RunProgress progress = registry.submit(RunCoordinator.API_TRIGGER, limitDate, () -> {
+			active[0] = registry.current();
+			started.countDown();
+			while (!active[0].isCancelRequested()) {
+				Thread.sleep(10);
+			}
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertEquals(progress, active[0]);
+
+		registry.cancel(progress.getId(), resumable);
+		awaitEnded(progress);
+		return progress;
+	}
+
+	private static void awaitEnded(RunProgress progress) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!progress.isEnded() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(progress.isEnded());
+	}
+
+}
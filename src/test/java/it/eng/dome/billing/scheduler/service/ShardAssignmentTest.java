@@ -0,0 +1,77 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import it.eng.dome.billing.scheduler.model.Shard;
+
+public class ShardAssignmentTest {
+
+	@Test
+	public void eachProductBelongsToExactlyOneShard() {
+		int count = 3;
+		int[] sizes = new int[count];
+
+		for (int i = 0; i < 3000; i++) {
+			String productId = "urn:ngsi-ld:product:" + UUID.randomUUID();
+			int owners = 0;
+			for (int index = 0; index < count; index++) {
+				if (new Shard(index, count).owns(productId)) {
+					owners++;
+					sizes[index]++;
+				}
+			}
+			assertEquals(1, owners, productId);
+		}
+
+		for (int size : sizes) {
+			assertTrue(size > 800, "unbalanced shards");
+		}
+	}
+
+	@Test
+	public void shardsAreRebalancedWhenAnInstanceIsMissing() throws Exception {
+		Path leaseDir = Files.createTempDirectory("leases");
+
+		ShardAssignment first = new ShardAssignment(true, -1, 0, leaseDir.toString(), 30, "instance-a");
+		ShardAssignment second = new ShardAssignment(true, -1, 0, leaseDir.toString(), 30, "instance-b");
+
+		assertEquals(new Shard(0, 1), first.assignRun());
+		assertEquals(new Shard(1, 2), second.assignRun());
+		assertEquals(new Shard(0, 2), first.assignRun());
+
+		// the lease of a stopped instance is released
+		first.start();
+		first.stop();
+		assertEquals(new Shard(0, 1), second.assignRun());
+
+		// an expired lease is ignored
+		Files.writeString(leaseDir.resolve("instance-0.lease"), Long.toString(System.currentTimeMillis() - 1000));
+		assertEquals(new Shard(0, 1), second.assignRun());
+	}
+
+	@Test
+	public void theMembershipVersionChangesOnlyWithTheLiveInstances() throws Exception {
+		Path leaseDir = Files.createTempDirectory("leases");
+
+		ShardAssignment first = new ShardAssignment(true, -1, 0, leaseDir.toString(), 30, "instance-a");
+		ShardAssignment second = new ShardAssignment(true, -1, 0, leaseDir.toString(), 30, "instance-b");
+
+		first.assignRun();
+		assertEquals("1\tinstance-a", Files.readString(leaseDir.resolve("membership")));
+		second.assignRun();
+		assertEquals("2\tinstance-a,instance-b", Files.readString(leaseDir.resolve("membership")));
+
+		// same live instances: both use the same version
+		assertEquals(new Shard(0, 2), first.assignRun());
+		assertEquals(new Shard(1, 2), second.assignRun());
+		assertEquals("2\tinstance-a,instance-b", Files.readString(leaseDir.resolve("membership")));
+	}
+
+}
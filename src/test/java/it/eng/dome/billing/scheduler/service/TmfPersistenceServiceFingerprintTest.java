@@ -0,0 +1,109 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import it.eng.dome.billing.scheduler.exception.ExternalServiceException;
+import it.eng.dome.billing.scheduler.model.RunProgress;
+import it.eng.dome.brokerage.api.CustomerBillApis;
+import it.eng.dome.brokerage.model.Invoice;
+import it.eng.dome.tmforum.tmf678.v4.model.AppliedCustomerBillingRate;
+import it.eng.dome.tmforum.tmf678.v4.model.CustomerBill;
+import it.eng.dome.tmforum.tmf678.v4.model.CustomerBillCreate;
+import it.eng.dome.tmforum.tmf678.v4.model.Money;
+import it.eng.dome.tmforum.tmf678.v4.model.RelatedParty;
+import it.eng.dome.tmforum.tmf678.v4.model.TimePeriod;
+
+public class TmfPersistenceServiceFingerprintTest {
+
+	private static final String PRODUCT_ID = "urn:ngsi-ld:product:1";
+
+	private TmfPersistenceService service;
+	private TmfDataRetriever tmfDataRetriever;
+	private CustomerBillApis customerBillApis;
+
+	@BeforeEach
+	public void setUp() {
+		tmfDataRetriever = mock(TmfDataRetriever.class);
+		customerBillApis = mock(CustomerBillApis.class);
+		RunRegistry runRegistry = mock(RunRegistry.class);
+		when(runRegistry.current()).thenReturn(mock(RunProgress.class));
+
+		service = new TmfPersistenceService(1);
+		ReflectionTestUtils.setField(service, "tmfDataRetriever", tmfDataRetriever);
+		ReflectionTestUtils.setField(service, "customerBillApis", customerBillApis);
+		ReflectionTestUtils.setField(service, "downstreamLimiter", new DownstreamLimiter(4, 4, 4, 4));
+		ReflectionTestUtils.setField(service, "tmfDedupIndex", mock(TmfDedupIndex.class));
+		ReflectionTestUtils.setField(service, "invoiceLedger", mock(InvoiceLedger.class));
+		ReflectionTestUtils.setField(service, "leaderElection", mock(LeaderElection.class));
+		ReflectionTestUtils.setField(service, "runRegistry", runRegistry);
+		ReflectionTestUtils.setField(service, "fingerprintEnabled", true);
+		ReflectionTestUtils.setField(service, "fingerprintLegacyFallback", false);
+	}
+
+	@Test
+	public void aFailedSearchByFingerprintDoesNotCreateTheBill() throws Exception {
+		when(tmfDataRetriever.findACBRByCharacteristicValue(anyString())).thenThrow(new ExternalServiceException("TMF unavailable"));
+
+		Invoice invoice = new Invoice(customerBill(), new ArrayList<AppliedCustomerBillingRate>(List.of(new AppliedCustomerBillingRate())));
+
+		assertThrows(ExternalServiceException.class, () -> service.persistInvoice(invoice, PRODUCT_ID));
+		verify(customerBillApis, never()).createCustomerBill(any(CustomerBillCreate.class));
+	}
+
+	@Test
+	public void aBillWithoutAcbrsIsSearchedFieldByField() throws Exception {
+		when(customerBillApis.createCustomerBill(any(CustomerBillCreate.class))).thenReturn("urn:ngsi-ld:customer-bill:1");
+
+		Invoice invoice = new Invoice(customerBill(), new ArrayList<AppliedCustomerBillingRate>());
+
+		assertNotNull(service.persistInvoice(invoice, PRODUCT_ID));
+		// the fingerprint of the bill is stored on its ACBRs: without ACBRs, the fingerprint cannot be found
+		verify(tmfDataRetriever, never()).findACBRByCharacteristicValue(anyString());
+		verify(tmfDataRetriever).fetchCustomerBills(any(), any(), anyInt(), any());
+	}
+
+	private CustomerBill customerBill() {
+		CustomerBill cb = new CustomerBill();
+		cb.setBillDate(OffsetDateTime.parse("2026-09-30T00:00:00Z"));
+
+		TimePeriod billingPeriod = new TimePeriod();
+		billingPeriod.setStartDateTime(OffsetDateTime.parse("2026-09-01T00:00:00Z"));
+		billingPeriod.setEndDateTime(OffsetDateTime.parse("2026-09-30T00:00:00Z"));
+		cb.setBillingPeriod(billingPeriod);
+
+		List<RelatedParty> relatedParties = new ArrayList<RelatedParty>();
+		relatedParties.add(relatedParty("urn:ngsi-ld:organization:buyer", "Buyer"));
+		relatedParties.add(relatedParty("urn:ngsi-ld:organization:seller", "Seller"));
+		cb.setRelatedParty(relatedParties);
+
+		Money money = new Money();
+		money.setUnit("EUR");
+		money.setValue(10f);
+		cb.setTaxIncludedAmount(money);
+		return cb;
+	}
+
+	private RelatedParty relatedParty(String id, String role) {
+		RelatedParty rp = new RelatedParty();
+		rp.setId(id);
+		rp.setRole(role);
+		return rp;
+	}
+
+}
@@ -0,0 +1,61 @@
+package it.eng.dome.billing.scheduler.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import it.eng.dome.billing.scheduler.exception.BillingSchedulerException;
+
+public class WorkStealingExecutorTest {
+
+	private final BillCycleExecutorFactory factory = new BillCycleExecutorFactory(4, BillCycleExecutorFactory.FORK_JOIN_EXECUTOR);
+
+	@Test
+	public void theSubtasksOfAProductAreSharedByTheWorkers() throws Exception {
+		List<Integer> billingPeriods = List.of(1, 2, 3, 4, 5, 6, 7, 8);
+		Set<String> workers = ConcurrentHashMap.newKeySet();
+
+		ExecutorService executor = factory.newProductExecutor();
+		try {
+			// a single heavy Product: its billingPeriods are forked and stolen by the idle workers
+			Future<List<Integer>> product = executor.submit(() -> factory.fanOut(billingPeriods, period -> {
+				workers.add(Thread.currentThread().getName());
+				Thread.sleep(50);
+				return period * 10;
+			}));
+
+			assertEquals(List.of(10, 20, 30, 40, 50, 60, 70, 80), product.get());
+			assertTrue(workers.size() > 1, "Subtasks run by " + workers);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void theFirstErrorIsRethrownAsIs() throws Exception {
+		ExecutorService executor = factory.newProductExecutor();
+		try {
+			Future<List<Integer>> product = executor.submit(() -> {
+				BillingSchedulerException e = assertThrows(BillingSchedulerException.class, () -> factory.fanOut(List.of(1, 2, 3), period -> {
+					if (period > 1)
+						throw new BillingSchedulerException("Error in billingPeriod " + period);
+					return period;
+				}));
+				assertEquals("Error in billingPeriod 2", e.getMessage());
+				return null;
+			});
+			product.get();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
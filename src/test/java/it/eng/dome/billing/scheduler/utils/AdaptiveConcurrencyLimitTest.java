@@ -0,0 +1,77 @@
+package it.eng.dome.billing.scheduler.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+
+public class AdaptiveConcurrencyLimitTest {
+
+	private static final long RTT = 10_000_000;
+
+	@Test
+	public void theLimitGrowsWhileTheLatencyIsStable() throws Exception {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(4, 1, 50);
+
+		for (int i = 0; i < 50; i++) {
+			fill(limit, limit.getLimit());
+			release(limit, limit.getInFlight(), RTT);
+		}
+		assertEquals(50, limit.getLimit());
+	}
+
+	@Test
+	public void theLimitShrinksWhenTheLatencyRises() throws Exception {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 1, 50);
+		fill(limit, 20);
+		release(limit, 20, RTT);
+
+		for (int i = 0; i < 10; i++) {
+			fill(limit, limit.getLimit());
+			release(limit, limit.getInFlight(), 5 * RTT);
+		}
+		assertTrue(limit.getLimit() < 20, "Limit " + limit.getLimit());
+	}
+
+	@Test
+	public void theLimitBacksOffOnOverload() throws Exception {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 2, 50);
+
+		for (int i = 0; i < 50; i++) {
+			limit.acquire();
+			limit.onDropped();
+		}
+		assertEquals(2, limit.getLimit());
+
+		// an error not related to the load does not change the limit
+		limit.acquire();
+		limit.onIgnored();
+		assertEquals(2, limit.getLimit());
+		assertEquals(0, limit.getInFlight());
+	}
+
+	@Test
+	public void aFixedLimitNeverChanges() throws Exception {
+		AdaptiveConcurrencyLimit limit = AdaptiveConcurrencyLimit.fixed(3);
+		fill(limit, 3);
+		assertEquals(0, limit.getAvailable());
+		release(limit, 3, RTT);
+		limit.acquire();
+		limit.onDropped();
+		assertEquals(3, limit.getLimit());
+	}
+
+	private void fill(AdaptiveConcurrencyLimit limit, int calls) throws InterruptedException {
+		for (int i = 0; i < calls; i++) {
+			limit.acquire();
+		}
+	}
+
+	private void release(AdaptiveConcurrencyLimit limit, int calls, long rttNanos) {
+		for (int i = 0; i < calls; i++) {
+			limit.onSuccess(rttNanos);
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+package it.eng.dome.billing.scheduler.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import it.eng.dome.tmforum.tmf678.v4.model.CustomerBill;
+import it.eng.dome.tmforum.tmf678.v4.model.Money;
+import it.eng.dome.tmforum.tmf678.v4.model.RelatedParty;
+import it.eng.dome.tmforum.tmf678.v4.model.TimePeriod;
+
+public class InvoiceKeysTest {
+
+	private static final String PRODUCT_ID = "urn:ngsi-ld:product:1";
+
+	@Test
+	public void equivalentCustomerBillsHaveTheSameKey() {
+		CustomerBill local = customerBill("2026-09-30T00:00:00Z", "Buyer", 10.000001f, "eur");
+		CustomerBill tmf = customerBill("2026-09-30T02:00:00+02:00", "Customer", 10.00002f, "EUR");
+
+		assertEquals(InvoiceKeys.customerBillKey(local, PRODUCT_ID), InvoiceKeys.customerBillKey(tmf, PRODUCT_ID));
+	}
+
+	@Test
+	public void differentCustomerBillsHaveDifferentKeys() {
+		CustomerBill local = customerBill("2026-09-30T00:00:00Z", "Buyer", 10f, "EUR");
+
+		assertNotEquals(InvoiceKeys.customerBillKey(local, PRODUCT_ID), InvoiceKeys.customerBillKey(customerBill("2026-09-30T00:00:00Z", "Buyer", 10.01f, "EUR"), PRODUCT_ID));
+		assertNotEquals(InvoiceKeys.customerBillKey(local, PRODUCT_ID), InvoiceKeys.customerBillKey(customerBill("2026-10-31T00:00:00Z", "Buyer", 10f, "EUR"), PRODUCT_ID));
+		assertNotEquals(InvoiceKeys.customerBillKey(local, PRODUCT_ID), InvoiceKeys.customerBillKey(local, "urn:ngsi-ld:product:2"));
+	}
+
+	@Test
+	public void missingFieldGivesNoKey() {
+		CustomerBill cb = customerBill("2026-09-30T00:00:00Z", "Buyer", 10f, "EUR");
+		cb.setTaxIncludedAmount(null);
+
+		assertNull(InvoiceKeys.customerBillKey(cb, PRODUCT_ID));
+	}
+
+	private CustomerBill customerBill(String billDate, String buyerRole, float amount, String unit) {
+		CustomerBill cb = new CustomerBill();
+		cb.setBillDate(OffsetDateTime.parse(billDate));
+
+		TimePeriod billingPeriod = new TimePeriod();
+		billingPeriod.setStartDateTime(OffsetDateTime.parse("2026-09-01T00:00:00Z"));
+		billingPeriod.setEndDateTime(OffsetDateTime.parse(billDate));
+		cb.setBillingPeriod(billingPeriod);
+
+		List<RelatedParty> relatedParties = new ArrayList<RelatedParty>();
+		relatedParties.add(relatedParty("urn:ngsi-ld:organization:buyer", buyerRole));
+		relatedParties.add(relatedParty("urn:ngsi-ld:organization:seller", "Seller"));
+		cb.setRelatedParty(relatedParties);
+
+		Money money = new Money();
+		money.setUnit(unit);
+		money.setValue(amount);
+		cb.setTaxIncludedAmount(money);
+		return cb;
+	}
+
+	private RelatedParty relatedParty(String id, String role) {
+		RelatedParty rp = new RelatedParty();
+		rp.setId(id);
+		rp.setRole(role);
+		return rp;
+	}
+
+}